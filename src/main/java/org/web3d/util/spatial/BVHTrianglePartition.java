@@ -0,0 +1,937 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Internal Imports
+import org.web3d.util.IntArray;
+
+/**
+ * A bounding volume hierarchy over triangles, built with the surface area
+ * heuristic.
+ * <p>
+ *
+ * Nodes are kept in flat arrays.  Node n has its bounds at 6 * n in
+ * nodeBounds.  A leaf has a positive count and holds the triangles
+ * primIds[start] to primIds[start + count - 1].  An interior node has a
+ * count of 0, its children are nodes start and start + 1.
+ * <p>
+ *
+ * Regions are in the grid cell coordinates of a GridTrianglePartition with
+ * the same voxel size and count, so the two can be swapped.  Arbitrary
+ * world space boxes and rays can also be queried.  Region and box queries
+ * return the triangles which actually overlap the box.
+ * <p>
+ *
+ * Large numbers of rays are best cast with castRays, which traces packets
+ * of neighbouring rays through the tree together and spreads the packets
+ * over a ForkJoinPool.  Packets work best when neighbouring rays are
+ * coherent, such as rays from one viewpoint through adjacent pixels.
+ * <p>
+ *
+ * The tree is built on the first query after an insert, or by calling
+ * build.  Inserting is not thread-safe.  Once built, any number of threads
+ * can query the partition without locking.
+ *
+ * @version $Id: $
+ */
+public class BVHTrianglePartition implements SpatialPartition {
+
+    /** The number of bins used to evaluate split positions */
+    private static final int NUM_BINS = 16;
+
+    /** Nodes with this many triangles or less are always leaves */
+    private static final int MIN_LEAF_SIZE = 2;
+
+    /** Nodes with more triangles than this are always split */
+    private static final int MAX_LEAF_SIZE = 16;
+
+    /** The cost of visiting a node relative to testing a triangle */
+    private static final float TRAVERSAL_COST = 1.0f;
+
+    /** Fraction of a voxel a triangle may be outside a region and still count */
+    private static final double BOUNDARY_TOLERANCE = 0.01;
+
+    /** The starting traversal stack size */
+    private static final int INITIAL_STACK_SIZE = 64;
+
+    /** The number of rays traced together as a packet */
+    private static final int PACKET_SIZE = 8;
+
+    /** Batches with at most this many rays are traced in a single task */
+    private static final int RAYS_PER_TASK = 512;
+
+    /** The voxel size used to map regions to world space */
+    private final double voxelSize;
+
+    /** The number of voxels each axis */
+    private final int numVoxels;
+
+    /** The minimum grid position in world coordinates */
+    private final double minGridWorldCoord;
+
+    /** The triangle coordinates by id */
+    private TriangleStore triMapping;
+
+    /** Have triangles changed since the tree was built */
+    private volatile boolean dirty;
+
+    /** The node bounds, 6 per node, min then max */
+    private float[] nodeBounds;
+
+    /** The first triangle of a leaf or the first child of an interior node */
+    private int[] nodeStart;
+
+    /** The number of triangles in a leaf, 0 for interior nodes */
+    private int[] nodeCount;
+
+    /** The number of nodes in use */
+    private int numNodes;
+
+    /** The triangle ids in leaf order */
+    private int[] primIds;
+
+    /**
+     * Constructor.
+     *
+     * @param voxelSize The size of each voxel in meters, for region queries
+     * @param numVoxelsPerSide The number of voxels in each axis.  Must be even.
+     * @param numTris The expected number of triangles
+     */
+    public BVHTrianglePartition(double voxelSize, int numVoxelsPerSide, int numTris) {
+        if (numVoxelsPerSide % 2 != 0)
+            throw new IllegalArgumentException("Number of voxels per side must be even");
+
+        this.voxelSize = voxelSize;
+        this.numVoxels = numVoxelsPerSide;
+
+        minGridWorldCoord = - numVoxels / 2 * voxelSize;
+        triMapping = new TriangleStore(numTris);
+
+        clearTree();
+    }
+
+    //-------------------------------------------------------------
+    // Methods defined by SpatialPartition
+    //-------------------------------------------------------------
+
+    /**
+     * Clear the structure of all data.
+     */
+    public void clear() {
+        triMapping.clear();
+        clearTree();
+    }
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles or null if none
+     */
+    public int[] getObjects(Region region) {
+        if (region instanceof WorldRegion) {
+            float[] wmin = new float[3];
+            float[] wmax = new float[3];
+
+            ((WorldRegion) region).getBounds(wmin, wmax);
+
+            return getObjects(wmin, wmax);
+        }
+
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        float[] wmin = new float[3];
+        float[] wmax = new float[3];
+        double tol = voxelSize * BOUNDARY_TOLERANCE;
+
+        for(int i=0; i < 3; i++) {
+            wmin[i] = (float) (minGridWorldCoord + min[i] * voxelSize - tol);
+            wmax[i] = (float) (minGridWorldCoord + (max[i] + 1) * voxelSize + tol);
+        }
+
+        return getObjects(wmin, wmax);
+    }
+
+    /**
+     * Gets the objects in the specified region.  When exact is set and the
+     * region is a WorldRegion, the candidates from the covering cells are
+     * refined with the exact triangle test so only overlapping objects are
+     * returned.  Other regions are cell aligned and exact is ignored.
+     *
+     * @param region The region of interest
+     * @param exact Should world region candidates be refined
+     * @return The objects or null if none
+     */
+    public int[] getObjects(Region region, boolean exact) {
+        int[] ret_val = getObjects(region);
+
+        if (exact && region instanceof WorldRegion)
+            ret_val = RegionBounds.refine((WorldRegion) region, ret_val, triMapping.getCoords());
+
+        return ret_val;
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Insert an object into the structure.  The tree is rebuilt on the next
+     * query.
+     *
+     * @param tri The triangle
+     */
+    public void insert(Triangle tri) {
+        triMapping.set(tri.id, tri.coords, 0);
+        dirty = true;
+    }
+
+    /**
+     * Insert an array of Triangles.  The tree is rebuilt on the next query.
+     *
+     * @param tris The triangles
+     */
+    public void insert(Triangle[] tris) {
+        for(int i=0; i < tris.length; i++) {
+            insert(tris[i]);
+        }
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        return triMapping.get(id);
+    }
+
+    /**
+     * Get the number of nodes in the tree, building it if needed.
+     *
+     * @return The node count
+     */
+    public int getNumNodes() {
+        checkBuilt();
+
+        return numNodes;
+    }
+
+    /**
+     * Gets the triangles which overlap a world space box.
+     *
+     * @param min The box min corner
+     * @param max The box max corner
+     * @return The triangle ids or null if none
+     */
+    public int[] getObjects(float[] min, float[] max) {
+        checkBuilt();
+
+        if (numNodes == 0)
+            return null;
+
+        final double cx = ((double) min[0] + max[0]) / 2.0;
+        final double cy = ((double) min[1] + max[1]) / 2.0;
+        final double cz = ((double) min[2] + max[2]) / 2.0;
+        final double hx = ((double) max[0] - min[0]) / 2.0;
+        final double hy = ((double) max[1] - min[1]) / 2.0;
+        final double hz = ((double) max[2] - min[2]) / 2.0;
+
+        final float[] coords = triMapping.getCoords();
+
+        IntArray ret_val = new IntArray();
+        int[] stack = new int[INITIAL_STACK_SIZE];
+        int top = 0;
+
+        stack[top++] = 0;
+
+        while(top > 0) {
+            int node = stack[--top];
+            int b = node * 6;
+
+            if (nodeBounds[b] > max[0] || nodeBounds[b + 3] < min[0] ||
+                nodeBounds[b + 1] > max[1] || nodeBounds[b + 4] < min[1] ||
+                nodeBounds[b + 2] > max[2] || nodeBounds[b + 5] < min[2])
+                continue;
+
+            int cnt = nodeCount[node];
+            int start = nodeStart[node];
+
+            if (cnt > 0) {
+                for(int i=start; i < start + cnt; i++) {
+                    int id = primIds[i];
+
+                    if (TriangleBoxOverlap.overlaps(coords, id * TriangleStore.STRIDE,
+                                                    cx, cy, cz, hx, hy, hz))
+                        ret_val.add(id);
+                }
+            } else {
+                if (top + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length << 1);
+
+                stack[top++] = start;
+                stack[top++] = start + 1;
+            }
+        }
+
+        if (ret_val.size() == 0)
+            return null;
+
+        return ret_val.toArray();
+    }
+
+    /**
+     * Find the nearest triangle hit by a ray.
+     *
+     * @param origin The ray origin
+     * @param dir The ray direction, need not be normalized
+     * @param maxDist Ignore hits further than this, in units of dir length
+     * @param hit The hit to fill in, reset if nothing is hit
+     * @return true if a triangle was hit
+     */
+    public boolean raycast(float[] origin, float[] dir, double maxDist, RayHit hit) {
+        checkBuilt();
+
+        hit.reset();
+
+        if (numNodes == 0)
+            return false;
+
+        hit.distance = maxDist;
+
+        final double ox = origin[0];
+        final double oy = origin[1];
+        final double oz = origin[2];
+        final double dx = dir[0];
+        final double dy = dir[1];
+        final double dz = dir[2];
+        final double ix = 1.0 / dx;
+        final double iy = 1.0 / dy;
+        final double iz = 1.0 / dz;
+        final float[] coords = triMapping.getCoords();
+
+        int[] stack = new int[INITIAL_STACK_SIZE];
+        int top = 0;
+
+        stack[top++] = 0;
+
+        while(top > 0) {
+            int node = stack[--top];
+
+            if (slabEntry(node, ox, oy, oz, ix, iy, iz, hit.distance) == Double.POSITIVE_INFINITY)
+                continue;
+
+            int cnt = nodeCount[node];
+            int start = nodeStart[node];
+
+            if (cnt > 0) {
+                for(int i=start; i < start + cnt; i++) {
+                    int id = primIds[i];
+
+                    RayTriangleIntersect.intersect(coords, id * TriangleStore.STRIDE, id,
+                        ox, oy, oz, dx, dy, dz, 0, hit);
+                }
+            } else {
+                double t_left = slabEntry(start, ox, oy, oz, ix, iy, iz, hit.distance);
+                double t_right = slabEntry(start + 1, ox, oy, oz, ix, iy, iz, hit.distance);
+
+                if (top + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length << 1);
+
+                // Push the far child first so the near one is visited first
+                if (t_left <= t_right) {
+                    if (t_right != Double.POSITIVE_INFINITY)
+                        stack[top++] = start + 1;
+
+                    if (t_left != Double.POSITIVE_INFINITY)
+                        stack[top++] = start;
+                } else {
+                    if (t_left != Double.POSITIVE_INFINITY)
+                        stack[top++] = start;
+
+                    stack[top++] = start + 1;
+                }
+            }
+        }
+
+        if (hit.id < 0) {
+            hit.reset();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the nearest triangle hit by each of a batch of rays, using the
+     * common ForkJoinPool.
+     *
+     * @see #castRays(float[], float[], int, double, int[], float[], ForkJoinPool)
+     */
+    public void castRays(float[] origins, float[] dirs, int numRays,
+        double maxDist, int[] hitIds, float[] hitDists) {
+
+        castRays(origins, dirs, numRays, maxDist, hitIds, hitDists,
+                 ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Find the nearest triangle hit by each of a batch of rays.  The rays
+     * are given in structure of arrays form: ray i has origin
+     * (origins[i], origins[numRays + i], origins[2 * numRays + i]) and the
+     * direction laid out the same way in dirs.  Neighbouring rays are traced
+     * as packets and the batch is split over the pool.
+     *
+     * @param origins The ray origins, 3 * numRays values
+     * @param dirs The ray directions, 3 * numRays values
+     * @param numRays The number of rays
+     * @param maxDist Ignore hits further than this, in units of dir length
+     * @param hitIds Filled with the id hit by each ray or -1 if none
+     * @param hitDists Filled with the hit distance of each ray or positive
+     *    infinity if none
+     * @param pool The pool to run the tracing tasks in
+     * @throws IllegalArgumentException An array is too small for numRays
+     */
+    public void castRays(float[] origins, float[] dirs, int numRays,
+        double maxDist, int[] hitIds, float[] hitDists, ForkJoinPool pool) {
+
+        if (origins.length < 3 * numRays || dirs.length < 3 * numRays ||
+            hitIds.length < numRays || hitDists.length < numRays)
+            throw new IllegalArgumentException("Ray arrays too small for " + numRays + " rays");
+
+        checkBuilt();
+
+        PacketTask task = new PacketTask(origins, dirs, numRays, maxDist,
+            hitIds, hitDists, 0, numRays);
+
+        // A serial pool traces here, as compute would fork to the common pool
+        if (numRays <= RAYS_PER_TASK || pool.getParallelism() < 2)
+            task.traceRange();
+        else
+            pool.invoke(task);
+    }
+
+    /**
+     * Build the tree now rather than on the next query.
+     */
+    public synchronized void build() {
+        if (!dirty)
+            return;
+
+        final int num_ids = triMapping.getIdLimit();
+        final float[] coords = triMapping.getCoords();
+
+        // Per triangle bounds and centroids by id
+        float[] tri_bounds = new float[num_ids * 6];
+        float[] centroids = new float[num_ids * 3];
+
+        IntArray ids = new IntArray(num_ids);
+
+        for(int id=0; id < num_ids; id++) {
+            if (!triMapping.contains(id))
+                continue;
+
+            ids.add(id);
+
+            int c = id * TriangleStore.STRIDE;
+
+            for(int i=0; i < 3; i++) {
+                float lo = Math.min(coords[c + i], Math.min(coords[c + i + 3], coords[c + i + 6]));
+                float hi = Math.max(coords[c + i], Math.max(coords[c + i + 3], coords[c + i + 6]));
+
+                tri_bounds[id * 6 + i] = lo;
+                tri_bounds[id * 6 + 3 + i] = hi;
+                centroids[id * 3 + i] = (lo + hi) * 0.5f;
+            }
+        }
+
+        final int num_prims = ids.size();
+
+        primIds = ids.toArray();
+
+        int max_nodes = Math.max(1, 2 * num_prims - 1);
+
+        nodeBounds = new float[max_nodes * 6];
+        nodeStart = new int[max_nodes];
+        nodeCount = new int[max_nodes];
+        numNodes = 0;
+
+        if (num_prims > 0) {
+            numNodes = 1;
+            nodeStart[0] = 0;
+            nodeCount[0] = num_prims;
+
+            buildNodes(tri_bounds, centroids);
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Split the nodes starting at the root until all are leaves.  Nodes
+     * waiting to be split hold their triangle range in nodeStart and
+     * nodeCount.
+     *
+     * @param triBounds The triangle bounds by id
+     * @param centroids The triangle centroids by id
+     */
+    private void buildNodes(float[] triBounds, float[] centroids) {
+        int[] bin_counts = new int[NUM_BINS];
+        float[] bin_bounds = new float[NUM_BINS * 6];
+        float[] right_areas = new float[NUM_BINS];
+        float[] cmin = new float[3];
+        float[] cmax = new float[3];
+        float[] acc = new float[6];
+
+        int[] stack = new int[INITIAL_STACK_SIZE];
+        int top = 0;
+
+        stack[top++] = 0;
+
+        while(top > 0) {
+            int node = stack[--top];
+            int start = nodeStart[node];
+            int cnt = nodeCount[node];
+            int end = start + cnt;
+            int b = node * 6;
+
+            // Node bounds and centroid bounds
+            resetBounds(nodeBounds, b);
+            Arrays.fill(cmin, Float.POSITIVE_INFINITY);
+            Arrays.fill(cmax, Float.NEGATIVE_INFINITY);
+
+            for(int i=start; i < end; i++) {
+                int id = primIds[i];
+
+                growBounds(nodeBounds, b, triBounds, id * 6);
+
+                for(int a=0; a < 3; a++) {
+                    float c = centroids[id * 3 + a];
+
+                    if (c < cmin[a])
+                        cmin[a] = c;
+
+                    if (c > cmax[a])
+                        cmax[a] = c;
+                }
+            }
+
+            if (cnt <= MIN_LEAF_SIZE)
+                continue;
+
+            int axis = 0;
+
+            for(int a=1; a < 3; a++) {
+                if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis])
+                    axis = a;
+            }
+
+            float extent = cmax[axis] - cmin[axis];
+
+            // All centroids in one place, nothing to split on
+            if (extent <= 0)
+                continue;
+
+            float scale = NUM_BINS / extent;
+
+            Arrays.fill(bin_counts, 0);
+
+            for(int n=0; n < NUM_BINS; n++) {
+                resetBounds(bin_bounds, n * 6);
+            }
+
+            for(int i=start; i < end; i++) {
+                int id = primIds[i];
+                int bin = binIndex(centroids[id * 3 + axis], cmin[axis], scale);
+
+                bin_counts[bin]++;
+                growBounds(bin_bounds, bin * 6, triBounds, id * 6);
+            }
+
+            // Sweep from the right recording the area of each right side
+            resetBounds(acc, 0);
+
+            for(int n = NUM_BINS - 1; n > 0; n--) {
+                growBounds(acc, 0, bin_bounds, n * 6);
+                right_areas[n] = halfArea(acc, 0);
+            }
+
+            // Sweep from the left finding the cheapest split
+            resetBounds(acc, 0);
+
+            int left_cnt = 0;
+            int best_split = -1;
+            float best_cost = Float.POSITIVE_INFINITY;
+
+            for(int n=1; n < NUM_BINS; n++) {
+                growBounds(acc, 0, bin_bounds, (n - 1) * 6);
+                left_cnt += bin_counts[n - 1];
+
+                if (left_cnt == 0 || left_cnt == cnt)
+                    continue;
+
+                float cost = halfArea(acc, 0) * left_cnt + right_areas[n] * (cnt - left_cnt);
+
+                if (cost < best_cost) {
+                    best_cost = cost;
+                    best_split = n;
+                }
+            }
+
+            float node_area = halfArea(nodeBounds, b);
+            float split_cost = TRAVERSAL_COST + (node_area > 0 ? best_cost / node_area : 0);
+
+            if (best_split < 0 || (split_cost >= cnt && cnt <= MAX_LEAF_SIZE))
+                continue;
+
+            // Partition the triangles about the split bin
+            int mid = start;
+
+            for(int i=start; i < end; i++) {
+                int id = primIds[i];
+
+                if (binIndex(centroids[id * 3 + axis], cmin[axis], scale) < best_split) {
+                    primIds[i] = primIds[mid];
+                    primIds[mid++] = id;
+                }
+            }
+
+            int left = numNodes;
+            numNodes += 2;
+
+            nodeStart[left] = start;
+            nodeCount[left] = mid - start;
+            nodeStart[left + 1] = mid;
+            nodeCount[left + 1] = end - mid;
+
+            nodeStart[node] = left;
+            nodeCount[node] = 0;
+
+            if (top + 2 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length << 1);
+
+            stack[top++] = left;
+            stack[top++] = left + 1;
+        }
+    }
+
+    /**
+     * Find the distance a ray enters a node.
+     *
+     * @return The entry distance or positive infinity if missed or further
+     *    than maxDist
+     */
+    private double slabEntry(int node, double ox, double oy, double oz,
+        double ix, double iy, double iz, double maxDist) {
+
+        int b = node * 6;
+
+        double t0 = (nodeBounds[b] - ox) * ix;
+        double t1 = (nodeBounds[b + 3] - ox) * ix;
+        double tmin = Math.min(t0, t1);
+        double tmax = Math.max(t0, t1);
+
+        t0 = (nodeBounds[b + 1] - oy) * iy;
+        t1 = (nodeBounds[b + 4] - oy) * iy;
+        tmin = Math.max(tmin, Math.min(t0, t1));
+        tmax = Math.min(tmax, Math.max(t0, t1));
+
+        t0 = (nodeBounds[b + 2] - oz) * iz;
+        t1 = (nodeBounds[b + 5] - oz) * iz;
+        tmin = Math.max(tmin, Math.min(t0, t1));
+        tmax = Math.min(tmax, Math.max(t0, t1));
+
+        // NaN from a zero direction on the slab boundary fails these tests
+        if (!(tmax >= tmin) || tmax < 0 || tmin > maxDist)
+            return Double.POSITIVE_INFINITY;
+
+        return tmin;
+    }
+
+    /**
+     * Trace one packet of rays through the tree together.  A node is
+     * visited once for the packet with a mask of the rays which still
+     * reach it.
+     *
+     * @param scratch The packet rays and their hits
+     * @param count The number of rays in the packet
+     */
+    private void tracePacket(PacketScratch scratch, int count) {
+        if (numNodes == 0)
+            return;
+
+        final double[] ox = scratch.ox;
+        final double[] oy = scratch.oy;
+        final double[] oz = scratch.oz;
+        final double[] dx = scratch.dx;
+        final double[] dy = scratch.dy;
+        final double[] dz = scratch.dz;
+        final double[] ix = scratch.ix;
+        final double[] iy = scratch.iy;
+        final double[] iz = scratch.iz;
+        final RayHit[] hits = scratch.hits;
+        final float[] coords = triMapping.getCoords();
+
+        int[] stack_node = scratch.stackNode;
+        int[] stack_mask = scratch.stackMask;
+        int top = 0;
+
+        stack_node[top] = 0;
+        stack_mask[top++] = (1 << count) - 1;
+
+        while(top > 0) {
+            int node = stack_node[--top];
+            int mask = stack_mask[top];
+            int active = 0;
+
+            for(int r=0; r < count; r++) {
+                if ((mask & (1 << r)) != 0 &&
+                    slabEntry(node, ox[r], oy[r], oz[r], ix[r], iy[r], iz[r],
+                              hits[r].distance) != Double.POSITIVE_INFINITY)
+                    active |= 1 << r;
+            }
+
+            if (active == 0)
+                continue;
+
+            int cnt = nodeCount[node];
+            int start = nodeStart[node];
+
+            if (cnt > 0) {
+                for(int i=start; i < start + cnt; i++) {
+                    int id = primIds[i];
+                    int off = id * TriangleStore.STRIDE;
+
+                    for(int r=0; r < count; r++) {
+                        if ((active & (1 << r)) != 0)
+                            RayTriangleIntersect.intersect(coords, off, id,
+                                ox[r], oy[r], oz[r], dx[r], dy[r], dz[r], 0, hits[r]);
+                    }
+                }
+            } else {
+                // Order the children by the first active ray
+                int r = Integer.numberOfTrailingZeros(active);
+
+                double t_left = slabEntry(start, ox[r], oy[r], oz[r],
+                    ix[r], iy[r], iz[r], Double.POSITIVE_INFINITY);
+                double t_right = slabEntry(start + 1, ox[r], oy[r], oz[r],
+                    ix[r], iy[r], iz[r], Double.POSITIVE_INFINITY);
+
+                if (top + 2 > stack_node.length) {
+                    stack_node = Arrays.copyOf(stack_node, stack_node.length << 1);
+                    stack_mask = Arrays.copyOf(stack_mask, stack_mask.length << 1);
+                    scratch.stackNode = stack_node;
+                    scratch.stackMask = stack_mask;
+                }
+
+                int near = (t_left <= t_right) ? start : start + 1;
+
+                stack_node[top] = (near == start) ? start + 1 : start;
+                stack_mask[top++] = active;
+                stack_node[top] = near;
+                stack_mask[top++] = active;
+            }
+        }
+    }
+
+    /**
+     * Make sure the tree reflects all inserts.
+     */
+    private void checkBuilt() {
+        if (dirty)
+            build();
+    }
+
+    /**
+     * Remove the tree.
+     */
+    private void clearTree() {
+        nodeBounds = new float[0];
+        nodeStart = new int[0];
+        nodeCount = new int[0];
+        primIds = new int[0];
+        numNodes = 0;
+        dirty = false;
+    }
+
+    /**
+     * Find the bin a centroid falls in.
+     */
+    private static int binIndex(float c, float min, float scale) {
+        int ret_val = (int) ((c - min) * scale);
+
+        return (ret_val >= NUM_BINS) ? NUM_BINS - 1 : ret_val;
+    }
+
+    /**
+     * Set bounds to empty.
+     */
+    private static void resetBounds(float[] bounds, int off) {
+        bounds[off] = Float.POSITIVE_INFINITY;
+        bounds[off + 1] = Float.POSITIVE_INFINITY;
+        bounds[off + 2] = Float.POSITIVE_INFINITY;
+        bounds[off + 3] = Float.NEGATIVE_INFINITY;
+        bounds[off + 4] = Float.NEGATIVE_INFINITY;
+        bounds[off + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Grow bounds to include other bounds.
+     */
+    private static void growBounds(float[] bounds, int off, float[] src, int srcOff) {
+        for(int i=0; i < 3; i++) {
+            if (src[srcOff + i] < bounds[off + i])
+                bounds[off + i] = src[srcOff + i];
+
+            if (src[srcOff + 3 + i] > bounds[off + 3 + i])
+                bounds[off + 3 + i] = src[srcOff + 3 + i];
+        }
+    }
+
+    /**
+     * Half the surface area of bounds, 0 if empty.
+     */
+    private static float halfArea(float[] bounds, int off) {
+        float dx = bounds[off + 3] - bounds[off];
+        float dy = bounds[off + 4] - bounds[off + 1];
+        float dz = bounds[off + 5] - bounds[off + 2];
+
+        if (dx < 0 || dy < 0 || dz < 0)
+            return 0;
+
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * The rays of one packet and their hits, reused between packets.
+     */
+    private static class PacketScratch {
+        final double[] ox = new double[PACKET_SIZE];
+        final double[] oy = new double[PACKET_SIZE];
+        final double[] oz = new double[PACKET_SIZE];
+        final double[] dx = new double[PACKET_SIZE];
+        final double[] dy = new double[PACKET_SIZE];
+        final double[] dz = new double[PACKET_SIZE];
+        final double[] ix = new double[PACKET_SIZE];
+        final double[] iy = new double[PACKET_SIZE];
+        final double[] iz = new double[PACKET_SIZE];
+        final RayHit[] hits = new RayHit[PACKET_SIZE];
+
+        int[] stackNode = new int[INITIAL_STACK_SIZE];
+        int[] stackMask = new int[INITIAL_STACK_SIZE];
+
+        PacketScratch() {
+            for(int i=0; i < PACKET_SIZE; i++) {
+                hits[i] = new RayHit();
+            }
+        }
+    }
+
+    /**
+     * Traces a range of a ray batch, splitting large ranges in half.
+     */
+    private class PacketTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        private final float[] origins;
+        private final float[] dirs;
+        private final int numRays;
+        private final double maxDist;
+        private final int[] hitIds;
+        private final float[] hitDists;
+        private final int start;
+        private final int end;
+
+        PacketTask(float[] origins, float[] dirs, int numRays, double maxDist,
+            int[] hitIds, float[] hitDists, int start, int end) {
+
+            this.origins = origins;
+            this.dirs = dirs;
+            this.numRays = numRays;
+            this.maxDist = maxDist;
+            this.hitIds = hitIds;
+            this.hitDists = hitDists;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start > RAYS_PER_TASK) {
+                // Split on a packet boundary
+                int mid = start + ((end - start) / 2 / PACKET_SIZE) * PACKET_SIZE;
+
+                invokeAll(new PacketTask(origins, dirs, numRays, maxDist, hitIds, hitDists, start, mid),
+                          new PacketTask(origins, dirs, numRays, maxDist, hitIds, hitDists, mid, end));
+
+                return;
+            }
+
+            traceRange();
+        }
+
+        /**
+         * Trace the whole range on the calling thread.
+         */
+        void traceRange() {
+            PacketScratch scratch = new PacketScratch();
+
+            for(int first = start; first < end; first += PACKET_SIZE) {
+                int count = Math.min(PACKET_SIZE, end - first);
+
+                for(int r=0; r < count; r++) {
+                    int ray = first + r;
+
+                    scratch.ox[r] = origins[ray];
+                    scratch.oy[r] = origins[numRays + ray];
+                    scratch.oz[r] = origins[2 * numRays + ray];
+                    scratch.dx[r] = dirs[ray];
+                    scratch.dy[r] = dirs[numRays + ray];
+                    scratch.dz[r] = dirs[2 * numRays + ray];
+                    scratch.ix[r] = 1.0 / scratch.dx[r];
+                    scratch.iy[r] = 1.0 / scratch.dy[r];
+                    scratch.iz[r] = 1.0 / scratch.dz[r];
+
+                    scratch.hits[r].reset();
+                    scratch.hits[r].distance = maxDist;
+                }
+
+                tracePacket(scratch, count);
+
+                for(int r=0; r < count; r++) {
+                    RayHit hit = scratch.hits[r];
+
+                    if (hit.id >= 0) {
+                        hitIds[first + r] = hit.id;
+                        hitDists[first + r] = (float) hit.distance;
+                    } else {
+                        hitIds[first + r] = -1;
+                        hitDists[first + r] = Float.POSITIVE_INFINITY;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+
+// Internal Imports
+// None
+
+/**
+ * A voxel grid holding one bit per voxel.
+ * <p>
+ *
+ * Bits are packed along x into longs.  Each row of x voxels for a given y
+ * and z starts on a new word, row (y, z) is words getRowOffset(y, z) to
+ * getRowOffset(y, z) + getWordsPerRow() - 1.  Padding bits past resX are
+ * always clear.  As rows never share a word, threads may write different
+ * rows at the same time without locking.  Anything else needs outside
+ * synchronization.
+ *
+ * @version $Id: $
+ */
+public class BitVolume {
+
+    /** The number of voxels in x */
+    private final int resX;
+
+    /** The number of voxels in y */
+    private final int resY;
+
+    /** The number of voxels in z */
+    private final int resZ;
+
+    /** The number of words in each row */
+    private final int wordsPerRow;
+
+    /** The bits, rows in y then z order */
+    private final long[] words;
+
+    /**
+     * Constructor.  All voxels start clear.
+     *
+     * @param resX The number of voxels in x
+     * @param resY The number of voxels in y
+     * @param resZ The number of voxels in z
+     * @throws IllegalArgumentException A resolution is not positive or the
+     *    volume is too large
+     */
+    public BitVolume(int resX, int resY, int resZ) {
+        if (resX < 1 || resY < 1 || resZ < 1)
+            throw new IllegalArgumentException("Resolution must be positive");
+
+        long num_words = (long) ((resX + 63) >>> 6) * resY * resZ;
+
+        if (num_words > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Volume too large: " + resX + "x" + resY + "x" + resZ);
+
+        this.resX = resX;
+        this.resY = resY;
+        this.resZ = resZ;
+
+        wordsPerRow = (resX + 63) >>> 6;
+        words = new long[(int) num_words];
+    }
+
+    /**
+     * Is a voxel set.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return true if set
+     */
+    public boolean get(int x, int y, int z) {
+        return (words[getRowOffset(y, z) + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Set a voxel.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     */
+    public void set(int x, int y, int z) {
+        words[getRowOffset(y, z) + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Clear a voxel.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     */
+    public void clear(int x, int y, int z) {
+        words[getRowOffset(y, z) + (x >>> 6)] &= ~(1L << x);
+    }
+
+    /**
+     * Set a run of voxels in a row.
+     *
+     * @param fromX The first x voxel
+     * @param toX One past the last x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     */
+    public void set(int fromX, int toX, int y, int z) {
+        if (fromX >= toX)
+            return;
+
+        int off = getRowOffset(y, z);
+        int first = off + (fromX >>> 6);
+        int last = off + ((toX - 1) >>> 6);
+        long first_mask = -1L << fromX;
+        long last_mask = -1L >>> -toX;
+
+        if (first == last) {
+            words[first] |= first_mask & last_mask;
+
+            return;
+        }
+
+        words[first] |= first_mask;
+
+        for(int i=first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+
+        words[last] |= last_mask;
+    }
+
+    /**
+     * Clear all voxels.
+     */
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Set every voxel which is set in another volume of the same size.
+     *
+     * @param vol The other volume
+     * @throws IllegalArgumentException The volumes differ in size
+     */
+    public void or(BitVolume vol) {
+        if (vol.resX != resX || vol.resY != resY || vol.resZ != resZ)
+            throw new IllegalArgumentException("Volume sizes differ");
+
+        for(int i=0; i < words.length; i++) {
+            words[i] |= vol.words[i];
+        }
+    }
+
+    /**
+     * Get the number of set voxels.
+     *
+     * @return The count
+     */
+    public long cardinality() {
+        long ret_val = 0;
+
+        for(int i=0; i < words.length; i++) {
+            ret_val += Long.bitCount(words[i]);
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Get the number of set voxels in a row.
+     *
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return The count
+     */
+    public int cardinality(int y, int z) {
+        int off = getRowOffset(y, z);
+        int ret_val = 0;
+
+        for(int i=0; i < wordsPerRow; i++) {
+            ret_val += Long.bitCount(words[off + i]);
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Find the next set voxel in a row.
+     *
+     * @param x The x voxel to start looking at
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return The x voxel or -1 if none at or after x
+     */
+    public int nextSet(int x, int y, int z) {
+        if (x >= resX)
+            return -1;
+
+        int off = getRowOffset(y, z);
+        int w = x >>> 6;
+        long word = words[off + w] & (-1L << x);
+
+        while(true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+
+            if (++w == wordsPerRow)
+                return -1;
+
+            word = words[off + w];
+        }
+    }
+
+    /**
+     * Get the number of voxels in x.
+     *
+     * @return The resolution
+     */
+    public int getResX() {
+        return resX;
+    }
+
+    /**
+     * Get the number of voxels in y.
+     *
+     * @return The resolution
+     */
+    public int getResY() {
+        return resY;
+    }
+
+    /**
+     * Get the number of voxels in z.
+     *
+     * @return The resolution
+     */
+    public int getResZ() {
+        return resZ;
+    }
+
+    /**
+     * Get the number of words in each row.
+     *
+     * @return The word count
+     */
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /**
+     * Get the first word of a row.
+     *
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return The offset into the words
+     */
+    public int getRowOffset(int y, int z) {
+        return (y + z * resY) * wordsPerRow;
+    }
+
+    /**
+     * Get the bits.  This is the live array, not a copy.  Callers writing it
+     * must keep the padding bits clear.
+     *
+     * @return The words
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /**
+     * Get the memory used by the bits.
+     *
+     * @return The size in bytes
+     */
+    public long getSizeInBytes() {
+        return words.length * 8L;
+    }
+}
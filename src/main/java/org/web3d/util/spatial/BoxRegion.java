@@ -0,0 +1,158 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * A structure which describes an axis aligned box of space in world
+ * coordinates.
+ *
+ * @version $Id: $
+ */
+public class BoxRegion implements WorldRegion {
+
+    /** The min corner */
+    private float[] min;
+
+    /** The max corner */
+    private float[] max;
+
+    /**
+     * Constructor.  The corners are copied.
+     *
+     * @param min The min corner in world coordinates
+     * @param max The max corner in world coordinates
+     */
+    public BoxRegion(float[] min, float[] max) {
+        for(int i=0; i < 3; i++) {
+            if (min[i] > max[i])
+                throw new IllegalArgumentException("Min greater than max on axis: " + i);
+        }
+
+        this.min = new float[] {min[0], min[1], min[2]};
+        this.max = new float[] {max[0], max[1], max[2]};
+    }
+
+    //----------------------------------------------------------
+    // Methods defined by WorldRegion
+    //----------------------------------------------------------
+
+    /**
+     * Get the axis aligned bounds of the region in world coordinates.
+     *
+     * @param min The min corner, preallocate to 3
+     * @param max The max corner, preallocate to 3
+     */
+    public void getBounds(float[] min, float[] max) {
+        getMin(min);
+        getMax(max);
+    }
+
+    /**
+     * Does a triangle overlap the region.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @return true if they overlap
+     */
+    public boolean overlaps(float[] coords, int off) {
+        return TriangleBoxOverlap.overlaps(coords, off,
+            (min[0] + (double) max[0]) / 2.0,
+            (min[1] + (double) max[1]) / 2.0,
+            (min[2] + (double) max[2]) / 2.0,
+            (max[0] - (double) min[0]) / 2.0,
+            (max[1] - (double) min[1]) / 2.0,
+            (max[2] - (double) min[2]) / 2.0);
+    }
+
+    //----------------------------------------------------------
+    // Local Methods
+    //----------------------------------------------------------
+
+    /**
+     * Get the min corner.
+     *
+     * @param val The corner, preallocate to 3
+     */
+    public void getMin(float[] val) {
+        val[0] = min[0];
+        val[1] = min[1];
+        val[2] = min[2];
+    }
+
+    /**
+     * Get the max corner.
+     *
+     * @param val The corner, preallocate to 3
+     */
+    public void getMax(float[] val) {
+        val[0] = max[0];
+        val[1] = max[1];
+        val[2] = max[2];
+    }
+
+    /**
+     * Compare this object for equality to the given object.
+     *
+     * @param o The object to be compared
+     * @return True if these represent the same values
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BoxRegion))
+            return false;
+        else
+            return equals((BoxRegion) o);
+    }
+
+    /**
+     * Compares this object with the specified object to check for equivalence.
+     *
+     * @param box The region to be compared
+     * @return true if the objects represent identical values
+     */
+    public boolean equals(BoxRegion box) {
+        for(int i=0; i < 3; i++) {
+            if (Float.floatToIntBits(min[i]) != Float.floatToIntBits(box.min[i]))
+                return false;
+
+            if (Float.floatToIntBits(max[i]) != Float.floatToIntBits(box.max[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret_val = 17;
+
+        for(int i=0; i < 3; i++) {
+            ret_val = 31 * ret_val + Float.floatToIntBits(min[i]);
+            ret_val = 31 * ret_val + Float.floatToIntBits(max[i]);
+        }
+
+        return ret_val;
+    }
+
+    @Override
+    public String toString() {
+        return "BoxRegion@" + this.hashCode() + " min: " + min[0] + " " + min[1] + " " + min[2] +
+            " max: " + max[0] + " " + max[1] + " " + max[2];
+    }
+}
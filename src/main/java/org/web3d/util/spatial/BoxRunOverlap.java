@@ -0,0 +1,92 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Tests one triangle against a run of equal boxes whose centers only differ
+ * along one axis.
+ * <p>
+ *
+ * Voxelizers test a triangle against long rows of neighbouring cells.  The
+ * runs keep the per-triangle setup out of the inner loop and give the same
+ * answers as testing each box with TriangleBoxOverlap.
+ *
+ * @version $Id: $
+ */
+public abstract class BoxRunOverlap {
+
+    /**
+     * Test a triangle against boxes differing along z.  Uses the tribox3
+     * arithmetic of TriangleBoxOverlap.Setup.
+     *
+     * @param setup The triangle and box size
+     * @param cx The box centers x
+     * @param cy The box centers y
+     * @param cz The box centers z
+     * @param off The first box in cz and hits
+     * @param num The number of boxes
+     * @param hits Set true for each box overlapped, same index as cz
+     * @return The number of boxes overlapped
+     */
+    public static int overlapsZ(TriangleBoxOverlap.Setup setup,
+        double cx, double cy, double[] cz, int off, int num, boolean[] hits) {
+
+        int ret_val = 0;
+
+        for(int n=off; n < off + num; n++) {
+            hits[n] = setup.overlaps(cx, cy, cz[n]);
+
+            if (hits[n])
+                ret_val++;
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Test a triangle against boxes differing along x.  Uses the single
+     * precision arithmetic of TriangleBoxOverlap.triBoxOverlap.
+     *
+     * @param coords The triangle coordinates, 9 values
+     * @param cx The box centers x
+     * @param cy The box centers y
+     * @param cz The box centers z
+     * @param ex The box half size in x
+     * @param ey The box half size in y
+     * @param ez The box half size in z
+     * @param off The first box in cx and hits
+     * @param num The number of boxes
+     * @param hits Set true for each box overlapped, same index as cx
+     * @return The number of boxes overlapped
+     */
+    public static int overlapsX(float[] coords, float[] cx, float cy, float cz,
+        float ex, float ey, float ez, int off, int num, boolean[] hits) {
+
+        int ret_val = 0;
+
+        for(int n=off; n < off + num; n++) {
+            hits[n] = TriangleBoxOverlap.triBoxOverlap(coords, 0, cx[n], cy, cz, ex, ey, ez);
+
+            if (hits[n])
+                ret_val++;
+        }
+
+        return ret_val;
+    }
+}
@@ -0,0 +1,197 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+
+// Internal Imports
+// None
+
+/**
+ * A sorted list of the occupied cells of a VoxelStore.
+ * <p>
+ *
+ * Box queries walk the sorted keys and jump over runs of keys outside the
+ * box with a binary search, so the cost depends on the occupied cells near
+ * the box rather than its volume.  An index is a snapshot, it goes stale
+ * once a cell is added to or removed from the store.  Instances are
+ * immutable.
+ *
+ * @version $Id: $
+ */
+class CellIndex {
+
+    /** The store this index was built from */
+    private final VoxelStore store;
+
+    /** The layout of the keys */
+    private final CellKey.Order order;
+
+    /** The store modification count when built */
+    private final int modCount;
+
+    /** The occupied cell keys in increasing order */
+    private final long[] keys;
+
+    /** The store slot of each key */
+    private final int[] slots;
+
+    /**
+     * Build an index of the current cells of a store.
+     *
+     * @param store The store to index
+     * @param order The layout of the stores keys
+     */
+    CellIndex(VoxelStore store, CellKey.Order order) {
+        this.store = store;
+        this.order = order;
+        modCount = store.getModCount();
+
+        final int cells = store.size();
+        final int cap = store.capacity();
+
+        keys = new long[cells];
+        slots = new int[cells];
+
+        int idx = 0;
+
+        for(int slot=0; slot < cap; slot++) {
+            long key = store.getKey(slot);
+
+            if (key != VoxelStore.EMPTY_KEY)
+                keys[idx++] = key;
+        }
+
+        Arrays.sort(keys);
+
+        for(int n=0; n < cells; n++) {
+            slots[n] = store.findSlot(keys[n]);
+        }
+    }
+
+    /**
+     * Is this index still valid for a store.
+     *
+     * @param vs The store to check against
+     * @return true if the index matches the stores cells
+     */
+    boolean isCurrent(VoxelStore vs) {
+        return vs == store && vs.getModCount() == modCount;
+    }
+
+    /**
+     * Get the number of cells indexed.
+     *
+     * @return The cell count
+     */
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * Get the sorted keys.  The array must not be changed.
+     *
+     * @return The keys
+     */
+    long[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get the store slot of an indexed cell.
+     *
+     * @param n The index position
+     * @return The slot
+     */
+    int getSlot(int n) {
+        return slots[n];
+    }
+
+    /**
+     * Find the next cell inside a box.
+     *
+     * @param from The position to start looking at
+     * @param min The min cell coords, inclusive
+     * @param max The max cell coords, inclusive
+     * @return The position or -1 if no more cells are in the box
+     */
+    int next(int from, int[] min, int[] max) {
+        return next(order, keys, from, keys.length, min, max);
+    }
+
+    /**
+     * Find the next key inside a box in a sorted list of keys.  Keys
+     * outside the box are skipped by searching for the next key the box
+     * can contain, so only the key ranges making up the box are visited.
+     *
+     * @param order The layout of the keys
+     * @param keys The sorted keys
+     * @param from The position to start looking at
+     * @param end The end of the keys, exclusive
+     * @param min The min cell coords, inclusive
+     * @param max The max cell coords, inclusive
+     * @return The position or -1 if no more keys are in the box
+     */
+    static int next(CellKey.Order order, long[] keys, int from, int end,
+        int[] min, int[] max) {
+
+        final long last = order.pack(max[0], max[1], max[2]);
+
+        int idx = from;
+
+        while(idx < end) {
+            long key = keys[idx];
+
+            if (key > last)
+                return -1;
+
+            if (order.contains(key, min, max))
+                return idx;
+
+            long next_key = order.nextInBox(key, min, max);
+
+            if (next_key < 0)
+                return -1;
+
+            idx = lowerBound(keys, idx + 1, end, next_key);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the first key greater or equal to a key.
+     *
+     * @param keys The sorted keys
+     * @param from The first position to search
+     * @param end The end of the search, exclusive
+     * @param key The key to find
+     * @return The position, end if all keys are smaller
+     */
+    static int lowerBound(long[] keys, int from, int end, long key) {
+        int lo = from;
+        int hi = end;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (keys[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+}
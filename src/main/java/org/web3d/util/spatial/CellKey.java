@@ -0,0 +1,333 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Utility methods for encoding a voxel coordinate into a single primitive
+ * long key.
+ * <p>
+ *
+ * Each axis gets 21 bits, so the packed key is always non-negative and
+ * coordinates up to 2097151 can be represented.  The x coordinate occupies
+ * the highest bits, so sorting packed keys orders cells by x, then y, then z.
+ * <p>
+ *
+ * Morton keys interleave the bits of the three axes instead, x in the
+ * highest bit of each triple.  Sorting Morton keys orders cells along a
+ * Z-order curve, so cells close in space are mostly close in key order.
+ * {@link Order} selects between the two layouts.
+ *
+ * @version $Id: $
+ */
+public abstract class CellKey {
+
+    /** The number of bits used per axis */
+    public static final int BITS_PER_AXIS = 21;
+
+    /** The largest coordinate value that can be encoded */
+    public static final int MAX_COORD = (1 << BITS_PER_AXIS) - 1;
+
+    /** Mask for a single axis */
+    private static final long AXIS_MASK = MAX_COORD;
+
+    /** The bits of the lowest axis in a Morton key, every third bit */
+    private static final long MORTON_AXIS_MASK = 0x1249249249249249L;
+
+    /**
+     * The ways cell coordinates can be laid out in a key.
+     */
+    public enum Order {
+        /** x in the high bits, then y, then z.  Sorted keys run along z */
+        LINEAR,
+
+        /** Bits interleaved along a Z-order curve */
+        MORTON;
+
+        /**
+         * Encode a voxel coordinate.
+         *
+         * @param x The x coord
+         * @param y The y coord
+         * @param z The z coord
+         * @return The key
+         */
+        public long pack(int x, int y, int z) {
+            if (this == MORTON)
+                return morton(x, y, z);
+
+            return CellKey.pack(x, y, z);
+        }
+
+        /**
+         * Decode one axis of a key.
+         *
+         * @param key The key
+         * @param axis The axis, 0 = x, 1 = y, 2 = z
+         * @return The coordinate
+         */
+        public int unpack(long key, int axis) {
+            if (this == MORTON)
+                return compact(key >>> (2 - axis));
+
+            return (int) ((key >>> ((2 - axis) * BITS_PER_AXIS)) & AXIS_MASK);
+        }
+
+        /**
+         * Is a key inside a box of cells.
+         *
+         * @param key The key
+         * @param min The min cell coords, inclusive
+         * @param max The max cell coords, inclusive
+         * @return true if inside
+         */
+        public boolean contains(long key, int[] min, int[] max) {
+            for(int i=0; i < 3; i++) {
+                int c = unpack(key, i);
+
+                if (c < min[i] || c > max[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Find the smallest key greater than a key which is inside a box.
+         * Walking sorted keys with this visits only the key ranges that
+         * make up the box.
+         *
+         * @param key The key to start after
+         * @param min The min cell coords, inclusive
+         * @param max The max cell coords, inclusive
+         * @return The next key or -1 if there are no more in the box
+         */
+        public long nextInBox(long key, int[] min, int[] max) {
+            if (this == MORTON) {
+                long zmin = morton(min[0], min[1], min[2]);
+                long zmax = morton(max[0], max[1], max[2]);
+
+                if (key < zmin)
+                    return zmin;
+
+                if (key >= zmax)
+                    return -1;
+
+                return nextMortonInBox(key, zmin, zmax);
+            }
+
+            int x = unpackX(key);
+            int y = unpackY(key);
+            int z = unpackZ(key);
+
+            if (x < min[0])
+                return CellKey.pack(min[0], min[1], min[2]);
+
+            if (x > max[0])
+                return -1;
+
+            if (y < min[1])
+                return CellKey.pack(x, min[1], min[2]);
+
+            if (y <= max[1]) {
+                if (z < min[2])
+                    return CellKey.pack(x, y, min[2]);
+
+                if (z < max[2])
+                    return key + 1;
+
+                if (y < max[1])
+                    return CellKey.pack(x, y + 1, min[2]);
+            }
+
+            if (x < max[0])
+                return CellKey.pack(x + 1, min[1], min[2]);
+
+            return -1;
+        }
+    }
+
+    /**
+     * Pack a voxel coordinate into a key.  Coordinates must be in the range
+     * 0 to MAX_COORD, no checking is done.
+     *
+     * @param x The x coord
+     * @param y The y coord
+     * @param z The z coord
+     * @return The packed key
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) x << (2 * BITS_PER_AXIS)) |
+               ((long) y << BITS_PER_AXIS) |
+               (long) z;
+    }
+
+    /**
+     * Get the x coordinate of a packed key.
+     *
+     * @param key The packed key
+     * @return The x coord
+     */
+    public static int unpackX(long key) {
+        return (int) ((key >>> (2 * BITS_PER_AXIS)) & AXIS_MASK);
+    }
+
+    /**
+     * Get the y coordinate of a packed key.
+     *
+     * @param key The packed key
+     * @return The y coord
+     */
+    public static int unpackY(long key) {
+        return (int) ((key >>> BITS_PER_AXIS) & AXIS_MASK);
+    }
+
+    /**
+     * Get the z coordinate of a packed key.
+     *
+     * @param key The packed key
+     * @return The z coord
+     */
+    public static int unpackZ(long key) {
+        return (int) (key & AXIS_MASK);
+    }
+
+    /**
+     * Interleave a voxel coordinate into a Morton key.  Coordinates must be
+     * in the range 0 to MAX_COORD, no checking is done.
+     *
+     * @param x The x coord
+     * @param y The y coord
+     * @param z The z coord
+     * @return The Morton key
+     */
+    public static long morton(int x, int y, int z) {
+        return (spread(x) << 2) | (spread(y) << 1) | spread(z);
+    }
+
+    /**
+     * Get the x coordinate of a Morton key.
+     *
+     * @param key The Morton key
+     * @return The x coord
+     */
+    public static int mortonX(long key) {
+        return compact(key >>> 2);
+    }
+
+    /**
+     * Get the y coordinate of a Morton key.
+     *
+     * @param key The Morton key
+     * @return The y coord
+     */
+    public static int mortonY(long key) {
+        return compact(key >>> 1);
+    }
+
+    /**
+     * Get the z coordinate of a Morton key.
+     *
+     * @param key The Morton key
+     * @return The z coord
+     */
+    public static int mortonZ(long key) {
+        return compact(key);
+    }
+
+    /**
+     * Find the smallest Morton key greater than a key which lies inside the
+     * box between two corner keys.  This is the BIGMIN calculation of Tropf
+     * and Herzog extended to three axes.  The key must be between the two
+     * corners.
+     *
+     * @param key The key to start after
+     * @param zmin The Morton key of the min corner
+     * @param zmax The Morton key of the max corner
+     * @return The next key or -1 if there are no more in the box
+     */
+    public static long nextMortonInBox(long key, long zmin, long zmax) {
+        long ret_val = -1;
+        long min = zmin;
+        long max = zmax;
+
+        for(int bit = 3 * BITS_PER_AXIS - 1; bit >= 0; bit--) {
+            long mask = 1L << bit;
+
+            // The lower bits belonging to the same axis as this bit
+            long lower = (MORTON_AXIS_MASK << (bit % 3)) & (mask - 1);
+
+            boolean k = (key & mask) != 0;
+            boolean lo = (min & mask) != 0;
+            boolean hi = (max & mask) != 0;
+
+            if (!k) {
+                if (lo)
+                    return min;
+
+                if (hi) {
+                    ret_val = (min & ~lower) | mask;
+                    max = (max & ~mask) | lower;
+                }
+            } else if (!lo) {
+                if (!hi)
+                    return ret_val;
+
+                min = (min & ~lower) | mask;
+            }
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Spread the low 21 bits of a value out to every third bit.
+     *
+     * @param val The value
+     * @return The spread bits
+     */
+    private static long spread(int val) {
+        long x = val & AXIS_MASK;
+
+        x = (x | (x << 32)) & 0x001F00000000FFFFL;
+        x = (x | (x << 16)) & 0x001F0000FF0000FFL;
+        x = (x | (x << 8))  & 0x100F00F00F00F00FL;
+        x = (x | (x << 4))  & 0x10C30C30C30C30C3L;
+        x = (x | (x << 2))  & MORTON_AXIS_MASK;
+
+        return x;
+    }
+
+    /**
+     * Gather every third bit of a value back into 21 bits.
+     *
+     * @param key The spread bits, in the lowest bit of each triple
+     * @return The value
+     */
+    private static int compact(long key) {
+        long x = key & MORTON_AXIS_MASK;
+
+        x = (x ^ (x >>> 2))  & 0x10C30C30C30C30C3L;
+        x = (x ^ (x >>> 4))  & 0x100F00F00F00F00FL;
+        x = (x ^ (x >>> 8))  & 0x001F0000FF0000FFL;
+        x = (x ^ (x >>> 16)) & 0x001F00000000FFFFL;
+        x = (x ^ (x >>> 32)) & AXIS_MASK;
+
+        return (int) x;
+    }
+}
@@ -70,4 +70,44 @@ public class CellRegion implements Region {
     public int getZ() {
         return z;
     }
+
+    /**
+     * Compare this object for equality to the given object.
+     *
+     * @param o The object to be compared
+     * @return True if these represent the same values
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof CellRegion))
+            return false;
+        else
+            return equals((CellRegion)o);
+    }
+
+    /**
+     * Compares this object with the specified object to check for equivalence.
+     *
+     * @param ta The geometry instance to be compared
+     * @return true if the objects represent identical values
+     */
+    public boolean equals(CellRegion ta) {
+        return x == ta.x && y == ta.y && z == ta.z;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret_val = x;
+
+        ret_val = 31 * ret_val + y;
+        ret_val = 31 * ret_val + z;
+
+        return ret_val;
+    }
+
+    @Override
+    public String toString() {
+        return "CellRegion@" + this.hashCode() + " x: " + x + " y: " + y + " z: " + z;
+    }
 }
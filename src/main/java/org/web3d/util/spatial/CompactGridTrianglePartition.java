@@ -0,0 +1,261 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+import org.web3d.util.IntHashSet;
+
+/**
+ * A read only snapshot of a GridTrianglePartition stored in compressed
+ * sparse row form.
+ * <p>
+ *
+ * The occupied cells are kept as a sorted array of cell keys.  The ids for
+ * cell n are stored contiguously in a single id array between offsets[n]
+ * and offsets[n + 1].  Queries walk the key array, jumping over keys
+ * outside the query box with binary searches, and then stream the id array.
+ * <p>
+ *
+ * Instances are immutable so any number of threads may query them.
+ *
+ * @version $Id: $
+ */
+public class CompactGridTrianglePartition implements SpatialPartition {
+
+    /** The voxel size */
+    private final double voxelSize;
+
+    /** The number of voxels each axis */
+    private final int numVoxels;
+
+    /** The layout of the cell keys */
+    private final CellKey.Order order;
+
+    /** The occupied cell keys in increasing order */
+    private final long[] cellKeys;
+
+    /** Where each cells ids start in the ids array.  Has cells + 1 entries */
+    private final int[] offsets;
+
+    /** The triangle ids of all cells */
+    private final int[] ids;
+
+    /** The triangle coordinates, 9 values per id */
+    private final float[] triCoords;
+
+    /**
+     * Constructor.  The arrays are used directly, not copied.
+     *
+     * @param voxelSize The size of each voxel in meters
+     * @param numVoxels The number of voxels in each axis
+     * @param order The layout of the cell keys
+     * @param cellKeys The occupied cells keys, sorted increasing
+     * @param offsets The start of each cells ids, one more than cells
+     * @param ids The ids of all cells
+     * @param triCoords The triangle coordinates, 9 values per id
+     */
+    CompactGridTrianglePartition(double voxelSize, int numVoxels,
+        CellKey.Order order, long[] cellKeys, int[] offsets, int[] ids, float[] triCoords) {
+
+        this.voxelSize = voxelSize;
+        this.numVoxels = numVoxels;
+        this.order = order;
+        this.cellKeys = cellKeys;
+        this.offsets = offsets;
+        this.ids = ids;
+        this.triCoords = triCoords;
+    }
+
+    //-------------------------------------------------------------
+    // Methods defined by SpatialPartition
+    //-------------------------------------------------------------
+
+    /**
+     * Not supported, the structure is read only.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void clear() {
+        throw new UnsupportedOperationException("Compact partitions are read only");
+    }
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles or null if none
+     */
+    public int[] getObjects(Region region) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        if (region instanceof CellRegion) {
+            int idx = findCell(order.pack(min[0], min[1], min[2]));
+
+            if (idx < 0)
+                return null;
+
+            int len = offsets[idx + 1] - offsets[idx];
+            int[] ret_val = new int[len];
+            System.arraycopy(ids, offsets[idx], ret_val, 0, len);
+
+            return ret_val;
+        }
+
+        return getObjects(min, max);
+    }
+
+    /**
+     * Gets the objects in the specified region.  When exact is set and the
+     * region is a WorldRegion, the candidates from the covering cells are
+     * refined with the exact triangle test so only overlapping objects are
+     * returned.  Other regions are cell aligned and exact is ignored.
+     *
+     * @param region The region of interest
+     * @param exact Should world region candidates be refined
+     * @return The objects or null if none
+     */
+    public int[] getObjects(Region region, boolean exact) {
+        int[] ret_val = getObjects(region);
+
+        if (exact && region instanceof WorldRegion)
+            ret_val = RegionBounds.refine((WorldRegion) region, ret_val, triCoords);
+
+        return ret_val;
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @return The objects or null if none
+     */
+    public int[] getObjects(int[] min, int[] max) {
+        IntHashSet<Integer> set = new IntHashSet<Integer>(53);
+
+        final int cells = cellKeys.length;
+
+        for(int n = CellIndex.next(order, cellKeys, 0, cells, min, max); n >= 0;
+            n = CellIndex.next(order, cellKeys, n + 1, cells, min, max)) {
+
+            int end = offsets[n + 1];
+
+            for(int i=offsets[n]; i < end; i++) {
+                set.add(ids[i]);
+            }
+        }
+
+        if (set.isEmpty()) {
+            return null;
+        }
+
+        return set.toArray();
+    }
+
+    /**
+     * Get the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @param coords The array to copy the 9 coordinates into
+     */
+    public void getTriangle(int id, float[] coords) {
+        System.arraycopy(triCoords, id * TriangleStore.STRIDE, coords, 0, TriangleStore.STRIDE);
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        float[] ret_val = new float[TriangleStore.STRIDE];
+
+        getTriangle(id, ret_val);
+
+        return ret_val;
+    }
+
+    /**
+     * Get the voxel size.
+     *
+     * @return The size of each voxel in meters
+     */
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * Get the number of voxels per side.
+     *
+     * @return The voxel count
+     */
+    public int getNumVoxels() {
+        return numVoxels;
+    }
+
+    /**
+     * Get the layout of the cell keys.
+     *
+     * @return The key order
+     */
+    public CellKey.Order getCellOrder() {
+        return order;
+    }
+
+    /**
+     * Get the number of occupied cells.
+     *
+     * @return The cell count
+     */
+    public int getNumCells() {
+        return cellKeys.length;
+    }
+
+    /**
+     * Get the number of ids stored over all cells.
+     *
+     * @return The id count
+     */
+    public int getNumIds() {
+        return ids.length;
+    }
+
+    /**
+     * Find the index of a cell.
+     *
+     * @param key The cell key
+     * @return The index or -1 if the cell is empty
+     */
+    private int findCell(long key) {
+        int idx = CellIndex.lowerBound(cellKeys, 0, cellKeys.length, key);
+
+        if (idx < cellKeys.length && cellKeys[idx] == key)
+            return idx;
+
+        return -1;
+    }
+}
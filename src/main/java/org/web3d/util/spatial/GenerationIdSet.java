@@ -0,0 +1,105 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+
+// Internal Imports
+// None
+
+/**
+ * A reusable set of small non-negative ids used to remove duplicates from
+ * query results.
+ * <p>
+ *
+ * Each id has a stamp slot.  An id is in the set when its stamp equals the
+ * current generation, so clearing the set is just a generation increment
+ * rather than a pass over the whole table.  The table is sized to the
+ * largest id and only grows, so after warm up adding and clearing create
+ * no garbage.
+ * <p>
+ *
+ * This class is not thread-safe.  Use one instance per querying thread.
+ *
+ * @version $Id: $
+ */
+public class GenerationIdSet {
+
+    /** The generation each id was last added in */
+    private int[] stamps;
+
+    /** The current generation, never 0 */
+    private int generation;
+
+    /**
+     * Constructor.
+     *
+     * @param maxIds The number of ids expected, valid ids are 0 to maxIds - 1
+     */
+    public GenerationIdSet(int maxIds) {
+        stamps = new int[Math.max(maxIds, 1)];
+        generation = 1;
+    }
+
+    /**
+     * Remove all ids from the set.
+     */
+    public void clear() {
+        generation++;
+
+        if (generation == 0) {
+            // Wrapped, old stamps could now match so wipe them
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Make sure ids up to maxIds - 1 can be stored without growing.
+     *
+     * @param maxIds The number of ids needed
+     */
+    public void ensureCapacity(int maxIds) {
+        if (maxIds > stamps.length)
+            stamps = Arrays.copyOf(stamps, Math.max(maxIds, stamps.length + (stamps.length >> 1)));
+    }
+
+    /**
+     * Add an id to the set.
+     *
+     * @param id The id, must not be negative
+     * @return true if the id was not already in the set
+     */
+    public boolean add(int id) {
+        if (id >= stamps.length)
+            ensureCapacity(id + 1);
+
+        if (stamps[id] == generation)
+            return false;
+
+        stamps[id] = generation;
+
+        return true;
+    }
+
+    /**
+     * Check if an id is in the set.
+     *
+     * @param id The id
+     * @return true if present
+     */
+    public boolean contains(int id) {
+        return id >= 0 && id < stamps.length && stamps[id] == generation;
+    }
+}
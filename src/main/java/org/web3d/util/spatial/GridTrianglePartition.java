@@ -14,17 +14,31 @@ package org.web3d.util.spatial;
 
 // External Imports
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.NumberFormat;
 
 //import toxi.geom.Vec3D;
 import toxi.math.MathUtils;
 
 // Internal Imports
+import org.web3d.util.IntArray;
+import org.web3d.util.IntHashMap;
 import org.web3d.util.IntHashSet;
 import java.math.*;
 
 /**
  * A spatial structure using a grid pattern and triangle objects.
+ * <p>
+ *
+ * Inserting is not thread-safe.  Once built, the query methods use no
+ * shared scratch state so any number of threads can query the same
+ * partition without locking.  Call setReadOnly(true) after building to
+ * guard against accidental changes while readers are active.
  *
  * @author Alan Hudson
  * @version $Id: $
@@ -34,6 +48,12 @@ public class GridTrianglePartition implements SpatialPartition {
     /** A typical factor of exterior voxels in a grid */
     private static final float EXTERIOR_FACTOR = 0.0008f;
 
+    /**
+     * The most cells to size the store for up front.  Large grids start at
+     * this and grow as cells are filled.
+     */
+    private static final int MAX_INITIAL_CELLS = 1 << 16;
+
     /** Maximum ratio to detect long thin triangles */
 //    private static final float TRIANGLE_AREA_MIN = 0.000001f;
     private static final float TRIANGLE_RATIO_MAX = 16;
@@ -43,6 +63,21 @@ public class GridTrianglePartition implements SpatialPartition {
 
     private static final boolean COLLECT_STATS = true;
 
+    /** The minimum number of triangles given to a parallel insert task */
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+
+    /** The most shards a parallel insert merges its cells in, as log2 */
+    private static final int MAX_SHARD_BITS = 8;
+
+    /** The maximum number of points given to a closest point task */
+    private static final int POINTS_PER_TASK = 256;
+
+    /** Room for a triangle clipped by four planes, 3 values per vertex */
+    private static final int SCAN_POLY_SIZE = 7 * 3;
+
+    /** Scanline clip padding as a fraction of the voxel size */
+    private static final double SCAN_TOLERANCE = 1e-3;
+
     /** The voxel size */
     private double voxelSize;
 
@@ -64,8 +99,11 @@ public class GridTrianglePartition implements SpatialPartition {
     /** Half number of voxels for quick math */
     private int half;
 
-    /** The triangles by voxel. */
-    private Map<VoxelCoordinate, int[]> data;
+    /** The triangles by voxel, keyed by CellKey */
+    private VoxelStore data;
+
+    /** The layout of the cell keys */
+    private CellKey.Order cellOrder;
 
     /** Scratch variables */
     private float[] minBounds;
@@ -74,7 +112,6 @@ public class GridTrianglePartition implements SpatialPartition {
     private int[] maxCoords;
     private int[] gpos;
     private float[] wpos;
-    private VoxelCoordinate svc;
 
     // Stats
     /** How many cells have been filled by inserts */
@@ -84,22 +121,53 @@ public class GridTrianglePartition implements SpatialPartition {
 
     // Scratch vars
     private float[] vcoords;
-    private Vec3DDouble vmin;
-    private Vec3DDouble vmax;
     private float[] lineeq;
     private float[] linea;
     private float[] lineb;
 
-    private float[][] triMapping;
+    /** The triangle coordinates by id */
+    private TriangleStore triMapping;
+
+    /** Are changes rejected, set once the partition is shared by readers */
+    private volatile boolean readOnly;
+
+    /** Sorted occupied cells, built on demand by large queries */
+    private volatile CellIndex cellIndex;
+
+    /** Cached region query results, null when caching is off */
+    private volatile RegionResultCache resultCache;
+
+    /** Count of changes, cached results from an older count are dropped */
+    private volatile int editEpoch;
+
+    /** Where operations are recorded, null when not recording */
+    private volatile PartitionMetrics metrics;
+
+    /** Should exact fills walk the triangle slab by slab instead of its box */
+    private boolean scanlineFill;
 
     /** The next triangleID to use */
     private int nextID;
 
+    /** The first id for split triangles, nextID goes back to it on clear */
+    private final int firstSplitID;
+
     private int splitDepth;
 
-    private Vec3DDouble v0;
-    private Vec3DDouble v1;
-    private Vec3DDouble v2;
+    /**
+     * The first of each pair of ids split from a triangle by exact inserts,
+     * IntArray by id
+     */
+    private IntHashMap splitChildren;
+
+    /** The first of each pair of split ids freed by removes */
+    private IntArray freeSplitIDs;
+
+    /** Scratch for marking the cells of one exact insert */
+    private FillScratch fillScratch;
+
+    /** Scratch for testing one triangle against its cells */
+    private TriangleBoxOverlap.Setup boxTest;
 
     /**
      * Constructor.
@@ -108,11 +176,33 @@ public class GridTrianglePartition implements SpatialPartition {
      * @param numVoxelsPerSide The number of voxels in each axis.  Must be even.
      */
     public GridTrianglePartition(double voxelSize, int numVoxelsPerSide, int numTris) {
+        this(voxelSize, numVoxelsPerSide, numTris, CellKey.Order.LINEAR);
+    }
+
+    /**
+     * Constructor.  Morton ordered keys keep cells which are close in space
+     * close in the sorted cell index and in compact or written copies,
+     * which helps box queries touching many occupied cells.
+     *
+     * @param voxelSize The size of each voxel in meters.
+     * @param numVoxelsPerSide The number of voxels in each axis.  Must be even.
+     * @param order The layout of the cell keys
+     */
+    public GridTrianglePartition(double voxelSize, int numVoxelsPerSide,
+        int numTris, CellKey.Order order) {
+
         if (numVoxelsPerSide % 2 != 0)
             throw new IllegalArgumentException("Number of voxels per side must be even");
 
-        triMapping = new float[numTris][9];
+        if (numVoxelsPerSide > CellKey.MAX_COORD + 1)
+            throw new IllegalArgumentException("Number of voxels per side must be <= " + (CellKey.MAX_COORD + 1));
+
+        triMapping = new TriangleStore(numTris);
+        splitChildren = new IntHashMap();
+        freeSplitIDs = new IntArray();
         nextID = numTris;
+        firstSplitID = numTris;
+        cellOrder = order;
 
         this.voxelSize = voxelSize;
         halfVoxel = voxelSize / 2.0;
@@ -127,28 +217,24 @@ public class GridTrianglePartition implements SpatialPartition {
 //System.out.println("Initialize spatial grid at: " + numVoxels + " tot: " + (numVoxels * numVoxels) + " size: " + voxelSize);
 
         long grid_size = (long) numVoxelsPerSide * numVoxelsPerSide * numVoxelsPerSide;
-        int size = Math.round(grid_size * EXTERIOR_FACTOR);
+        int size = Math.min(Math.round(grid_size * EXTERIOR_FACTOR), MAX_INITIAL_CELLS);
 
 //        System.out.println("Max HashMap size: " + grid_size + " start: " + size);
-        data = new HashMap<VoxelCoordinate, int[]>(size);
+        data = new VoxelStore(size);
         minBounds = new float[3];
         maxBounds = new float[3];
         minCoords = new int[3];
         maxCoords = new int[3];
 
         vcoords = new float[3];
-        vmin = new Vec3DDouble();
-        vmax = new Vec3DDouble();
         lineeq = new float[6];
         linea = new float[3];
         lineb = new float[3];
         gpos = new int[3];
         wpos = new float[3];
 
-        svc = new VoxelCoordinate(0,0,0);
-        v0 = new Vec3DDouble(0,0,0);
-        v1 = new Vec3DDouble(0,0,0);
-        v2 = new Vec3DDouble(0,0,0);
+        boxTest = new TriangleBoxOverlap.Setup();
+        fillScratch = new FillScratch();
     }
 
     //-------------------------------------------------------------
@@ -157,10 +243,24 @@ public class GridTrianglePartition implements SpatialPartition {
 
 
     /**
-     * Clear the structure of all data.
+     * Clear the structure of all data.  The cell table keeps its size so the
+     * partition can be refilled without growing it again.
      */
     public void clear() {
-        data = null;
+        checkWritable();
+        editEpoch++;
+
+        data.clear();
+        triMapping.clear();
+        splitChildren.clear();
+        freeSplitIDs.clear();
+        nextID = firstSplitID;
+        cellIndex = null;
+
+        if (COLLECT_STATS) {
+            cellsFilled = 0;
+            numInserts = 0;
+        }
     }
 
     /**
@@ -172,287 +272,1227 @@ public class GridTrianglePartition implements SpatialPartition {
      * @return objs The list of triangles
      */
     public int[] getObjects(Region region) {
+        return recordedObjects(region, true);
+    }
+
+    /**
+     * Gets the objects in the specified region without copying a cached
+     * result.  With the result cache on, a repeated query returns the same
+     * array as earlier callers in O(1), so the array is read only and must
+     * not be changed.  Otherwise the same as getObjects(Region).
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles, shared with other callers
+     */
+    public int[] getObjectsShared(Region region) {
+        return recordedObjects(region, false);
+    }
+
+    /**
+     * Find the objects in a region, recording the query if metrics are on.
+     *
+     * @param region The region of interest.
+     * @param copy Should a cached result be copied for the caller
+     * @return objs The list of triangles
+     */
+    private int[] recordedObjects(Region region, boolean copy) {
+        PartitionMetrics m = metrics;
 
-        int[] ret_val = null;
+        if (m == null)
+            return cachedObjects(region, copy);
+
+        long start = m.startTimer();
+        int[] ret_val = cachedObjects(region, copy);
+
+        m.recordQuery(region, start, (ret_val == null) ? 0 : ret_val.length);
+
+        return ret_val;
+    }
+
+    /**
+     * Find the objects in a region, using the result cache if it is on.
+     *
+     * @param region The region of interest.
+     * @param copy Should a cached result be copied for the caller
+     * @return objs The list of triangles
+     */
+    private int[] cachedObjects(Region region, boolean copy) {
+        RegionResultCache cache = resultCache;
+
+        if (cache == null)
+            return findObjects(region);
+
+        int epoch = editEpoch;
+        int[] ret_val = cache.get(region, epoch);
+
+        if (ret_val != null) {
+            ret_val = RegionResultCache.getResult(ret_val);
+        } else {
+            ret_val = findObjects(region);
+            cache.put(region, epoch, ret_val);
+        }
+
+        return (copy && ret_val != null) ? ret_val.clone() : ret_val;
+    }
+
+    /**
+     * Set the number of region query results to cache.  Repeated
+     * getObjects(Region) calls with an equal region are then answered from
+     * the cache until the next change to the partition.  Each caller gets
+     * its own copy of a cached result, use getObjectsShared to skip the
+     * copy.  Queries share the cache without locking.
+     *
+     * @param maxEntries The number of results to keep, rounded up to a
+     *    power of 2, 0 to stop caching
+     */
+    public void setResultCacheSize(int maxEntries) {
+        resultCache = (maxEntries > 0) ? new RegionResultCache(maxEntries) : null;
+    }
+
+    /**
+     * Get the number of region queries answered from the result cache.
+     *
+     * @return The hit count, 0 if caching is off
+     */
+    public long getCacheHits() {
+        RegionResultCache cache = resultCache;
+
+        return (cache == null) ? 0 : cache.getHits();
+    }
+
+    /**
+     * Get the number of region queries not answered from the result cache.
+     *
+     * @return The miss count, 0 if caching is off
+     */
+    public long getCacheMisses() {
+        RegionResultCache cache = resultCache;
+
+        return (cache == null) ? 0 : cache.getMisses();
+    }
+
+    /**
+     * Set where inserts, removes and region queries are recorded.
+     *
+     * @param metrics The metrics to record into, null to stop recording
+     */
+    public void setMetrics(PartitionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get where operations are recorded.
+     *
+     * @return The metrics or null if not recording
+     */
+    public PartitionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set how exact inserts find their cells.  When on, the triangle is
+     * clipped to each x slab and then each y row of its cell box, and only
+     * the cells under the clipped piece are given the overlap test.  The
+     * cells marked are the same as testing the whole box, but large
+     * slanted triangles test a number of cells near their area rather than
+     * their box volume.
+     *
+     * @param scanline true to walk the triangle, false to test its whole box
+     */
+    public void setScanlineFill(boolean scanline) {
+        checkWritable();
+
+        scanlineFill = scanline;
+    }
+
+    /**
+     * Do exact inserts walk the triangle slab by slab.
+     *
+     * @return true if the scanline fill is used
+     */
+    public boolean isScanlineFill() {
+        return scanlineFill;
+    }
+
+    /**
+     * Get the number of cells which contain ids.  Kept as cells change so
+     * no cells are walked.
+     *
+     * @return The cell count
+     */
+    public int getNumOccupiedCells() {
+        return data.size();
+    }
+
+    /**
+     * Get the total number of ids stored over all cells.
+     *
+     * @return The id count
+     */
+    public long getNumCellEntries() {
+        return data.getNumIds();
+    }
+
+    /**
+     * Get the most ids any cell has held since the last clear.
+     *
+     * @return The peak cell count
+     */
+    public int getMaxCellCount() {
+        return data.getMaxCount();
+    }
+
+    /**
+     * Find the objects in a region without the result cache.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles
+     */
+    private int[] findObjects(Region region) {
 
         if (region instanceof CellRegion) {
             CellRegion cell = (CellRegion) region;
 
-            ret_val = getData(cell.getX(),cell.getY(),cell.getZ());
-        } else if (region instanceof SliceRegion) {
-            SliceRegion slice = (SliceRegion) region;
+            return getData(cell.getX(),cell.getY(),cell.getZ());
+        }
 
-            // TODO: implement thread local for minCoords / maxCoords
+        // Local bounds so queries share no state and can run on many threads
+        int[] min = new int[3];
+        int[] max = new int[3];
 
-//            int[] minCoords = new int[3];
-//            int[] maxCoords = new int[3];
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
 
-            switch(slice.getDir()) {
-                case X:
-                    // calc bounds of slice
-                    minCoords[0] = slice.getLoc();
-                    minCoords[1] = 0;
-                    minCoords[2] = 0;
-                    maxCoords[0] = slice.getLoc() + slice.getHeight() - 1;
-                    maxCoords[1] = numVoxels - 1;
-                    maxCoords[2] = numVoxels - 1;
+        return getObjects(min, max);
+    }
 
-                    if (maxCoords[0] >= numVoxels)
-                        maxCoords[0] = numVoxels - 1;
+    /**
+     * Gets the objects in the specified region.  When exact is set and the
+     * region is a WorldRegion, the candidates from the covering cells are
+     * refined with the exact triangle test so only overlapping objects are
+     * returned.  Other regions are cell aligned and exact is ignored.
+     *
+     * @param region The region of interest
+     * @param exact Should world region candidates be refined
+     * @return The objects or null if none
+     */
+    public int[] getObjects(Region region, boolean exact) {
+        int[] ret_val = getObjects(region);
 
-                    ret_val = getObjects(minCoords, maxCoords);
-                    break;
-                case Y:
-                    // calc bounds of slice
-                    minCoords[0] = 0;
-                    minCoords[1] = slice.getLoc();
-                    minCoords[2] = 0;
-                    maxCoords[0] = numVoxels - 1;
-                    maxCoords[1] = slice.getLoc() + slice.getHeight() - 1;
-                    maxCoords[2] = numVoxels - 1;
-
-                    if (maxCoords[1] >= numVoxels)
-                        maxCoords[1] = numVoxels - 1;
-
-                    ret_val = getObjects(minCoords, maxCoords);
-                    break;
-                case Z:
-                    // calc bounds of slice
-                    minCoords[0] = 0;
-                    minCoords[1] = 0;
-                    minCoords[2] = slice.getLoc();
-                    maxCoords[0] = numVoxels - 1;
-                    maxCoords[1] = numVoxels - 1;
-                    maxCoords[2] = slice.getLoc() + slice.getHeight() - 1;
+        if (exact && region instanceof WorldRegion)
+            ret_val = RegionBounds.refine((WorldRegion) region, ret_val, triMapping.getCoords());
+
+        return ret_val;
+    }
 
-                    if (maxCoords[2] >= numVoxels)
-                        maxCoords[2] = numVoxels - 1;
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @return The objects or null if none
+     */
+    public int[] getObjects(int[] min, int[] max) {
 
+        // TODO: not sure of a good guess on size here.
+        IntHashSet<Integer> set = new IntHashSet<Integer>(53);
 
-//System.out.println("Region: " + java.util.Arrays.toString(minCoords) + " max: " + java.util.Arrays.toString(maxCoords));
+        if (useCellIndex(min, max)) {
+            CellIndex index = getCellIndex();
 
-                    ret_val = getObjects(minCoords, maxCoords);
-                    break;
+            for(int n = index.next(0, min, max); n >= 0; n = index.next(n + 1, min, max)) {
+                addIds(index.getSlot(n), set);
             }
-        } else if (region instanceof TunnelRegion) {
-            TunnelRegion slice = (TunnelRegion) region;
+        } else {
+            for(int i = min[0]; i <= max[0]; i++) {
+                for(int j = min[1]; j <= max[1]; j++) {
+                    for(int k = min[2]; k <= max[2]; k++) {
+                        int slot = data.findSlot(cellOrder.pack(i,j,k));
 
-//            int[] minCoords = new int[3];
-//            int[] maxCoords = new int[3];
+                        if (slot >= 0)
+                            addIds(slot, set);
+                    }
+                }
+            }
+        }
 
-            final int height = slice.getHeight();
+        if (set.isEmpty()) {
+            return null;
+        }
 
-            switch(slice.getDir()) {
-                case X:
-                    // calc bounds of slice
-                    minCoords[0] = 0;
-                    minCoords[1] = slice.getLoc1() - height;
-                    minCoords[2] = slice.getLoc2() - height;
-                    maxCoords[0] = numVoxels - 1;
-                    maxCoords[1] = slice.getLoc1() + height;
-                    maxCoords[2] = slice.getLoc2() + height;
+        int[] ret_val = set.toArray();
 
-                    if (height > 0) {
-                        if (minCoords[1] < 0)
-                            minCoords[1] = 0;
+        return ret_val;
+    }
 
-                        if (minCoords[2] < 0)
-                            minCoords[2] = 0;
+    /**
+     * Gets the objects in the specified region without allocating a result.
+     * Each object is passed to the sink once.  The seen set is cleared
+     * first and used to remove duplicates, so it must not be shared between
+     * threads.
+     *
+     * @param region The region of interest
+     * @param sink Receives each object id
+     * @param seen Scratch used to remove duplicates
+     * @return The number of objects found
+     */
+    public int getObjects(Region region, IntResultSink sink, GenerationIdSet seen) {
+        PartitionMetrics m = metrics;
+        long start = (m == null) ? 0 : m.startTimer();
 
-                        if (maxCoords[1] >= numVoxels)
-                            maxCoords[1] = numVoxels - 1;
+        int[] min = new int[3];
+        int[] max = new int[3];
 
-                        if (maxCoords[2] >= numVoxels)
-                            maxCoords[2] = numVoxels - 1;
-                    }
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
 
-//System.out.println("Region: " + java.util.Arrays.toString(minCoords) + " max: " + java.util.Arrays.toString(maxCoords));
+        int ret_val = collectObjects(min, max, seen, sink, null);
 
-                        ret_val = getObjects(minCoords, maxCoords);
-                        break;
-                case Y:
-                    // calc bounds of slice
-                    minCoords[0] = slice.getLoc1() - height;
-                    minCoords[1] = 0;
-                    minCoords[2] = slice.getLoc2() - height;
-                    maxCoords[0] = slice.getLoc1() + height;
-                    maxCoords[1] = numVoxels - 1;
-                    maxCoords[2] = slice.getLoc2() + height;
-
-                    if (height > 0) {
-                        if (minCoords[0] < 0)
-                            minCoords[0] = 0;
-
-                        if (minCoords[2] < 0)
-                            minCoords[2] = 0;
-
-                        if (maxCoords[0] >= numVoxels)
-                            maxCoords[0] = numVoxels - 1;
-
-                        if (maxCoords[2] >= numVoxels)
-                            maxCoords[2] = numVoxels - 1;
+        if (m != null)
+            m.recordQuery(region, start, ret_val);
+
+        return ret_val;
+    }
+
+    /**
+     * Gets the objects in the specified region into a caller supplied array.
+     * If more objects are found than fit, the extra are dropped but still
+     * counted so the caller can grow the array and retry.  The seen set is
+     * cleared first and used to remove duplicates, so it must not be shared
+     * between threads.
+     *
+     * @param region The region of interest
+     * @param out The array to fill with object ids
+     * @param seen Scratch used to remove duplicates
+     * @return The number of objects found, may be more than out.length
+     */
+    public int getObjects(Region region, int[] out, GenerationIdSet seen) {
+        PartitionMetrics m = metrics;
+        long start = (m == null) ? 0 : m.startTimer();
+
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        int ret_val = collectObjects(min, max, seen, null, out);
+
+        if (m != null)
+            m.recordQuery(region, start, ret_val);
+
+        return ret_val;
+    }
+
+    /**
+     * Walk a box of cells handing each unique id to a sink or array.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @param seen Scratch used to remove duplicates
+     * @param sink Receives each object id, or null to use out
+     * @param out The array to fill when sink is null
+     * @return The number of objects found
+     */
+    private int collectObjects(int[] min, int[] max, GenerationIdSet seen,
+        IntResultSink sink, int[] out) {
+
+        seen.clear();
+        seen.ensureCapacity(nextID);
+
+        int cnt = 0;
+
+        if (useCellIndex(min, max)) {
+            CellIndex index = getCellIndex();
+
+            for(int n = index.next(0, min, max); n >= 0; n = index.next(n + 1, min, max)) {
+                cnt = collectIds(index.getSlot(n), seen, sink, out, cnt);
+            }
+        } else {
+            for(int i = min[0]; i <= max[0]; i++) {
+                for(int j = min[1]; j <= max[1]; j++) {
+                    for(int k = min[2]; k <= max[2]; k++) {
+                        int slot = data.findSlot(cellOrder.pack(i,j,k));
+
+                        if (slot >= 0)
+                            cnt = collectIds(slot, seen, sink, out, cnt);
                     }
+                }
+            }
+        }
 
-//System.out.println("Region: " + java.util.Arrays.toString(minCoords) + " max: " + java.util.Arrays.toString(maxCoords));
+        return cnt;
+    }
 
-                        ret_val = getObjects(minCoords, maxCoords);
-                        break;
-                case Z:
-                    // calc bounds of slice
-                    minCoords[0] = slice.getLoc1() - height;
-                    minCoords[1] = slice.getLoc2() - height;
-                    minCoords[2] = 0;
-                    maxCoords[0] = slice.getLoc1() + height;
-                    maxCoords[1] = slice.getLoc2() + height;
-                    maxCoords[2] = numVoxels - 1;
-
-                    if (height > 0) {
-                        if (minCoords[0] < 0)
-                            minCoords[0] = 0;
-
-                        if (minCoords[1] < 0)
-                            minCoords[1] = 0;
-
-                        if (maxCoords[0] >= numVoxels)
-                            maxCoords[0] = numVoxels - 1;
-
-                        if (maxCoords[1] >= numVoxels)
-                            maxCoords[1] = numVoxels - 1;
+    /**
+     * Hand the unseen ids of a cell to a sink or array.
+     *
+     * @param slot The cell slot
+     * @param seen Scratch used to remove duplicates
+     * @param sink Receives each object id, or null to use out
+     * @param out The array to fill when sink is null
+     * @param cnt The number of objects found so far
+     * @return The updated number of objects found
+     */
+    private int collectIds(int slot, GenerationIdSet seen, IntResultSink sink,
+        int[] out, int cnt) {
+
+        int[] val = data.getIds(slot);
+        int len = data.getCount(slot);
+
+        for(int n=0; n < len; n++) {
+            int id = val[n];
+
+            if (!seen.add(id))
+                continue;
+
+            if (sink != null)
+                sink.add(id);
+            else if (cnt < out.length)
+                out[cnt] = id;
+
+            cnt++;
+        }
+
+        return cnt;
+    }
+
+    /**
+     * Add the ids of a cell to a set.
+     *
+     * @param slot The cell slot
+     * @param set The set to add to
+     */
+    private void addIds(int slot, IntHashSet<Integer> set) {
+        int[] val = data.getIds(slot);
+        int len = data.getCount(slot);
+
+        for(int n=0; n < len; n++) {
+            set.add(val[n]);
+        }
+    }
+
+    /**
+     * Should a box query walk the sorted cell index rather than probe each
+     * cell in the box.  Probing costs one hash lookup per cell in the box,
+     * walking costs about one step per occupied cell near the box.  After
+     * cells are added or removed the index has to be rebuilt first, which
+     * sorts every occupied cell, so a stale index is only used for boxes
+     * large enough to pay for the sort as well.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @return true to use the index
+     */
+    private boolean useCellIndex(int[] min, int[] max) {
+        long volume = (long) (max[0] - min[0] + 1) *
+                      (max[1] - min[1] + 1) *
+                      (max[2] - min[2] + 1);
+
+        long cells = data.size();
+        CellIndex index = cellIndex;
+
+        if (index != null && index.isCurrent(data))
+            return volume > cells;
+
+        // Sorting is n log n steps, each about a quarter of a cell probe
+        long rebuild = cells * (64 - Long.numberOfLeadingZeros(cells)) / 4;
+
+        return volume > cells + rebuild;
+    }
+
+    /**
+     * Get an index of the occupied cells, building it if the cells changed
+     * since the last one.  Concurrent readers may each build an index, they
+     * are identical so the last one published wins.
+     *
+     * @return The index
+     */
+    private CellIndex getCellIndex() {
+        CellIndex index = cellIndex;
+
+        if (index == null || !index.isCurrent(data)) {
+            index = new CellIndex(data, cellOrder);
+            cellIndex = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        return triMapping.get(id);
+    }
+
+    /**
+     * Get the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @param coords The array to copy the 9 coordinates into
+     */
+    public void getTriangle(int id, float[] coords) {
+        triMapping.get(id, coords, 0);
+    }
+
+    /**
+     * Find the nearest triangle hit by a ray.  Allocates a mailbox per call,
+     * use the version taking a GenerationIdSet when casting many rays.
+     *
+     * @param origin The ray origin
+     * @param dir The ray direction, need not be normalized
+     * @param maxDist Ignore hits further than this, in units of dir length
+     * @param hit The hit to fill in, reset if nothing is hit
+     * @return true if a triangle was hit
+     */
+    public boolean raycast(float[] origin, float[] dir, double maxDist, RayHit hit) {
+        return raycast(origin, dir, maxDist, hit, new GenerationIdSet(nextID));
+    }
+
+    /**
+     * Find the nearest triangle hit by a ray.  Voxels are walked in ray
+     * order with the Amanatides-Woo 3D DDA and their triangles tested with
+     * Moller-Trumbore.  The mailbox makes sure a triangle spanning many
+     * voxels is only tested once.  The walk stops at the first voxel whose
+     * exit is beyond the best hit so far.  The mailbox is cleared first, so
+     * it must not be shared between threads.
+     *
+     * @param origin The ray origin
+     * @param dir The ray direction, need not be normalized
+     * @param maxDist Ignore hits further than this, in units of dir length
+     * @param hit The hit to fill in, reset if nothing is hit
+     * @param mailbox Scratch holding the triangles tested so far
+     * @return true if a triangle was hit
+     */
+    public boolean raycast(float[] origin, float[] dir, double maxDist,
+        RayHit hit, GenerationIdSet mailbox) {
+
+        hit.reset();
+        mailbox.clear();
+        mailbox.ensureCapacity(nextID);
+
+        final double ox = origin[0];
+        final double oy = origin[1];
+        final double oz = origin[2];
+        final double dx = dir[0];
+        final double dy = dir[1];
+        final double dz = dir[2];
+
+        // Clip the ray to the grid
+        double t_enter = 0;
+        double t_exit = maxDist;
+
+        for(int i=0; i < 3; i++) {
+            double o = origin[i];
+            double d = dir[i];
+
+            if (d == 0) {
+                if (o < minGridWorldCoord || o > maxGridWorldCoord)
+                    return false;
+
+                continue;
+            }
+
+            double t0 = (minGridWorldCoord - o) / d;
+            double t1 = (maxGridWorldCoord - o) / d;
+
+            if (t0 > t1) {
+                double tmp = t0;
+                t0 = t1;
+                t1 = tmp;
+            }
+
+            if (t0 > t_enter)
+                t_enter = t0;
+
+            if (t1 < t_exit)
+                t_exit = t1;
+        }
+
+        if (t_enter > t_exit)
+            return false;
+
+        // The voxel the ray starts in
+        int x = clampVoxel(half + (int) Math.floor((ox + dx * t_enter) / voxelSize));
+        int y = clampVoxel(half + (int) Math.floor((oy + dy * t_enter) / voxelSize));
+        int z = clampVoxel(half + (int) Math.floor((oz + dz * t_enter) / voxelSize));
+
+        final int step_x = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        final int step_y = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        final int step_z = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+
+        final double delta_x = step_x != 0 ? voxelSize / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        final double delta_y = step_y != 0 ? voxelSize / Math.abs(dy) : Double.POSITIVE_INFINITY;
+        final double delta_z = step_z != 0 ? voxelSize / Math.abs(dz) : Double.POSITIVE_INFINITY;
+
+        double next_x = voxelBoundary(x, step_x, ox, dx);
+        double next_y = voxelBoundary(y, step_y, oy, dy);
+        double next_z = voxelBoundary(z, step_z, oz, dz);
+
+        hit.distance = maxDist;
+
+        final float[] coords = triMapping.getCoords();
+
+        while(true) {
+            int slot = data.findSlot(cellOrder.pack(x, y, z));
+
+            if (slot >= 0) {
+                int[] ids = data.getIds(slot);
+                int cnt = data.getCount(slot);
+
+                for(int n=0; n < cnt; n++) {
+                    int id = ids[n];
+
+                    if (mailbox.add(id)) {
+                        RayTriangleIntersect.intersect(coords, id * TriangleStore.STRIDE, id,
+                            ox, oy, oz, dx, dy, dz, 0, hit);
                     }
+                }
+            }
 
-                    ret_val = getObjects(minCoords, maxCoords);
-                    break;
+            double t_next = Math.min(next_x, Math.min(next_y, next_z));
+
+            // A hit inside this voxel can not be beaten by later voxels
+            if (hit.id >= 0 && hit.distance <= t_next)
+                break;
+
+            if (t_next > t_exit)
+                break;
+
+            if (next_x == t_next) {
+                x += step_x;
+                next_x += delta_x;
+            } else if (next_y == t_next) {
+                y += step_y;
+                next_y += delta_y;
+            } else {
+                z += step_z;
+                next_z += delta_z;
             }
-        } else if (region instanceof AllRegion) {
-            int[] min = new int[] {0,0,0};
-            int[] max = new int[] {numVoxels - 1, numVoxels - 1, numVoxels -1};
-            return getObjects(min, max);
-        } else {
-            throw new IllegalArgumentException("Unsupported region: " + region);
+
+            if (x < 0 || x >= numVoxels || y < 0 || y >= numVoxels ||
+                z < 0 || z >= numVoxels)
+                break;
         }
 
-        return ret_val;
+        if (hit.id < 0) {
+            hit.reset();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the triangles nearest a point.  Allocates its scratch per call,
+     * use the version taking a GenerationIdSet for many queries.
+     *
+     * @param point The query point
+     * @param k The number of triangles wanted
+     * @param ids Filled with the nearest ids, closest first
+     * @param dists Filled with the distance to each id
+     * @return The number of triangles found, less than k if there are fewer
+     */
+    public int nearestTriangles(float[] point, int k, int[] ids, double[] dists) {
+        return nearestTriangles(point, k, ids, dists, new GenerationIdSet(nextID));
+    }
+
+    /**
+     * Find the triangles nearest a point.  Shells of voxels are searched
+     * outward from the voxel holding the point, keeping the best k in a
+     * bounded heap.  The search stops once the nearest unsearched voxel is
+     * further than the kth best distance.  The seen set is cleared first
+     * and used to test each triangle once, so it must not be shared between
+     * threads.
+     *
+     * @param point The query point
+     * @param k The number of triangles wanted
+     * @param ids Filled with the nearest ids, closest first
+     * @param dists Filled with the distance to each id
+     * @param seen Scratch holding the triangles tested so far
+     * @return The number of triangles found, less than k if there are fewer
+     * @throws IllegalArgumentException k is less than 1 or the arrays are
+     *    smaller than k
+     */
+    public int nearestTriangles(float[] point, int k, int[] ids, double[] dists,
+        GenerationIdSet seen) {
+
+        if (k < 1 || ids.length < k || dists.length < k)
+            throw new IllegalArgumentException("Invalid k: " + k);
+
+        NearestHeap heap = new NearestHeap(k);
+
+        searchNearest(point[0], point[1], point[2], heap, seen);
+
+        return heap.drain(ids, dists);
+    }
+
+    /**
+     * Find the closest point on any triangle to a point.  Allocates its
+     * scratch per call, use the version taking a GenerationIdSet for many
+     * queries.
+     *
+     * @param point The query point
+     * @param closest Filled with the closest point, preallocate to 3
+     * @return The id of the closest triangle or -1 if there are none
+     */
+    public int closestPoint(float[] point, float[] closest) {
+        return closestPoint(point, closest, new GenerationIdSet(nextID));
+    }
+
+    /**
+     * Find the closest point on any triangle to a point.  The seen set is
+     * cleared first, so it must not be shared between threads.
+     *
+     * @param point The query point
+     * @param closest Filled with the closest point, preallocate to 3
+     * @param seen Scratch holding the triangles tested so far
+     * @return The id of the closest triangle or -1 if there are none
+     */
+    public int closestPoint(float[] point, float[] closest, GenerationIdSet seen) {
+        NearestHeap heap = new NearestHeap(1);
+
+        searchNearest(point[0], point[1], point[2], heap, seen);
+
+        if (heap.size == 0)
+            return -1;
+
+        int id = heap.ids[0];
+        double[] cp = new double[3];
+
+        TrianglePointDistance.closestPoint(triMapping.getCoords(),
+            id * TriangleStore.STRIDE, point[0], point[1], point[2], cp);
+
+        closest[0] = (float) cp[0];
+        closest[1] = (float) cp[1];
+        closest[2] = (float) cp[2];
+
+        return id;
+    }
+
+    /**
+     * Find the closest point on any triangle for each of a batch of points
+     * using the common pool.
+     *
+     * @param points The query points, 3 * numPoints values
+     * @param numPoints The number of points
+     * @param hitIds Filled with the closest id for each point or -1 if none
+     * @param hitPoints Filled with the closest point for each point
+     * @param hitDists Filled with the distance for each point or positive
+     *    infinity if none
+     */
+    public void closestPoints(float[] points, int numPoints, int[] hitIds,
+        float[] hitPoints, float[] hitDists) {
+
+        closestPoints(points, numPoints, hitIds, hitPoints, hitDists,
+                      ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Find the closest point on any triangle for each of a batch of points.
+     * The points are given in structure of arrays form: point i is
+     * (points[i], points[numPoints + i], points[2 * numPoints + i]) and the
+     * closest points are laid out the same way in hitPoints.  Points with
+     * no triangle found leave hitPoints unchanged.  The batch is split over
+     * the pool.
+     *
+     * @param points The query points, 3 * numPoints values
+     * @param numPoints The number of points
+     * @param hitIds Filled with the closest id for each point or -1 if none
+     * @param hitPoints Filled with the closest point for each point
+     * @param hitDists Filled with the distance for each point or positive
+     *    infinity if none
+     * @param pool The pool to run the query tasks in
+     * @throws IllegalArgumentException An array is too small for numPoints
+     */
+    public void closestPoints(float[] points, int numPoints, int[] hitIds,
+        float[] hitPoints, float[] hitDists, ForkJoinPool pool) {
+
+        if (points.length < 3 * numPoints || hitPoints.length < 3 * numPoints ||
+            hitIds.length < numPoints || hitDists.length < numPoints)
+            throw new IllegalArgumentException("Point arrays too small for " + numPoints + " points");
+
+        ClosestPointTask task = new ClosestPointTask(points, numPoints,
+            hitIds, hitPoints, hitDists, 0, numPoints);
+
+        // Run small or serial batches here, compute forks outside a pool
+        if (numPoints <= POINTS_PER_TASK || pool.getParallelism() < 2)
+            task.findRange();
+        else
+            pool.invoke(task);
+    }
+
+    /**
+     * Set whether the partition rejects changes.  While read only, insert
+     * and clear throw an IllegalStateException.  Any number of threads may
+     * query a partition concurrently as long as nothing changes it, this
+     * flag makes that contract explicit.
+     *
+     * @param readOnly true to reject changes
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Is the partition rejecting changes.
+     *
+     * @return true if read only
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Get the layout of the cell keys.
+     *
+     * @return The key order
+     */
+    public CellKey.Order getCellOrder() {
+        return cellOrder;
+    }
+
+    /**
+     * Create a sweep over the slices of the grid along an axis.  Replaces
+     * calling getObjects with a SliceRegion of height 1 per layer.  The
+     * sweep is a snapshot, later inserts are not seen by it.
+     *
+     * @param axis The axis to sweep along
+     * @return The sweep, positioned before the first layer
+     */
+    public SliceSweep sweep(SliceRegion.Axis axis) {
+        final int a = axis.ordinal();
+        final int cap = data.capacity();
+
+        int[] first = new int[nextID];
+        int[] last = new int[nextID];
+
+        Arrays.fill(first, numVoxels);
+        Arrays.fill(last, -1);
+
+        for(int slot=0; slot < cap; slot++) {
+            long key = data.getKey(slot);
+
+            if (key == VoxelStore.EMPTY_KEY)
+                continue;
+
+            int layer = cellOrder.unpack(key, a);
+            int[] ids = data.getIds(slot);
+            int cnt = data.getCount(slot);
+
+            for(int i=0; i < cnt; i++) {
+                int id = ids[i];
+
+                if (layer < first[id])
+                    first[id] = layer;
+
+                if (layer > last[id])
+                    last[id] = layer;
+            }
+        }
+
+        return new SliceSweep(numVoxels, first, last);
+    }
+
+    /**
+     * Create a read only copy of this partition in compressed sparse row
+     * form.  Use this once the partition is fully built and will only be
+     * queried.  The ids of each cell are sorted and duplicates removed.
+     * The triangle coordinates are copied, so later changes to this
+     * partition do not affect the copy.
+     *
+     * @return The compact partition
+     */
+    public CompactGridTrianglePartition compact() {
+        final CellIndex index = getCellIndex();
+        final int cells = index.size();
+
+        long[] keys = index.getKeys().clone();
+
+        int[] offsets = new int[cells + 1];
+        int[] ids = new int[(int) data.getNumIds()];
+        int pos = 0;
+
+        for(int n=0; n < cells; n++) {
+            int slot = index.getSlot(n);
+            int cnt = data.getCount(slot);
+            int start = pos;
+
+            offsets[n] = start;
+            System.arraycopy(data.getIds(slot), 0, ids, start, cnt);
+            Arrays.sort(ids, start, start + cnt);
+
+            pos = start;
+            for(int i=0; i < cnt; i++) {
+                if (i == 0 || ids[start + i] != ids[start + i - 1])
+                    ids[pos++] = ids[start + i];
+            }
+        }
+
+        offsets[cells] = pos;
+
+        if (pos != ids.length)
+            ids = Arrays.copyOf(ids, pos);
+
+        return new CompactGridTrianglePartition(voxelSize, numVoxels,
+            cellOrder, keys, offsets, ids,
+            Arrays.copyOf(triMapping.getCoords(), nextID * TriangleStore.STRIDE));
+    }
+
+    /**
+     * Write this partition in the binary format read by
+     * MappedGridTrianglePartition.  The cells are written in a single
+     * streaming pass, only the cell keys are sorted on the heap.  The stream
+     * is flushed but not closed.
+     *
+     * @param out The stream to write to
+     * @throws IOException An error writing the stream
+     */
+    public void write(OutputStream out) throws IOException {
+        final CellIndex index = getCellIndex();
+        final int cells = index.size();
+        final long[] keys = index.getKeys();
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+
+        dos.writeInt(MappedGridTrianglePartition.MAGIC);
+        dos.writeInt(MappedGridTrianglePartition.VERSION);
+        dos.writeDouble(voxelSize);
+        dos.writeInt(numVoxels);
+        dos.writeInt(cellOrder == CellKey.Order.MORTON ?
+            MappedGridTrianglePartition.FLAG_MORTON : 0);
+        dos.writeInt(cells);
+        dos.writeInt(nextID);
+        dos.writeLong(data.getNumIds());
+
+        for(int n=0; n < cells; n++) {
+            dos.writeLong(keys[n]);
+        }
+
+        int pos = 0;
+
+        for(int n=0; n < cells; n++) {
+            dos.writeInt(pos);
+            pos += data.getCount(index.getSlot(n));
+        }
+
+        dos.writeInt(pos);
+
+        for(int n=0; n < cells; n++) {
+            int slot = index.getSlot(n);
+            int[] ids = data.getIds(slot);
+            int cnt = data.getCount(slot);
+
+            for(int i=0; i < cnt; i++) {
+                dos.writeInt(ids[i]);
+            }
+        }
+
+        final float[] coords = triMapping.getCoords();
+        final int num_coords = nextID * TriangleStore.STRIDE;
+
+        for(int n=0; n < num_coords; n++) {
+            dos.writeFloat(coords[n]);
+        }
+
+        dos.flush();
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Insert an object into the structure.
+     *
+     * @param tri The triangle
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle tri, boolean useBounds) {
+        checkWritable();
+        editEpoch++;
+
+        addMapping(tri);
+
+        if (COLLECT_STATS) {
+            numInserts++;
+        }
+
+        // Triangles split from this one are counted as part of it
+        PartitionMetrics m = (splitDepth == 0) ? metrics : null;
+
+        if (m == null) {
+            fillTriangle(tri, useBounds);
+
+            return;
+        }
+
+        long start = m.startTimer();
+        long num_ids = data.getNumIds();
+
+        fillTriangle(tri, useBounds);
+
+        m.recordInsert(start, data.getNumIds() - num_ids);
+    }
+
+    /**
+     * Insert an array of Triangles.  Large arrays are rasterized in parallel
+     * using the common ForkJoinPool.
+     *
+     * @param tris The triangles
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle[] tris,boolean useBounds) {
+        insert(tris, useBounds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Insert an array of Triangles.  The array is split into chunks which
+     * are rasterized in parallel, each task into a cell store of its own.
+     * The task cells are then split into shards by the high bits of their
+     * key hash.  In parallel, one task per shard gathers that shard's cells
+     * from every chunk in chunk order, then, once the cell table is sized,
+     * merges them into the range of table slots the shard owns.  A cell's
+     * ids end up in the same order as inserting the triangles one at a
+     * time.
+     * <p>
+     *
+     * Triangles which need splitting during exact insertion are not done in
+     * parallel.  They are inserted serially with fillTriangle after the
+     * merge, one at a time, as splitting allocates new triangle ids.  Their
+     * ids come after the ids of the other triangles in each cell.
+     *
+     * @param tris The triangles
+     * @param useBounds Should the bounds be used instead of the exact object.
+     * @param pool The pool to run the rasterizing tasks in
+     */
+    public void insert(Triangle[] tris, boolean useBounds, ForkJoinPool pool) {
+        checkWritable();
+        editEpoch++;
+
+        final PartitionMetrics m = metrics;
+        final long batch_start = (m == null) ? 0 : m.startTimer();
+        final int len = tris.length;
+
+        if (len < 2 * PARALLEL_CHUNK_SIZE || pool.getParallelism() < 2) {
+            for(int i=0; i < len; i++) {
+                insert(tris[i], useBounds);
+            }
+
+            if (m != null)
+                m.recordBatchInsert(batch_start);
+
+            return;
+        }
+
+        for(int i=0; i < len; i++) {
+            addMapping(tris[i]);
+        }
+
+        if (COLLECT_STATS) {
+            numInserts += len;
+        }
+
+        int num_tasks = Math.min((len + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE,
+                                 pool.getParallelism() * 4);
+        int chunk = (len + num_tasks - 1) / num_tasks;
+        int shard_bits = Math.min(MAX_SHARD_BITS,
+            32 - Integer.numberOfLeadingZeros(pool.getParallelism() * 4 - 1));
+        int num_shards = 1 << shard_bits;
+
+        final BulkFillTask[] tasks = new BulkFillTask[num_tasks];
+
+        for(int i=0; i < num_tasks; i++) {
+            int start = i * chunk;
+            tasks[i] = new BulkFillTask(tris, start, Math.min(len, start + chunk),
+                                        useBounds, shard_bits);
+        }
+
+        pool.invoke(new InvokeAllTask(tasks));
+
+        VoxelStore[] shard_cells = new VoxelStore[num_shards];
+        ShardGatherTask[] gather = new ShardGatherTask[num_shards];
+
+        for(int i=0; i < num_shards; i++) {
+            gather[i] = new ShardGatherTask(tasks, i, shard_bits, shard_cells);
+        }
+
+        pool.invoke(new InvokeAllTask(gather));
+
+        int num_cells = data.size();
+
+        for(int i=0; i < num_tasks; i++) {
+            if (COLLECT_STATS) {
+                cellsFilled += tasks[i].cellsFilled;
+            }
+
+            tasks[i].store = null;
+        }
+
+        for(int i=0; i < num_shards; i++) {
+            num_cells += shard_cells[i].size();
+        }
+
+        // No growing while the shards merge, and leave each shard a range
+        data.ensureCapacity(Math.max(num_cells, num_shards * 32));
+
+        VoxelStore.MergeResult[] results = new VoxelStore.MergeResult[num_shards];
+        ShardMergeTask[] merge = new ShardMergeTask[num_shards];
+
+        for(int i=0; i < num_shards; i++) {
+            results[i] = new VoxelStore.MergeResult();
+            merge[i] = new ShardMergeTask(shard_cells[i], i, shard_bits, results[i]);
+        }
+
+        pool.invoke(new InvokeAllTask(merge));
+
+        for(int i=0; i < num_shards; i++) {
+            data.finishMerge(shard_cells[i], results[i]);
+        }
+
+        for(int i=0; i < num_tasks; i++) {
+            ArrayList<Triangle> deferred = tasks[i].deferred;
+
+            for(int n=0; n < deferred.size(); n++) {
+                long num_ids = data.getNumIds();
+
+                fillTriangle(deferred.get(n), false);
+
+                if (m != null)
+                    m.recordCells(data.getNumIds() - num_ids);
+            }
+        }
+
+        if (m != null)
+            m.recordBatchInsert(batch_start);
+    }
+
+    /**
+     * Remove an object from the structure.  The id is removed from every
+     * cell the bounds of its triangle cover, which includes the cells of an
+     * exact insert.  Triangles split from it during an exact insert are
+     * removed with it, along with their coordinates.
+     *
+     * @param id The triangle id
+     * @return true if the id was inserted and found in any cell
+     */
+    public boolean remove(int id) {
+        checkWritable();
+        editEpoch++;
+
+        if (!triMapping.contains(id))
+            return false;
+
+        int cnt = removeTriangle(id);
+
+        if (COLLECT_STATS) {
+            cellsFilled -= cnt;
+        }
+
+        PartitionMetrics m = metrics;
+
+        if (m != null)
+            m.recordRemove();
+
+        return cnt > 0;
     }
 
     /**
-     * Gets the objects in the specified region. Any object which is contained
-     * or overlaps the region will be returned.  Objects exactly on a voxel
-     * boundary shall be returned in all touching regions.
+     * Remove a triangle from its cells and the triangle mapping, then do the
+     * same for any triangles split from it.  The ids of split triangles are
+     * kept for reuse by later splits.
      *
-     * @param min The min grid cell location
-     * @param max The max grid cell location
-     * @return The objects or null if none
+     * @param id The triangle id
+     * @return The number of cells ids were removed from
      */
-    public int[] getObjects(int[] min, int[] max) {
+    private int removeTriangle(int id) {
+        if (!triMapping.contains(id))
+            return 0;
 
-        final int len_x = max[0] - min[0] + 1;
-        final int len_y = max[1] - min[1] + 1;
-        final int len_z = max[2] - min[2] + 1;
+        Triangle tri = new Triangle(triMapping.get(id), id);
 
-        // TODO: not sure of a good guess on size here.
-        IntHashSet set = new IntHashSet(53);
+        calcCellBounds(tri, minBounds, maxBounds, minCoords, maxCoords);
 
-        int i,j,k;
-//System.out.println("GetObjects");
-//System.out.println("Min: " + java.util.Arrays.toString(min));
-//System.out.println("Max: " + java.util.Arrays.toString(max));
-        int[] val;
-        int idx = 0;
-        int cnt = 0;
-        int len;
+        int ret_val = 0;
 
-        for(int x = 0; x < len_x; x++) {
-            for(int y = 0; y < len_y; y++) {
-                for(int z = 0; z < len_z; z++) {
-                    i = min[0] + x;
-                    j = min[1] + y;
-                    k = min[2] + z;
+        for(int i = minCoords[0]; i <= maxCoords[0]; i++) {
+            for(int j = minCoords[1]; j <= maxCoords[1]; j++) {
+                for(int k = minCoords[2]; k <= maxCoords[2]; k++) {
+                    if (data.remove(cellOrder.pack(i,j,k), id))
+                        ret_val++;
+                }
+            }
+        }
 
-                    val =  getData(i,j,k);
+        triMapping.remove(id);
 
-                    if (val != null) {
-                        len = val.length;
+        IntArray children = (IntArray) splitChildren.remove(id);
 
-                        for(int n=0; n < len; n++) {
-                            set.add(val[n]);
-                        }
-                    }
-                }
+        if (children != null) {
+            for(int i=0; i < children.size(); i++) {
+                int first = children.get(i);
+
+                ret_val += removeTriangle(first);
+                ret_val += removeTriangle(first + 1);
+
+                freeSplitIDs.add(first);
             }
         }
 
-        if (set.isEmpty()) {
-            return null;
+        return ret_val;
+    }
+
+    /**
+     * Get a pair of unused ids for the new triangles of a split, reusing
+     * ids freed by removes before taking new ones.
+     *
+     * @return The first of the two ids
+     */
+    private int allocateSplitIDs() {
+        while(freeSplitIDs.size() > 0) {
+            int ret_val = freeSplitIDs.remove(freeSplitIDs.size() - 1);
+
+            // Skip a pair if triangles have since been inserted with its ids
+            if (!triMapping.contains(ret_val) && !triMapping.contains(ret_val + 1))
+                return ret_val;
         }
 
-        int[] ret_val = set.toArray();
+        int ret_val = nextID;
+
+        nextID += 2;
 
         return ret_val;
     }
 
     /**
-     * Get the triangle mapping for an id.
+     * Move an object to new coordinates.  The old cells are found from the
+     * stored coordinates for the id, then the triangle is inserted again.
+     *
+     * @param tri The triangle with its new coordinates
+     * @param useBounds Should the bounds be used instead of the exact object.
      */
-    public float[] getTriangle(int id) {
-        return triMapping[id];
+    public void update(Triangle tri, boolean useBounds) {
+        remove(tri.id);
+        insert(tri, useBounds);
     }
 
-    //-------------------------------------------------------------
-    // Local Methods
-    //-------------------------------------------------------------
-
     /**
-     * Insert an object into the structure.
+     * Fill the cells covered by a triangle.  The triangle mapping must
+     * already be set.
      *
      * @param tri The triangle
      * @param useBounds Should the bounds be used instead of the exact object.
      */
-    public void insert(Triangle tri, boolean useBounds) {
-
-        triMapping[tri.id] = tri.coords;
-
-        if (COLLECT_STATS) {
-            numInserts++;
-        }
-
+    private void fillTriangle(Triangle tri, boolean useBounds) {
         if (useBounds) {
-            calcBoundsForTriangle(tri, minBounds, maxBounds);
-
-//    System.out.println("Orig.minBounds: " + java.util.Arrays.toString(minBounds));
-//    System.out.println("Orig.maxBounds: " + java.util.Arrays.toString(maxBounds));
-            findGridCoordsFromWorldCoords(minBounds, minCoords);
-            findGridCoordsFromWorldCoords(maxBounds, maxCoords);
-//System.out.println("Orig.minCoords: " + java.util.Arrays.toString(minCoords));
-//System.out.println("Orig.maxCoords: " + java.util.Arrays.toString(maxCoords));
-
-
-            // Handle on voxel boundary issues
-            for(int j=0; j < 3; j++) {
-                if (minBounds[j] % voxelSize == 0) {
-                    minBounds[j] -= halfVoxel;
-                    if (minBounds[j] < minGridWorldCoord) {
-                        minBounds[j] = minGridWorldCoord;
-                    }
-                }
-            }
-            for(int j=0; j < 3; j++) {
-                if (maxBounds[j] % voxelSize == 0) {
-                    maxBounds[j] += halfVoxel;
-                    if (maxBounds[j] > maxGridWorldCoord) {
-                        maxBounds[j] = maxGridWorldCoord;
-                    }
-                }
-            }
+            calcCellBounds(tri, minBounds, maxBounds, minCoords, maxCoords);
 
 /*
 System.out.println("Triangle: " + java.util.Arrays.toString(tri.coords));
-System.out.println("minBounds: " + java.util.Arrays.toString(minBounds));
-System.out.println("maxBounds: " + java.util.Arrays.toString(maxBounds));
-*/
-            findGridCoordsFromWorldCoords(minBounds, minCoords);
-            findGridCoordsFromWorldCoords(maxBounds, maxCoords);
-
-/*
 System.out.println("minCoords: " + java.util.Arrays.toString(minCoords));
 System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
 */
@@ -465,7 +1505,7 @@ System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
             if (ratio > TRIANGLE_RATIO_MAX) {
 //                System.out.println("Suspect triangle.  Area: " + area + " id: " + tri.id + " ratio: " + ratio);
 /*
-                growMapping(nextID+2);
+                triMapping.ensureCapacity(nextID+2);
                 Triangle[] tris = tri.splitTriangle(nextID);
                 nextID += 2;
                 System.out.println("New Ratios: ");
@@ -478,82 +1518,53 @@ System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
 */
             }
 
-            calcBoundsForTriangle(tri, minBounds, maxBounds);
-
-//    System.out.println("Orig.minBounds: " + java.util.Arrays.toString(minBounds));
-//    System.out.println("Orig.maxBounds: " + java.util.Arrays.toString(maxBounds));
-            findGridCoordsFromWorldCoords(minBounds, minCoords);
-            findGridCoordsFromWorldCoords(maxBounds, maxCoords);
-//System.out.println("Orig.minCoords: " + java.util.Arrays.toString(minCoords));
-//System.out.println("Orig.maxCoords: " + java.util.Arrays.toString(maxCoords));
-
-
-            // Handle on voxel boundary issues
-            for(int j=0; j < 3; j++) {
-                if (minBounds[j] % voxelSize == 0) {
-                    minBounds[j] -= halfVoxel;
-                    if (minBounds[j] < minGridWorldCoord) {
-                        minBounds[j] = minGridWorldCoord;
-                    }
-                }
-            }
-            for(int j=0; j < 3; j++) {
-                if (maxBounds[j] % voxelSize == 0) {
-                    maxBounds[j] += halfVoxel;
-                    if (maxBounds[j] > maxGridWorldCoord) {
-                        maxBounds[j] = maxGridWorldCoord;
-                    }
-                }
-            }
-
-/*
-System.out.println("Triangle: " + java.util.Arrays.toString(tri.coords));
-System.out.println("minBounds: " + java.util.Arrays.toString(minBounds));
-System.out.println("maxBounds: " + java.util.Arrays.toString(maxBounds));
-*/
-            findGridCoordsFromWorldCoords(minBounds, minCoords);
-            findGridCoordsFromWorldCoords(maxBounds, maxCoords);
-
+            calcCellBounds(tri, minBounds, maxBounds, minCoords, maxCoords);
 
 //System.out.println("minCoords: " + java.util.Arrays.toString(minCoords));
 //System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
 
-
             fillCellsExact(minCoords, maxCoords, tri);
         }
     }
 
     /**
-     * Insert an array of Triangles.
+     * Calculate the box of cells a triangle's bounds cover.  Bounds which
+     * lie exactly on a voxel boundary are expanded by half a voxel so the
+     * triangle lands in all touching cells.  Only uses the passed in arrays
+     * so it is safe to call from multiple threads.
      *
-     * @param tris The triangles
-     * @param useBounds Should the bounds be used instead of the exact object.
+     * @param tri The triangle
+     * @param minB Scratch for the min world bounds, preallocate to 3
+     * @param maxB Scratch for the max world bounds, preallocate to 3
+     * @param minC The min cell coords, preallocate to 3
+     * @param maxC The max cell coords, preallocate to 3
      */
-    public void insert(Triangle[] tris,boolean useBounds) {
-        if (COLLECT_STATS) {
-            numInserts++;
-        }
-
-        if (useBounds) {
-            for(int i=0; i < tris.length; i++) {
-                calcBoundsForTriangle(tris[i], minBounds, maxBounds);
+    private void calcCellBounds(Triangle tri, float[] minB, float[] maxB,
+        int[] minC, int[] maxC) {
 
-                findGridCoordsFromWorldCoords(minBounds, minCoords);
-                findGridCoordsFromWorldCoords(maxBounds, maxCoords);
+        calcBoundsForTriangle(tri, minB, maxB);
 
-                fillCells(minCoords, maxCoords, tris[i]);
+        // Handle on voxel boundary issues
+        for(int j=0; j < 3; j++) {
+            if (minB[j] % voxelSize == 0) {
+                minB[j] -= halfVoxel;
+                if (minB[j] < minGridWorldCoord) {
+                    minB[j] = minGridWorldCoord;
+                }
             }
-        } else {
-System.out.println("geom not implemented");
-
-/*
-            for(int i=0; i < tris.length; i++) {
-                voxelizeTriangle(tris[i]);
+        }
+        for(int j=0; j < 3; j++) {
+            if (maxB[j] % voxelSize == 0) {
+                maxB[j] += halfVoxel;
+                if (maxB[j] > maxGridWorldCoord) {
+                    maxB[j] = maxGridWorldCoord;
+                }
             }
-*/
         }
-    }
 
+        findGridCoordsFromWorldCoords(minB, minC);
+        findGridCoordsFromWorldCoords(maxB, maxC);
+    }
 
     /**
      * Calculate a bounding box for a triangle.
@@ -818,7 +1829,6 @@ max[2] = numVoxels - 1;
         int i,j,k;
         int cells = len_x * len_y * len_z;
         int[] val;
-        VoxelCoordinate vc;
 
         if (cells == 1) {
             // single cell, just fill it
@@ -991,134 +2001,359 @@ max[2] = numVoxels - 1;
 //System.out.println("v0 to v2: dist: " + dist + " steps: " + steps + " stepSize: " + stepSize);
 
 
-            for(int n=0; n < steps; n++) {
-                t = n * stepSize;
+            for(int n=0; n < steps; n++) {
+                t = n * stepSize;
+
+                wpos[0] = (float) (lineeq[0] + lineeq[1] * t);
+                wpos[1] = (float) (lineeq[2] + lineeq[3] * t);
+                wpos[2] = (float) (lineeq[4] + lineeq[5] * t);
+
+                findGridCoordsFromWorldCoords(wpos, gpos);
+                i = gpos[0];
+                j = gpos[1];
+                k = gpos[2];
+
+//System.out.println("Check cell: " + i + " " + j + " " + k);
+
+
+                if (i == last_i && j == last_j && k == last_k) {
+                } else {
+                    addData(i,j,k,tri.id);
+                    last_i = i;
+                    last_j = j;
+                    last_k = k;
+                }
+            }
+            if (COLLECT_STATS) {
+                cellsFilled += steps;
+            }
+        }
+
+        if (!direct) {
+/*
+System.out.println("Filling old way:  min: " + java.util.Arrays.toString(min));
+findVoxelInWorldCoords(0,0,0, vcoords);
+float[] wpos = new float[3];
+int[] vpos = new int[3];
+int idx = 0;
+wpos[0] = tri.coords[idx++];
+wpos[1] = tri.coords[idx++];
+wpos[2] = tri.coords[idx++];
+findGridCoordsFromWorldCoords(wpos, vpos);
+System.out.println("v0: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
+wpos[0] = tri.coords[idx++];
+wpos[1] = tri.coords[idx++];
+wpos[2] = tri.coords[idx++];
+findGridCoordsFromWorldCoords(wpos, vpos);
+System.out.println("v1: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
+wpos[0] = tri.coords[idx++];
+wpos[1] = tri.coords[idx++];
+wpos[2] = tri.coords[idx++];
+findGridCoordsFromWorldCoords(wpos, vpos);
+System.out.println("v2: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
+*/
+/*
+            Vec3DDouble v0 = new Vec3DDouble(tri.coords[0], tri.coords[1], tri.coords[2]);
+            Vec3DDouble v1 = new Vec3DDouble(tri.coords[3], tri.coords[4], tri.coords[5]);
+            Vec3DDouble v2 = new Vec3DDouble(tri.coords[6], tri.coords[7], tri.coords[8]);
+*/
+            int cnt = markIntersectedCells(min, max, tri, data, boxTest, fillScratch);
+
+            if (cnt == 0) {
+                System.out.println("ERROR: No cells marked from triangle: " + tri.id);
+                System.out.println("   area: " + tri.getArea() + " ratio: " + tri.getSideRatio());
+                printVertexCells(tri);
+
+
+                if (triSmallerVoxel(tri)) {
+System.out.println("Smaller then voxel, fill: " + tri.id);
+                    fillVertexCells(tri);
+
+                    cellsFilled += 3;  // This may overcount.
+                } else {
+                    // The other idea would be walk the affected voxels in a 3D Bresenham algo
+                    if (splitDepth == 0) {
+                        System.out.println("Splitting triangle: " + java.util.Arrays.toString(tri.coords));
+                    } else {
+
+                        System.out.println("Split Depth: " + splitDepth);
+                    }
+
+                    splitDepth++;
+
+                    if (splitDepth > 2) {
+                        System.out.println("Too much splitting, bailing");
+                        fillVertexCells(tri);
+
+                        cellsFilled += 3;  // This may overcount.
+                        splitDepth--;
+                        return;
+                    }
+
+                    // The first part keeps the id, the others take a new pair
+                    int first = allocateSplitIDs();
+
+                    triMapping.ensureCapacity(first + 2);
+                    Triangle[] tris = tri.splitTriangle(first);
+
+                    // Remembered so removing the triangle removes its parts
+                    IntArray children = (IntArray) splitChildren.get(tri.id);
+
+                    if (children == null) {
+                        children = new IntArray();
+                        splitChildren.put(tri.id, children);
+                    }
+
+                    children.add(first);
+
+                    for(int n=0; n < tris.length; n++) {
+                        insert(tris[n], false);
+                    }
+                    splitDepth--;
+                }
+
+            } else {
+                cellsFilled += cnt;
+            }
+
+        }
+    }
+
+    /**
+     * Mark every cell in a box which the triangle intersects.  Only uses
+     * the passed in store and scratch so it is safe to call from multiple
+     * threads with separate scratch.
+     *
+     * @param min The min bounds in cell coords
+     * @param max The max bounds in cell coords
+     * @param tri The triangle
+     * @param store The store to add the triangle id to
+     * @param test Scratch for the overlap test
+     * @param scratch Scratch arrays, grown to fit the run of cells
+     * @return The number of cells marked
+     */
+    private int markIntersectedCells(int[] min, int[] max, Triangle tri,
+        VoxelStore store, TriangleBoxOverlap.Setup test, FillScratch scratch) {
+
+        double hv = halfVoxelIncreased;
+
+        test.set(tri.coords, 0, hv, hv, hv);
+
+        // Cells are tested in runs along z, the run centers are shared
+        int len = max[2] - min[2] + 1;
+
+        scratch.ensureRun(len);
+
+        double[] run_z = scratch.runZ;
+        boolean[] hits = scratch.hits;
+        float[] pos = scratch.pos;
+
+        for(int n=0; n < len; n++) {
+            findVoxelInWorldCoords(min[0], min[1], min[2] + n, pos);
+            run_z[n] = pos[2];
+        }
+
+        if (scanlineFill)
+            return scanIntersectedCells(min, max, tri, store, test, scratch);
+
+        int cnt = 0;
+
+        for(int i = min[0]; i <= max[0]; i++) {
+            for(int j = min[1]; j <= max[1]; j++) {
+                findVoxelInWorldCoords(i,j,min[2], pos);
+
+                if (BoxRunOverlap.overlapsZ(test, pos[0], pos[1], run_z, 0, len, hits) == 0)
+                    continue;
+
+                for(int n=0; n < len; n++) {
+                    if (hits[n]) {
+                        store.add(cellOrder.pack(i,j,min[2] + n), tri.id);
+
+                        cnt++;
+                    }
+                }
+            }
+        }
+
+        return cnt;
+    }
+
+    /**
+     * Mark every cell in a box which the triangle intersects, walking the
+     * triangle rather than the box.  The triangle is clipped to the slab of
+     * each x cell and then to the row of each y cell, and the z extent of
+     * the clipped piece gives the cells to test.  The clip planes are
+     * padded so the candidates always cover the cells the overlap test
+     * accepts, so the cells marked are the same as testing the whole box.
+     * Only uses the passed in store and scratch so it is safe to call from
+     * multiple threads with separate scratch.
+     *
+     * @param min The min bounds in cell coords
+     * @param max The max bounds in cell coords
+     * @param tri The triangle
+     * @param store The store to add the triangle id to
+     * @param test The overlap test, already set to the triangle
+     * @param scratch Scratch holding the z centers of the cells from min[2]
+     *    to max[2] in runZ
+     * @return The number of cells marked
+     */
+    private int scanIntersectedCells(int[] min, int[] max, Triangle tri,
+        VoxelStore store, TriangleBoxOverlap.Setup test, FillScratch scratch) {
+
+        double[] runZ = scratch.runZ;
+        boolean[] hits = scratch.hits;
+        float[] pos = scratch.pos;
+        double[] verts = scratch.verts;
+        double[] slab = scratch.slab;
+        double[] row = scratch.row;
+        double[] tmp = scratch.tmp;
+
+        for(int n=0; n < 9; n++) {
+            verts[n] = tri.coords[n];
+        }
+
+        double reach = halfVoxelIncreased + voxelSize * SCAN_TOLERANCE;
+        int cnt = 0;
+
+        for(int i = min[0]; i <= max[0]; i++) {
+            findVoxelInWorldCoords(i, min[1], min[2], pos);
+
+            int num = clipPolygon(verts, 3, 0, pos[0] - reach, true, tmp);
+            num = clipPolygon(tmp, num, 0, pos[0] + reach, false, slab);
+
+            if (num == 0)
+                continue;
+
+            int row_min = Math.max(min[1], findCellBelow(polygonMin(slab, num, 1) - reach));
+            int row_max = Math.min(max[1], findCellAbove(polygonMax(slab, num, 1) + reach));
+
+            for(int j = row_min; j <= row_max; j++) {
+                findVoxelInWorldCoords(i, j, min[2], pos);
+
+                int row_num = clipPolygon(slab, num, 1, pos[1] - reach, true, tmp);
+                row_num = clipPolygon(tmp, row_num, 1, pos[1] + reach, false, row);
+
+                if (row_num == 0)
+                    continue;
+
+                int col_min = Math.max(min[2], findCellBelow(polygonMin(row, row_num, 2) - reach));
+                int col_max = Math.min(max[2], findCellAbove(polygonMax(row, row_num, 2) + reach));
 
-                wpos[0] = (float) (lineeq[0] + lineeq[1] * t);
-                wpos[1] = (float) (lineeq[2] + lineeq[3] * t);
-                wpos[2] = (float) (lineeq[4] + lineeq[5] * t);
+                if (col_min > col_max)
+                    continue;
 
-                findGridCoordsFromWorldCoords(wpos, gpos);
-                i = gpos[0];
-                j = gpos[1];
-                k = gpos[2];
+                int off = col_min - min[2];
+                int num_cols = col_max - col_min + 1;
 
-//System.out.println("Check cell: " + i + " " + j + " " + k);
+                if (BoxRunOverlap.overlapsZ(test, pos[0], pos[1], runZ, off, num_cols, hits) == 0)
+                    continue;
 
+                for(int k = col_min; k <= col_max; k++) {
+                    if (hits[k - min[2]]) {
+                        store.add(cellOrder.pack(i,j,k), tri.id);
 
-                if (i == last_i && j == last_j && k == last_k) {
-                } else {
-                    addData(i,j,k,tri.id);
-                    last_i = i;
-                    last_j = j;
-                    last_k = k;
+                        cnt++;
+                    }
                 }
             }
-            if (COLLECT_STATS) {
-                cellsFilled += steps;
-            }
         }
 
-        if (!direct) {
-/*
-System.out.println("Filling old way:  min: " + java.util.Arrays.toString(min));
-findVoxelInWorldCoords(0,0,0, vcoords);
-float[] wpos = new float[3];
-int[] vpos = new int[3];
-int idx = 0;
-wpos[0] = tri.coords[idx++];
-wpos[1] = tri.coords[idx++];
-wpos[2] = tri.coords[idx++];
-findGridCoordsFromWorldCoords(wpos, vpos);
-System.out.println("v0: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
-wpos[0] = tri.coords[idx++];
-wpos[1] = tri.coords[idx++];
-wpos[2] = tri.coords[idx++];
-findGridCoordsFromWorldCoords(wpos, vpos);
-System.out.println("v1: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
-wpos[0] = tri.coords[idx++];
-wpos[1] = tri.coords[idx++];
-wpos[2] = tri.coords[idx++];
-findGridCoordsFromWorldCoords(wpos, vpos);
-System.out.println("v2: " + java.util.Arrays.toString(wpos) + " --> " + java.util.Arrays.toString(vpos));
-*/
-/*
-            Vec3DDouble v0 = new Vec3DDouble(tri.coords[0], tri.coords[1], tri.coords[2]);
-            Vec3DDouble v1 = new Vec3DDouble(tri.coords[3], tri.coords[4], tri.coords[5]);
-            Vec3DDouble v2 = new Vec3DDouble(tri.coords[6], tri.coords[7], tri.coords[8]);
-*/
-            v0.set(tri.coords[0],tri.coords[1],tri.coords[2]);
-            v1.set(tri.coords[3],tri.coords[4],tri.coords[5]);
-            v2.set(tri.coords[6],tri.coords[7],tri.coords[8]);
+        return cnt;
+    }
 
-            int cnt = 0;
+    /**
+     * Clip a convex polygon against an axis aligned plane.
+     *
+     * @param in The polygon vertices, 3 values each
+     * @param num The number of vertices in
+     * @param axis The axis of the plane, 0 to 2
+     * @param value The plane position along the axis
+     * @param keepAbove true to keep the part at or above the plane
+     * @param out The clipped vertices, preallocate to SCAN_POLY_SIZE
+     * @return The number of vertices out, 0 if none remain
+     */
+    private static int clipPolygon(double[] in, int num, int axis,
+        double value, boolean keepAbove, double[] out) {
 
-//System.out.println("bounds: " + len_x + " " + len_y + " " + len_z);
-            for(int xc = 0; xc < len_x; xc++) {
-                for(int yc = 0; yc < len_y; yc++) {
-                    for(int zc = 0; zc < len_z; zc++) {
-                        i = min[0] + xc;
-                        j = min[1] + yc;
-                        k = min[2] + zc;
+        int ret_val = 0;
 
-                        findVoxelInWorldCoords(i,j,k, vcoords);
+        for(int n=0; n < num; n++) {
+            int cur = n * 3;
+            int next = ((n + 1) % num) * 3;
 
-//System.out.println("Testing: " + i + " " + j + " " + k + " " + java.util.Arrays.toString(vcoords));
-                        if (intersectsTriangle(v0,v1,v2, vcoords)) {
-                            addData(i,j,k, tri.id);
+            double cur_d = keepAbove ? in[cur + axis] - value : value - in[cur + axis];
+            double next_d = keepAbove ? in[next + axis] - value : value - in[next + axis];
 
-                            cnt++;
-                        }
-                    }
-                }
+            if (cur_d >= 0) {
+                out[ret_val * 3] = in[cur];
+                out[ret_val * 3 + 1] = in[cur + 1];
+                out[ret_val * 3 + 2] = in[cur + 2];
+                ret_val++;
             }
 
-            if (cnt == 0) {
-                System.out.println("ERROR: No cells marked from triangle: " + tri.id);
-                System.out.println("   area: " + tri.getArea() + " ratio: " + tri.getSideRatio());
-                printVertexCells(tri);
-
+            if ((cur_d < 0 && next_d > 0) || (cur_d > 0 && next_d < 0)) {
+                double t = cur_d / (cur_d - next_d);
 
-                if (triSmallerVoxel(tri)) {
-System.out.println("Smaller then voxel, fill: " + tri.id);
-                    fillVertexCells(tri);
+                for(int c=0; c < 3; c++) {
+                    out[ret_val * 3 + c] = in[cur + c] + t * (in[next + c] - in[cur + c]);
+                }
 
-                    cellsFilled += 3;  // This may overcount.
-                } else {
-                    // The other idea would be walk the affected voxels in a 3D Bresenham algo
-                    growMapping(nextID+2);
-                    Triangle[] tris = tri.splitTriangle(nextID);
-                    nextID += 2;
+                out[ret_val * 3 + axis] = value;
+                ret_val++;
+            }
+        }
 
+        return ret_val;
+    }
 
-                    if (splitDepth == 0) {
-                        System.out.println("Splitting triangle: " + java.util.Arrays.toString(tri.coords));
-                    } else {
+    /**
+     * Get the smallest coordinate of a polygon along an axis.
+     */
+    private static double polygonMin(double[] verts, int num, int axis) {
+        double ret_val = verts[axis];
 
-                        System.out.println("Split Depth: " + splitDepth);
-                    }
+        for(int n=1; n < num; n++) {
+            if (verts[n * 3 + axis] < ret_val)
+                ret_val = verts[n * 3 + axis];
+        }
 
-                    splitDepth++;
+        return ret_val;
+    }
 
-                    if (splitDepth > 2) {
-                        System.out.println("Too much splitting, bailing");
-                        fillVertexCells(tri);
+    /**
+     * Get the largest coordinate of a polygon along an axis.
+     */
+    private static double polygonMax(double[] verts, int num, int axis) {
+        double ret_val = verts[axis];
 
-                        cellsFilled += 3;  // This may overcount.
-                        return;
-                    }
+        for(int n=1; n < num; n++) {
+            if (verts[n * 3 + axis] > ret_val)
+                ret_val = verts[n * 3 + axis];
+        }
 
-                    for(int n=0; n < tris.length; n++) {
-                        insert(tris[n], false);
-                    }
-                    splitDepth--;
-                }
+        return ret_val;
+    }
 
-            } else {
-                cellsFilled += cnt;
-            }
+    /**
+     * Find the cell whose center is at or below a world position along an
+     * axis.  Not clamped to the grid.
+     *
+     * @param w The world position
+     * @return The cell index
+     */
+    private int findCellBelow(double w) {
+        return (int) Math.floor((w - halfVoxel) / voxelSize) + half;
+    }
 
-        }
+    /**
+     * Find the cell whose center is at or above a world position along an
+     * axis.  Not clamped to the grid.
+     *
+     * @param w The world position
+     * @return The cell index
+     */
+    private int findCellAbove(double w) {
+        return (int) Math.ceil((w - halfVoxel) / voxelSize) + half;
     }
 
     /**
@@ -1140,19 +2375,13 @@ System.out.println("Smaller then voxel, fill: " + tri.id);
 
             StringBuilder buff2 = new StringBuilder();
             boolean nonzero = false;
-            int[] val;
 
             for(int y = 0; y < numVoxels; y++) {
                 for(int z = 0; z < numVoxels; z++) {
-                    int cnt;
+                    int cnt = getCount(x,y,z);
 
-                    val = getData(x,y,z);
-                    if (val == null)
-                        cnt = 0;
-                    else {
+                    if (cnt != 0)
                         nonzero = true;
-                        cnt = val.length;
-                    }
 
                     buff2.append(numberFormater.format(cnt));
                     buff2.append(" ");
@@ -1192,39 +2421,16 @@ System.out.println("Smaller then voxel, fill: " + tri.id);
 
         //System.out.println("Counts: \n" + gridCountsToString());
 
-        long empty = 0;
-        int max = 0;
-        int thresh = 1;
-        long tcount = 0;
-        int[] val;
-
-        for(int x = 0; x < numVoxels; x++) {
-            for(int y = 0; y < numVoxels; y++) {
-                for(int z = 0; z < numVoxels; z++) {
-                    val = getData(x,y,z);
-
-                    if (val == null) {
-                        empty++;
-                        continue;
-                    }
-
-                    int size = val.length;
-
-                    if (size > max) {
-                        max = size;
-                    }
+        long tot = (long) numVoxels * numVoxels * numVoxels;
+        long filled = data.size();
 
-                    if (size >= thresh) {
-                        tcount++;
-                    }
-                }
-            }
-        }
+        System.out.println("Cells: " + (tot) + " empty: " + (tot - filled) + " percent: " + ((float) (tot - filled) / tot) + " filled: " + filled);
+        System.out.println("max: " + data.getMaxCount() + " ids: " + data.getNumIds() + " avg per filled: " + ((float) data.getNumIds() / Math.max(1, filled)));
 
-        long tot = numVoxels * numVoxels * numVoxels;
+        PartitionMetrics m = metrics;
 
-        System.out.println("Cells: " + (tot) + " empty: " + empty + " percent: " + ((float) empty / tot) + " filled: " + (tot - empty));
-        System.out.println("max: " + max + " exc thresh: " + tcount);
+        if (m != null)
+            System.out.print(m);
     }
 
     /**
@@ -1379,156 +2585,10 @@ System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
      * @param pos The voxel center position
      */
     public boolean intersectsTriangle(Vec3DDouble a, Vec3DDouble b, Vec3DDouble c, float[] pos) {
-        // use separating axis theorem to test overlap between triangle and box
-        // need to test for overlap in these directions:
-        //
-        // 1) the {x,y,z}-directions (actually, since we use the AABB of the
-        // triangle
-        // we do not even need to test these)
-        // 2) normal of the triangle
-        // 3) crossproduct(edge from tri, {x,y,z}-directin)
-        // this gives 3x3=9 more tests
-        Vec3DDouble v0, v1, v2;
-        Vec3DDouble normal, e0, e1, e2, f;
-
-        // move everything so that the boxcenter is in (0,0,0)
-        v0 = a.sub(pos[0],pos[1],pos[2]);
-        v1 = b.sub(pos[0],pos[1],pos[2]);
-        v2 = c.sub(pos[0],pos[1],pos[2]);
-
-        // compute triangle edges
-        e0 = v1.sub(v0);
-
-//        float hv = (float) halfVoxel;
         double hv = halfVoxelIncreased;
 
-        // test the 9 tests first (this was faster)
-        f = e0.getAbs();
-        if (testAxis(e0.z, -e0.y, f.z, f.y, v0.y, v0.z, v2.y, v2.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(-e0.z, e0.x, f.z, f.x, v0.x, v0.z, v2.x, v2.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(e0.y, -e0.x, f.y, f.x, v1.x, v1.y, v2.x, v2.y, hv,
-                hv)) {
-            return false;
-        }
-
-        e1 = v2.sub(v1);
-        f = e1.getAbs();
-        if (testAxis(e1.z, -e1.y, f.z, f.y, v0.y, v0.z, v2.y, v2.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(-e1.z, e1.x, f.z, f.x, v0.x, v0.z, v2.x, v2.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(e1.y, -e1.x, f.y, f.x, v0.x, v0.y, v1.x, v1.y, hv,
-                hv)) {
-            return false;
-        }
-
-        e2 = v0.sub(v2);
-        f = e2.getAbs();
-
-        if (testAxis(e2.z, -e2.y, f.z, f.y, v0.y, v0.z, v1.y, v1.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(-e2.z, e2.x, f.z, f.x, v0.x, v0.z, v1.x, v1.z, hv,
-                hv)) {
-            return false;
-        }
-        if (testAxis(e2.y, -e2.x, f.y, f.x, v1.x, v1.y, v2.x, v2.y, hv,
-                hv)) {
-            return false;
-        }
-
-        // first test overlap in the {x,y,z}-directions
-        // find min, max of the triangle each direction, and test for overlap in
-        // that direction -- this is equivalent to testing a minimal AABB around
-        // the triangle against the AABB
-
-        // test in X-direction
-        if (MathUtils.min(v0.x, v1.x, v2.x) > hv
-                || MathUtils.max(v0.x, v1.x, v2.x) < -hv) {
-            return false;
-        }
-
-        // test in Y-direction
-        if (MathUtils.min(v0.y, v1.y, v2.y) > hv
-                || MathUtils.max(v0.y, v1.y, v2.y) < -hv) {
-            return false;
-        }
-
-        // test in Z-direction
-        if (MathUtils.min(v0.z, v1.z, v2.z) > hv
-                || MathUtils.max(v0.z, v1.z, v2.z) < -hv) {
-            return false;
-        }
-
-        // test if the box intersects the plane of the triangle
-        // compute plane equation of triangle: normal*x+d=0
-        normal = e0.cross(e1);
-//        float d = -normal.dot(v0);
-        double d = -normal.dot(v0);
-
-/*
-        if (d < 0.0000001) {
-            System.out.println("Parallel triangle sides detected");
-            if (!planeBoxOverlap(normal, d, hv)) {
-                return false;
-            }
-        }
-*/
-        if (!planeBoxOverlap(normal, d, hv)) {
-            return false;
-        }
-        return true;
-    }
-
-    /**
-     * Does a plane and box overlap.
-     *
-     * @param normal Normal to the plane
-     * @param d Distance
-     * @param hv Half voxel size
-     */
-    private boolean planeBoxOverlap(Vec3DDouble normal, double d, double hv) {
-        if (normal.x > 0.0f) {
-            vmin.x = -hv;
-            vmax.x = hv;
-        } else {
-            vmin.x = hv;
-            vmax.x = -hv;
-        }
-
-        if (normal.y > 0.0f) {
-            vmin.y = -hv;
-            vmax.y = hv;
-        } else {
-            vmin.y = hv;
-            vmax.y = -hv;
-        }
-
-        if (normal.z > 0.0f) {
-            vmin.z = -hv;
-            vmax.z = hv;
-        } else {
-            vmin.z = hv;
-            vmax.z = -hv;
-        }
-        if (normal.dot(vmin) + d > 0.0f) {
-            return false;
-        }
-        if (normal.dot(vmax) + d >= 0.0f) {
-            return true;
-        }
-        return false;
+        return TriangleBoxOverlap.triBoxOverlap(a.x, a.y, a.z, b.x, b.y, b.z, c.x, c.y, c.z,
+            pos[0], pos[1], pos[2], hv, hv, hv);
     }
 
     /**
@@ -1592,25 +2652,6 @@ System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
         return (min > rad || max < -rad);
     }
 
-    /**
-     * Test and axis intersection.
-     */
-    private boolean testAxis(double a, double b, double fa, double fb, double va,
-            double vb, double wa, double wb, double ea, double eb) {
-        double p0 = a * va + b * vb;
-        double p2 = a * wa + b * wb;
-        double min, max;
-        if (p0 < p2) {
-            min = p0;
-            max = p2;
-        } else {
-            min = p2;
-            max = p0;
-        }
-        double rad = fa * ea + fb * eb;
-        return (min > rad || max < -rad);
-    }
-
     /**
      * Calc parametric line equation for 2 points.
      * Returns 3 equations of x=a - bt, y=c - dt, z=e - ft
@@ -1628,92 +2669,260 @@ System.out.println("maxCoords: " + java.util.Arrays.toString(maxCoords));
         lineeq[5] = b[2] - a[2];
     }
 
-    HashMap<Integer, Integer> idCache = new HashMap<Integer,Integer>();
-    int miss = 0;
+    HashMap<Integer, Integer> idCache = new HashMap<Integer,Integer>();
+    int miss = 0;
+
+    private Integer getIntegerID(Triangle tri) {
+
+        // TODO: This uses more memory?
+
+        Integer id = new Integer(tri.id);
+
+        Integer ret_val = idCache.get(id);
+
+        if (ret_val != null)
+            return ret_val;
+
+        idCache.put(id, id);
+        miss++;
+
+/*
+        if (miss % 1000 == 0) {
+            System.out.println("miss: " + miss);
+        }
+*/
+        return id;
+    }
+
+    /**
+     * Search shells of voxels outward from a point for the nearest
+     * triangles.
+     *
+     * @param px The point x
+     * @param py The point y
+     * @param pz The point z
+     * @param heap The best triangles so far
+     * @param seen Scratch holding the triangles tested so far
+     */
+    private void searchNearest(float px, float py, float pz, NearestHeap heap,
+        GenerationIdSet seen) {
+
+        seen.clear();
+        seen.ensureCapacity(nextID);
+
+        if (data.size() == 0)
+            return;
+
+        final int cx = findGridCoordsFromWorldCoords(px);
+        final int cy = findGridCoordsFromWorldCoords(py);
+        final int cz = findGridCoordsFromWorldCoords(pz);
+        final int last = numVoxels - 1;
+
+        // Once this shell is searched every voxel has been
+        int max_r = Math.max(cx, last - cx);
+        max_r = Math.max(max_r, Math.max(cy, last - cy));
+        max_r = Math.max(max_r, Math.max(cz, last - cz));
+
+        for(int r=0; r <= max_r; r++) {
+            int x0 = Math.max(cx - r, 0);
+            int x1 = Math.min(cx + r, last);
+            int y0 = Math.max(cy - r, 0);
+            int y1 = Math.min(cy + r, last);
+            int z0 = Math.max(cz - r, 0);
+            int z1 = Math.min(cz + r, last);
+
+            for(int i = x0; i <= x1; i++) {
+                boolean x_face = (i == cx - r || i == cx + r);
+
+                for(int j = y0; j <= y1; j++) {
+                    if (x_face || j == cy - r || j == cy + r) {
+                        for(int k = z0; k <= z1; k++) {
+                            nearestInCell(i, j, k, px, py, pz, heap, seen);
+                        }
+                    } else {
+                        // Inside the shell only the z faces are new
+                        if (cz - r >= 0)
+                            nearestInCell(i, j, cz - r, px, py, pz, heap, seen);
+
+                        if (r > 0 && cz + r <= last)
+                            nearestInCell(i, j, cz + r, px, py, pz, heap, seen);
+                    }
+                }
+            }
+
+            if (!heap.isFull())
+                continue;
+
+            // The nearest any unsearched voxel can be
+            double bound = Double.POSITIVE_INFINITY;
+
+            if (cx - r > 0)
+                bound = Math.min(bound, px - (minGridWorldCoord + (cx - r) * voxelSize));
+            if (cx + r < last)
+                bound = Math.min(bound, minGridWorldCoord + (cx + r + 1) * voxelSize - px);
+            if (cy - r > 0)
+                bound = Math.min(bound, py - (minGridWorldCoord + (cy - r) * voxelSize));
+            if (cy + r < last)
+                bound = Math.min(bound, minGridWorldCoord + (cy + r + 1) * voxelSize - py);
+            if (cz - r > 0)
+                bound = Math.min(bound, pz - (minGridWorldCoord + (cz - r) * voxelSize));
+            if (cz + r < last)
+                bound = Math.min(bound, minGridWorldCoord + (cz + r + 1) * voxelSize - pz);
+
+            if (bound < 0)
+                bound = 0;
+
+            if (heap.worst() <= bound * bound)
+                break;
+        }
+    }
+
+    /**
+     * Offer the triangles of a voxel to a nearest heap.  The voxel is
+     * skipped when it is further than the worst of a full heap.
+     *
+     * @param x The voxel x
+     * @param y The voxel y
+     * @param z The voxel z
+     * @param px The point x
+     * @param py The point y
+     * @param pz The point z
+     * @param heap The best triangles so far
+     * @param seen Scratch holding the triangles tested so far
+     */
+    private void nearestInCell(int x, int y, int z, float px, float py, float pz,
+        NearestHeap heap, GenerationIdSet seen) {
 
-    private Integer getIntegerID(Triangle tri) {
+        int slot = data.findSlot(cellOrder.pack(x, y, z));
 
-        // TODO: This uses more memory?
+        if (slot < 0)
+            return;
 
-        Integer id = new Integer(tri.id);
+        if (heap.isFull()) {
+            double dx = axisDistance(x, px);
+            double dy = axisDistance(y, py);
+            double dz = axisDistance(z, pz);
 
-        Integer ret_val = idCache.get(id);
+            if (dx * dx + dy * dy + dz * dz > heap.worst())
+                return;
+        }
 
-        if (ret_val != null)
-            return ret_val;
+        int[] ids = data.getIds(slot);
+        int cnt = data.getCount(slot);
+        float[] coords = triMapping.getCoords();
 
-        idCache.put(id, id);
-        miss++;
+        for(int n=0; n < cnt; n++) {
+            int id = ids[n];
 
-/*
-        if (miss % 1000 == 0) {
-            System.out.println("miss: " + miss);
+            if (seen.add(id)) {
+                double dist = TrianglePointDistance.closestPoint(coords,
+                    id * TriangleStore.STRIDE, px, py, pz, null);
+
+                heap.offer(id, dist);
+            }
         }
-*/
-        return id;
     }
 
-    private int[] getData(VoxelCoordinate vc) {
-        int[] ret_val = data.get(vc);
+    /**
+     * Distance along one axis from a coordinate to a voxel.
+     *
+     * @param cell The voxel coordinate
+     * @param coord The world coordinate
+     * @return The distance, 0 if the coordinate is within the voxel
+     */
+    private double axisDistance(int cell, float coord) {
+        double lo = minGridWorldCoord + cell * voxelSize;
 
-        return ret_val;
+        if (coord < lo)
+            return lo - coord;
+
+        double hi = lo + voxelSize;
+
+        if (coord > hi)
+            return coord - hi;
+
+        return 0;
     }
 
-    private int[] getData(int x, int y, int z) {
-        svc.setValue(x,y,z);
+    /**
+     * Clamp a voxel coordinate to the grid.
+     *
+     * @param pos The coordinate
+     * @return The clamped coordinate
+     */
+    private int clampVoxel(int pos) {
+        if (pos < 0)
+            return 0;
 
-        int[] ret_val = data.get(svc);
+        if (pos > numVoxels - 1)
+            return numVoxels - 1;
 
-        return ret_val;
+        return pos;
     }
 
-    private void addData(int i, int j, int k, int id) {
-        VoxelCoordinate vc = new VoxelCoordinate(i,j,k);
-        int[] val = getData(vc);
+    /**
+     * Find the ray distance of the next voxel boundary along one axis.
+     *
+     * @param cell The current voxel coordinate
+     * @param step The direction of travel, -1, 0 or 1
+     * @param o The ray origin on this axis
+     * @param d The ray direction on this axis
+     * @return The distance, infinite if the ray never crosses
+     */
+    private double voxelBoundary(int cell, int step, double o, double d) {
+        if (step == 0)
+            return Double.POSITIVE_INFINITY;
 
-        if (val == null) {
-            val = new int[] {id};
-            data.put(vc, val);
-        } else {
-            int new_size = val.length + 1;
+        double bound = (cell - half + (step > 0 ? 1 : 0)) * voxelSize;
 
-            // TODO:  Would arrayCopy be faster, with the small
-            // expected size I think not
-            int[] new_val = new int[new_size];
-            System.arraycopy(val, 0, new_val, 0, val.length);
-            new_val[val.length] = id;
-            data.put(vc, new_val);
-        }
+        return (bound - o) / d;
+    }
+
+    /**
+     * Throw an exception if the partition is read only.
+     *
+     * @throws IllegalStateException The partition is read only
+     */
+    private void checkWritable() {
+        if (readOnly)
+            throw new IllegalStateException("Partition is read only");
     }
 
     /**
-     * Grow the triangle mapping to at least the specified param.
+     * Get a copy of the ids in a cell.
      *
-     * @param min The new minimum
+     * @return The ids or null if the cell is empty
      */
-    private void growMapping(int min) {
-        int len = triMapping.length;
+    private int[] getData(int x, int y, int z) {
+        return data.toArray(cellOrder.pack(x,y,z));
+    }
 
-        // TODO: Can we arrayCopy to speed this?
+    /**
+     * Get the number of ids in a cell.
+     *
+     * @return The count, 0 if the cell is empty
+     */
+    private int getCount(int x, int y, int z) {
+        int slot = data.findSlot(cellOrder.pack(x,y,z));
 
-        if (len < min) {
-System.out.println("Growing map");
-            float [][] new_mapping = new float[(int) (min * TRI_MAPPING_GROWTH)][9];
+        return (slot < 0) ? 0 : data.getCount(slot);
+    }
 
-            for(int i=0; i < len; i++) {
-                new_mapping[i][0] = triMapping[i][0];
-                new_mapping[i][1] = triMapping[i][1];
-                new_mapping[i][2] = triMapping[i][2];
-                new_mapping[i][3] = triMapping[i][3];
-                new_mapping[i][4] = triMapping[i][4];
-                new_mapping[i][5] = triMapping[i][5];
-                new_mapping[i][6] = triMapping[i][6];
-                new_mapping[i][7] = triMapping[i][7];
-                new_mapping[i][8] = triMapping[i][8];
-            }
+    private void addData(int i, int j, int k, int id) {
+        data.add(cellOrder.pack(i,j,k), id);
+    }
 
-            triMapping = new_mapping;
-        }
+    /**
+     * Store the coordinates of a triangle, making sure later split
+     * triangles get ids after it.
+     *
+     * @param tri The triangle
+     */
+    private void addMapping(Triangle tri) {
+        triMapping.set(tri.id, tri.coords, 0);
+
+        if (tri.id >= nextID)
+            nextID = tri.id + 1;
     }
 
     private boolean triSmallerVoxel(Triangle tri) {
@@ -1943,4 +3152,522 @@ System.out.println("ret: " + java.util.Arrays.toString(ret_val));
 
     }
 
+    /**
+     * Scratch arrays for marking the cells of one triangle.  The run arrays
+     * grow to the longest run of cells seen and are reused after that.
+     */
+    private static class FillScratch {
+        /** The z centers of a run of cells */
+        double[] runZ;
+
+        /** The overlap results of a run of cells */
+        boolean[] hits;
+
+        /** A voxel center */
+        final float[] pos;
+
+        /** The triangle vertices */
+        final double[] verts;
+
+        /** The triangle clipped to an x slab */
+        final double[] slab;
+
+        /** The slab clipped to a y row */
+        final double[] row;
+
+        /** The result of the first clip of each pair */
+        final double[] tmp;
+
+        FillScratch() {
+            runZ = new double[16];
+            hits = new boolean[16];
+            pos = new float[3];
+            verts = new double[9];
+            slab = new double[SCAN_POLY_SIZE];
+            row = new double[SCAN_POLY_SIZE];
+            tmp = new double[SCAN_POLY_SIZE];
+        }
+
+        /**
+         * Make sure the run arrays hold a run of cells.
+         *
+         * @param len The number of cells in the run
+         */
+        void ensureRun(int len) {
+            if (runZ.length >= len)
+                return;
+
+            int size = Math.max(len, runZ.length * 2);
+
+            runZ = new double[size];
+            hits = new boolean[size];
+        }
+    }
+
+    /**
+     * Rasterizes a range of triangles into its own cell store, then sorts
+     * the cells by shard.  Each task has its own scratch so many can run at
+     * once.  The store and scratch are allocated by compute so it happens
+     * on the worker thread.
+     */
+    private class BulkFillTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        /** The triangles */
+        private final Triangle[] tris;
+
+        /** The first triangle to fill */
+        private final int start;
+
+        /** The last triangle to fill, exclusive */
+        private final int end;
+
+        /** Should the bounds be used instead of the exact object */
+        private final boolean useBounds;
+
+        /** The log2 of the number of shards */
+        private final int shardBits;
+
+        /** The cells filled by this task */
+        VoxelStore store;
+
+        /** The slots of the store, grouped by shard */
+        int[] shardSlots;
+
+        /** Where each shards slots start, one more than the shards */
+        int[] shardStart;
+
+        /** Triangles which need splitting, these are inserted serially */
+        final ArrayList<Triangle> deferred;
+
+        /** How many cells have been filled by this task */
+        int cellsFilled;
+
+        /** Scratch variables */
+        private float[] minB;
+        private float[] maxB;
+        private int[] minC;
+        private int[] maxC;
+        private FillScratch scratch;
+        private TriangleBoxOverlap.Setup test;
+
+        BulkFillTask(Triangle[] tris, int start, int end, boolean useBounds,
+            int shardBits) {
+
+            this.tris = tris;
+            this.start = start;
+            this.end = end;
+            this.useBounds = useBounds;
+            this.shardBits = shardBits;
+
+            deferred = new ArrayList<Triangle>();
+        }
+
+        protected void compute() {
+            store = new VoxelStore((end - start) * 4);
+
+            minB = new float[3];
+            maxB = new float[3];
+            minC = new int[3];
+            maxC = new int[3];
+            scratch = new FillScratch();
+            test = new TriangleBoxOverlap.Setup();
+
+            PartitionMetrics m = metrics;
+
+            for(int n=start; n < end; n++) {
+                int filled = cellsFilled;
+                int num_deferred = deferred.size();
+
+                fill(tris[n]);
+
+                // Deferred triangles are recorded when they are inserted
+                if (m != null && deferred.size() == num_deferred)
+                    m.recordCells(cellsFilled - filled);
+            }
+
+            sortShards();
+        }
+
+        /**
+         * Group the slots of the store by shard, keeping slot order within
+         * a shard.
+         */
+        private void sortShards() {
+            int num_shards = 1 << shardBits;
+            int cap = store.capacity();
+
+            shardStart = new int[num_shards + 1];
+            shardSlots = new int[store.size()];
+
+            for(int slot=0; slot < cap; slot++) {
+                long key = store.getKey(slot);
+
+                if (key != VoxelStore.EMPTY_KEY)
+                    shardStart[VoxelStore.shardOf(key, shardBits) + 1]++;
+            }
+
+            for(int i=0; i < num_shards; i++) {
+                shardStart[i + 1] += shardStart[i];
+            }
+
+            int[] fill = new int[num_shards];
+
+            for(int slot=0; slot < cap; slot++) {
+                long key = store.getKey(slot);
+
+                if (key == VoxelStore.EMPTY_KEY)
+                    continue;
+
+                int shard = VoxelStore.shardOf(key, shardBits);
+
+                shardSlots[shardStart[shard] + fill[shard]++] = slot;
+            }
+        }
+
+        /**
+         * Fill the cells of one triangle into the store, deferring it if
+         * it needs splitting.
+         */
+        private void fill(Triangle tri) {
+            calcCellBounds(tri, minB, maxB, minC, maxC);
+
+            if (useBounds) {
+                for(int i = minC[0]; i <= maxC[0]; i++) {
+                    for(int j = minC[1]; j <= maxC[1]; j++) {
+                        for(int k = minC[2]; k <= maxC[2]; k++) {
+                            store.add(cellOrder.pack(i,j,k), tri.id);
+                        }
+                    }
+                }
+
+                cellsFilled += (maxC[0] - minC[0] + 1) *
+                               (maxC[1] - minC[1] + 1) *
+                               (maxC[2] - minC[2] + 1);
+
+                return;
+            }
+
+            int cells = (maxC[0] - minC[0] + 1) *
+                        (maxC[1] - minC[1] + 1) *
+                        (maxC[2] - minC[2] + 1);
+
+            if (cells <= 2) {
+                // Same shortcut as fillCellsExact, fill the end cells
+                store.add(cellOrder.pack(minC[0], minC[1], minC[2]), tri.id);
+
+                if (cells == 2)
+                    store.add(cellOrder.pack(maxC[0], maxC[1], maxC[2]), tri.id);
+
+                cellsFilled += cells;
+
+                return;
+            }
+
+            int cnt = markIntersectedCells(minC, maxC, tri, store, test, scratch);
+
+            if (cnt == 0)
+                deferred.add(tri);
+            else
+                cellsFilled += cnt;
+        }
+    }
+
+    /**
+     * Gathers the cells of one shard from every bulk fill task, in task
+     * order, into a store of its own.
+     */
+    private static class ShardGatherTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        /** The finished fill tasks */
+        private final BulkFillTask[] tasks;
+
+        /** The shard to gather */
+        private final int shard;
+
+        /** The log2 of the number of shards */
+        private final int shardBits;
+
+        /** Where to put the shard cells, by shard */
+        private final VoxelStore[] shardCells;
+
+        ShardGatherTask(BulkFillTask[] tasks, int shard, int shardBits,
+            VoxelStore[] shardCells) {
+
+            this.tasks = tasks;
+            this.shard = shard;
+            this.shardBits = shardBits;
+            this.shardCells = shardCells;
+        }
+
+        protected void compute() {
+            int num_cells = 0;
+
+            for(int i=0; i < tasks.length; i++) {
+                num_cells += tasks[i].shardStart[shard + 1] - tasks[i].shardStart[shard];
+            }
+
+            VoxelStore cells = new VoxelStore(num_cells, shardBits);
+
+            for(int i=0; i < tasks.length; i++) {
+                VoxelStore store = tasks[i].store;
+                int[] slots = tasks[i].shardSlots;
+                int end = tasks[i].shardStart[shard + 1];
+
+                for(int n=tasks[i].shardStart[shard]; n < end; n++) {
+                    int slot = slots[n];
+
+                    cells.addAll(store.getKey(slot), store.getIds(slot), store.getCount(slot));
+                }
+            }
+
+            shardCells[shard] = cells;
+        }
+    }
+
+    /**
+     * Merges the gathered cells of one shard into the cell table.
+     */
+    private class ShardMergeTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        /** The cells of the shard */
+        private final VoxelStore cells;
+
+        /** The shard to merge */
+        private final int shard;
+
+        /** The log2 of the number of shards */
+        private final int shardBits;
+
+        /** Where the merge counts go */
+        private final VoxelStore.MergeResult result;
+
+        ShardMergeTask(VoxelStore cells, int shard, int shardBits,
+            VoxelStore.MergeResult result) {
+
+            this.cells = cells;
+            this.shard = shard;
+            this.shardBits = shardBits;
+            this.result = result;
+        }
+
+        protected void compute() {
+            data.mergeShard(cells, shard, shardBits, result);
+        }
+    }
+
+    /**
+     * Runs a set of tasks and waits for them all.
+     */
+    private static class InvokeAllTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        /** The tasks to run */
+        private final RecursiveAction[] tasks;
+
+        InvokeAllTask(RecursiveAction[] tasks) {
+            this.tasks = tasks;
+        }
+
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * The nearest triangles found so far, kept as a max heap on squared
+     * distance so the worst is replaced first.
+     */
+    private static class NearestHeap {
+        /** The ids in heap order */
+        final int[] ids;
+
+        /** The squared distances in heap order */
+        final double[] dists;
+
+        /** The number of entries */
+        int size;
+
+        NearestHeap(int k) {
+            ids = new int[k];
+            dists = new double[k];
+        }
+
+        boolean isFull() {
+            return size == ids.length;
+        }
+
+        /**
+         * Get the worst squared distance, only valid when not empty.
+         */
+        double worst() {
+            return dists[0];
+        }
+
+        /**
+         * Offer a triangle, kept if there is room or it beats the worst.
+         *
+         * @param id The triangle id
+         * @param dist The squared distance
+         */
+        void offer(int id, double dist) {
+            if (size < ids.length) {
+                int n = size++;
+
+                while(n > 0) {
+                    int parent = (n - 1) >> 1;
+
+                    if (dists[parent] >= dist)
+                        break;
+
+                    ids[n] = ids[parent];
+                    dists[n] = dists[parent];
+                    n = parent;
+                }
+
+                ids[n] = id;
+                dists[n] = dist;
+            } else if (dist < dists[0]) {
+                siftDown(id, dist, size);
+            }
+        }
+
+        /**
+         * Empty the heap into arrays, closest first.
+         *
+         * @param outIds The ids
+         * @param outDists The distances, not squared
+         * @return The number of entries
+         */
+        int drain(int[] outIds, double[] outDists) {
+            int ret_val = size;
+
+            for(int n = size - 1; n >= 0; n--) {
+                outIds[n] = ids[0];
+                outDists[n] = Math.sqrt(dists[0]);
+
+                // Move the last entry to the root and restore the heap
+                siftDown(ids[n], dists[n], n);
+            }
+
+            size = 0;
+
+            return ret_val;
+        }
+
+        /**
+         * Place an entry at the root and sift it down.
+         *
+         * @param id The triangle id
+         * @param dist The squared distance
+         * @param len The number of entries in the heap
+         */
+        private void siftDown(int id, double dist, int len) {
+            int n = 0;
+
+            while(true) {
+                int child = 2 * n + 1;
+
+                if (child >= len)
+                    break;
+
+                if (child + 1 < len && dists[child + 1] > dists[child])
+                    child++;
+
+                if (dists[child] <= dist)
+                    break;
+
+                ids[n] = ids[child];
+                dists[n] = dists[child];
+                n = child;
+            }
+
+            ids[n] = id;
+            dists[n] = dist;
+        }
+    }
+
+    /**
+     * Finds the closest points for a range of a batch.  Each task has its
+     * own scratch so many can run at once.
+     */
+    private class ClosestPointTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        private final float[] points;
+        private final int numPoints;
+        private final int[] hitIds;
+        private final float[] hitPoints;
+        private final float[] hitDists;
+        private final int start;
+        private final int end;
+
+        ClosestPointTask(float[] points, int numPoints, int[] hitIds,
+            float[] hitPoints, float[] hitDists, int start, int end) {
+
+            this.points = points;
+            this.numPoints = numPoints;
+            this.hitIds = hitIds;
+            this.hitPoints = hitPoints;
+            this.hitDists = hitDists;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start > POINTS_PER_TASK) {
+                int mid = (start + end) >>> 1;
+
+                invokeAll(new ClosestPointTask(points, numPoints, hitIds, hitPoints, hitDists, start, mid),
+                          new ClosestPointTask(points, numPoints, hitIds, hitPoints, hitDists, mid, end));
+
+                return;
+            }
+
+            findRange();
+        }
+
+        /**
+         * Find the closest points of the whole range on the calling thread.
+         */
+        void findRange() {
+            GenerationIdSet seen = new GenerationIdSet(nextID);
+            NearestHeap heap = new NearestHeap(1);
+            double[] cp = new double[3];
+
+            for(int n = start; n < end; n++) {
+                float px = points[n];
+                float py = points[numPoints + n];
+                float pz = points[2 * numPoints + n];
+
+                searchNearest(px, py, pz, heap, seen);
+
+                if (heap.size == 0) {
+                    hitIds[n] = -1;
+                    hitDists[n] = Float.POSITIVE_INFINITY;
+
+                    continue;
+                }
+
+                int id = heap.ids[0];
+                double dist = TrianglePointDistance.closestPoint(triMapping.getCoords(),
+                    id * TriangleStore.STRIDE, px, py, pz, cp);
+
+                hitIds[n] = id;
+                hitDists[n] = (float) Math.sqrt(dist);
+                hitPoints[n] = (float) cp[0];
+                hitPoints[numPoints + n] = (float) cp[1];
+                hitPoints[2 * numPoints + n] = (float) cp[2];
+
+                heap.size = 0;
+            }
+        }
+    }
 }
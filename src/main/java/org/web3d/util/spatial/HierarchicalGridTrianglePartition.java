@@ -0,0 +1,616 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.BitSet;
+
+// Internal Imports
+import org.web3d.util.IntHashSet;
+import org.web3d.util.LongHashMap;
+
+/**
+ * A two level spatial structure using a coarse grid whose crowded cells are
+ * refined into fine sub-grids.
+ * <p>
+ *
+ * The grid covers the same space as a GridTrianglePartition with the same
+ * voxel size and voxel count, and regions are given in the same fine cell
+ * coordinates.  Triangles are first placed in coarse cells, each covering
+ * cellsPerCoarseSide fine cells per axis.  Once a coarse cell holds more
+ * than the split threshold of triangles, its triangles are rasterized into
+ * a fine sub-grid for that cell only.  Sparse areas then cost one cell per
+ * coarse cell while dense areas get fine resolution.
+ * <p>
+ *
+ * A query box which only partly covers a coarse cell without a sub-grid
+ * tests each of the cells triangles against the box, so results match a
+ * fine grid built the same way.
+ * <p>
+ *
+ * Inserting is not thread-safe.  Once built, any number of threads can
+ * query the partition without locking.
+ *
+ * @version $Id: $
+ */
+public class HierarchicalGridTrianglePartition implements SpatialPartition {
+
+    /** Fraction of a voxel a triangle may be outside a cell and still count */
+    private static final double BOUNDARY_TOLERANCE = 0.01;
+
+    /** The starting number of coarse cells */
+    private static final int INITIAL_COARSE_CELLS = 1024;
+
+    /** The fine voxel size */
+    private final double voxelSize;
+
+    /** The number of fine voxels each axis */
+    private final int numVoxels;
+
+    /** The number of fine cells along each side of a coarse cell */
+    private final int refine;
+
+    /** Split a coarse cell once it holds more than this many triangles */
+    private final int splitThreshold;
+
+    /** The minimum grid position in world coordinates */
+    private final double minGridWorldCoord;
+
+    /** Extra half size added to boxes for exact tests */
+    private final double boxMargin;
+
+    /** The triangles by coarse cell, always complete */
+    private VoxelStore coarse;
+
+    /** The fine sub-grids of split coarse cells, by coarse key */
+    private LongHashMap<SubGrid> subGrids;
+
+    /** The triangle coordinates by id */
+    private TriangleStore triMapping;
+
+    /** The ids inserted using bounds rather than exact tests */
+    private BitSet boundsInserted;
+
+    /** Scratch fine cell bounds */
+    private int[] minCoords;
+    private int[] maxCoords;
+
+    /**
+     * Constructor.
+     *
+     * @param voxelSize The size of each fine voxel in meters
+     * @param numVoxelsPerSide The number of fine voxels in each axis.  Must
+     *    be even and a multiple of cellsPerCoarseSide
+     * @param cellsPerCoarseSide The number of fine cells along each side of
+     *    a coarse cell
+     * @param splitThreshold Split a coarse cell once it holds more than this
+     *    many triangles
+     * @param numTris The expected number of triangles
+     */
+    public HierarchicalGridTrianglePartition(double voxelSize, int numVoxelsPerSide,
+        int cellsPerCoarseSide, int splitThreshold, int numTris) {
+
+        if (numVoxelsPerSide % 2 != 0)
+            throw new IllegalArgumentException("Number of voxels per side must be even");
+
+        if (numVoxelsPerSide > CellKey.MAX_COORD + 1)
+            throw new IllegalArgumentException("Number of voxels per side must be <= " + (CellKey.MAX_COORD + 1));
+
+        if (cellsPerCoarseSide < 1 || numVoxelsPerSide % cellsPerCoarseSide != 0)
+            throw new IllegalArgumentException("Number of voxels per side must be a multiple of the cells per coarse side");
+
+        if (splitThreshold < 1)
+            throw new IllegalArgumentException("Split threshold must be positive");
+
+        this.voxelSize = voxelSize;
+        this.numVoxels = numVoxelsPerSide;
+        this.refine = cellsPerCoarseSide;
+        this.splitThreshold = splitThreshold;
+
+        minGridWorldCoord = - numVoxels / 2 * voxelSize;
+        boxMargin = voxelSize / 2.0 * 0.02;
+
+        triMapping = new TriangleStore(numTris);
+        minCoords = new int[3];
+        maxCoords = new int[3];
+
+        clearData();
+    }
+
+    //-------------------------------------------------------------
+    // Methods defined by SpatialPartition
+    //-------------------------------------------------------------
+
+    /**
+     * Clear the structure of all data.
+     */
+    public void clear() {
+        clearData();
+    }
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles or null if none
+     */
+    public int[] getObjects(Region region) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        return getObjects(min, max);
+    }
+
+    /**
+     * Gets the objects in the specified region.  When exact is set and the
+     * region is a WorldRegion, the candidates from the covering cells are
+     * refined with the exact triangle test so only overlapping objects are
+     * returned.  Other regions are cell aligned and exact is ignored.
+     *
+     * @param region The region of interest
+     * @param exact Should world region candidates be refined
+     * @return The objects or null if none
+     */
+    public int[] getObjects(Region region, boolean exact) {
+        int[] ret_val = getObjects(region);
+
+        if (exact && region instanceof WorldRegion)
+            ret_val = RegionBounds.refine((WorldRegion) region, ret_val, triMapping.getCoords());
+
+        return ret_val;
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.
+     *
+     * @param min The min fine cell location
+     * @param max The max fine cell location
+     * @return The objects or null if none
+     */
+    public int[] getObjects(int[] min, int[] max) {
+        IntHashSet<Integer> set = new IntHashSet<Integer>(53);
+
+        int[] cmin = new int[3];
+        int[] cmax = new int[3];
+        int[] fmin = new int[3];
+        int[] fmax = new int[3];
+
+        for(int i=0; i < 3; i++) {
+            cmin[i] = Math.max(0, min[i]) / refine;
+            cmax[i] = Math.min(numVoxels - 1, max[i]) / refine;
+        }
+
+        for(int cx = cmin[0]; cx <= cmax[0]; cx++) {
+            for(int cy = cmin[1]; cy <= cmax[1]; cy++) {
+                for(int cz = cmin[2]; cz <= cmax[2]; cz++) {
+                    long key = CellKey.pack(cx, cy, cz);
+                    int slot = coarse.findSlot(key);
+
+                    if (slot < 0)
+                        continue;
+
+                    // The part of the query inside this coarse cell
+                    boolean covered = clipToCoarse(cx, cy, cz, min, max, fmin, fmax);
+
+                    int[] ids = coarse.getIds(slot);
+                    int cnt = coarse.getCount(slot);
+
+                    if (covered) {
+                        for(int n=0; n < cnt; n++) {
+                            set.add(ids[n]);
+                        }
+
+                        continue;
+                    }
+
+                    SubGrid sub = subGrids.get(key);
+
+                    if (sub != null) {
+                        sub.collect(fmin, fmax, set);
+                    } else {
+                        for(int n=0; n < cnt; n++) {
+                            int id = ids[n];
+
+                            if (!set.contains(id) && overlapsCells(id, fmin, fmax))
+                                set.add(id);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (set.isEmpty()) {
+            return null;
+        }
+
+        return set.toArray();
+    }
+
+    /**
+     * Insert an object into the structure.
+     *
+     * @param tri The triangle
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle tri, boolean useBounds) {
+        final int id = tri.id;
+
+        triMapping.set(id, tri.coords, 0);
+        boundsInserted.set(id, useBounds);
+
+        findCellBounds(tri.coords, 0, minCoords, maxCoords);
+
+        final int cminx = minCoords[0] / refine;
+        final int cminy = minCoords[1] / refine;
+        final int cminz = minCoords[2] / refine;
+        final int cmaxx = maxCoords[0] / refine;
+        final int cmaxy = maxCoords[1] / refine;
+        final int cmaxz = maxCoords[2] / refine;
+
+        final double coarse_size = refine * voxelSize;
+        final double half = coarse_size / 2.0 + boxMargin;
+
+        for(int cx = cminx; cx <= cmaxx; cx++) {
+            for(int cy = cminy; cy <= cmaxy; cy++) {
+                for(int cz = cminz; cz <= cmaxz; cz++) {
+                    if (!useBounds) {
+                        double wx = minGridWorldCoord + (cx + 0.5) * coarse_size;
+                        double wy = minGridWorldCoord + (cy + 0.5) * coarse_size;
+                        double wz = minGridWorldCoord + (cz + 0.5) * coarse_size;
+
+                        if (!TriangleBoxOverlap.overlaps(tri.coords, 0, wx, wy, wz, half, half, half))
+                            continue;
+                    }
+
+                    long key = CellKey.pack(cx, cy, cz);
+
+                    coarse.add(key, id);
+
+                    SubGrid sub = subGrids.get(key);
+
+                    if (sub != null) {
+                        fillSubGrid(sub, id);
+                    } else if (refine > 1 &&
+                               coarse.getCount(coarse.findSlot(key)) > splitThreshold) {
+                        split(key, cx, cy, cz);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert an array of Triangles.
+     *
+     * @param tris The triangles
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle[] tris, boolean useBounds) {
+        for(int i=0; i < tris.length; i++) {
+            insert(tris[i], useBounds);
+        }
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        return triMapping.get(id);
+    }
+
+    /**
+     * Get the fine voxel size.
+     *
+     * @return The size of each voxel in meters
+     */
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * Get the number of fine voxels per side.
+     *
+     * @return The voxel count
+     */
+    public int getNumVoxels() {
+        return numVoxels;
+    }
+
+    /**
+     * Get the number of fine cells along each side of a coarse cell.
+     *
+     * @return The cell count
+     */
+    public int getCellsPerCoarseSide() {
+        return refine;
+    }
+
+    /**
+     * Get the number of occupied coarse cells.
+     *
+     * @return The cell count
+     */
+    public int getNumCoarseCells() {
+        return coarse.size();
+    }
+
+    /**
+     * Get the number of coarse cells which have been split into sub-grids.
+     *
+     * @return The sub-grid count
+     */
+    public int getNumSubGrids() {
+        return subGrids.size();
+    }
+
+    /**
+     * Reset to an empty structure.
+     */
+    private void clearData() {
+        coarse = new VoxelStore(INITIAL_COARSE_CELLS);
+        subGrids = new LongHashMap<SubGrid>();
+        boundsInserted = new BitSet();
+        triMapping.clear();
+    }
+
+    /**
+     * Split a coarse cell into a fine sub-grid holding its triangles.
+     *
+     * @param key The coarse cell key
+     * @param cx The coarse x coord
+     * @param cy The coarse y coord
+     * @param cz The coarse z coord
+     */
+    private void split(long key, int cx, int cy, int cz) {
+        SubGrid sub = new SubGrid(refine, cx * refine, cy * refine, cz * refine);
+        int slot = coarse.findSlot(key);
+        int[] ids = coarse.getIds(slot);
+        int cnt = coarse.getCount(slot);
+
+        for(int n=0; n < cnt; n++) {
+            fillSubGrid(sub, ids[n]);
+        }
+
+        subGrids.put(key, sub);
+    }
+
+    /**
+     * Rasterize a triangle into the fine cells of a sub-grid.
+     *
+     * @param sub The sub-grid
+     * @param id The triangle id
+     */
+    private void fillSubGrid(SubGrid sub, int id) {
+        final float[] coords = triMapping.getCoords();
+        final int off = id * TriangleStore.STRIDE;
+        boolean use_bounds = boundsInserted.get(id);
+
+        findCellBounds(coords, off, minCoords, maxCoords);
+
+        int minx = Math.max(minCoords[0], sub.originX);
+        int miny = Math.max(minCoords[1], sub.originY);
+        int minz = Math.max(minCoords[2], sub.originZ);
+        int maxx = Math.min(maxCoords[0], sub.originX + refine - 1);
+        int maxy = Math.min(maxCoords[1], sub.originY + refine - 1);
+        int maxz = Math.min(maxCoords[2], sub.originZ + refine - 1);
+
+        final double half = voxelSize / 2.0 + boxMargin;
+
+        for(int x = minx; x <= maxx; x++) {
+            for(int y = miny; y <= maxy; y++) {
+                for(int z = minz; z <= maxz; z++) {
+                    if (!use_bounds) {
+                        double wx = minGridWorldCoord + (x + 0.5) * voxelSize;
+                        double wy = minGridWorldCoord + (y + 0.5) * voxelSize;
+                        double wz = minGridWorldCoord + (z + 0.5) * voxelSize;
+
+                        if (!TriangleBoxOverlap.overlaps(coords, off, wx, wy, wz, half, half, half))
+                            continue;
+                    }
+
+                    sub.add(x, y, z, id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clip a fine cell box to a coarse cell.
+     *
+     * @param cx The coarse x coord
+     * @param cy The coarse y coord
+     * @param cz The coarse z coord
+     * @param min The min fine cell location
+     * @param max The max fine cell location
+     * @param fmin The clipped min fine cell location
+     * @param fmax The clipped max fine cell location
+     * @return true if the box covers the whole coarse cell
+     */
+    private boolean clipToCoarse(int cx, int cy, int cz, int[] min, int[] max,
+        int[] fmin, int[] fmax) {
+
+        fmin[0] = cx * refine;
+        fmin[1] = cy * refine;
+        fmin[2] = cz * refine;
+
+        boolean ret_val = true;
+
+        for(int i=0; i < 3; i++) {
+            fmax[i] = fmin[i] + refine - 1;
+
+            if (min[i] > fmin[i]) {
+                fmin[i] = min[i];
+                ret_val = false;
+            }
+
+            if (max[i] < fmax[i]) {
+                fmax[i] = max[i];
+                ret_val = false;
+            }
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Does a triangle touch a box of fine cells.
+     *
+     * @param id The triangle id
+     * @param min The min fine cell location
+     * @param max The max fine cell location
+     * @return true if it touches
+     */
+    private boolean overlapsCells(int id, int[] min, int[] max) {
+        final float[] coords = triMapping.getCoords();
+        final int off = id * TriangleStore.STRIDE;
+
+        // Bounds are computed in local scratch so queries can run in parallel
+        int[] tmin = new int[3];
+        int[] tmax = new int[3];
+
+        findCellBounds(coords, off, tmin, tmax);
+
+        for(int i=0; i < 3; i++) {
+            if (tmin[i] > max[i] || tmax[i] < min[i])
+                return false;
+        }
+
+        if (boundsInserted.get(id))
+            return true;
+
+        double hx = (max[0] - min[0] + 1) * voxelSize / 2.0;
+        double hy = (max[1] - min[1] + 1) * voxelSize / 2.0;
+        double hz = (max[2] - min[2] + 1) * voxelSize / 2.0;
+
+        return TriangleBoxOverlap.overlaps(coords, off,
+            minGridWorldCoord + min[0] * voxelSize + hx,
+            minGridWorldCoord + min[1] * voxelSize + hy,
+            minGridWorldCoord + min[2] * voxelSize + hz,
+            hx + boxMargin, hy + boxMargin, hz + boxMargin);
+    }
+
+    /**
+     * Find the fine cells covered by a triangles bounds.  Vertices within a
+     * small tolerance of a cell boundary count for both cells.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @param min The min cell coords
+     * @param max The max cell coords
+     */
+    private void findCellBounds(float[] coords, int off, int[] min, int[] max) {
+        for(int i=0; i < 3; i++) {
+            int c = off + i;
+            float lo = Math.min(coords[c], Math.min(coords[c + 3], coords[c + 6]));
+            float hi = Math.max(coords[c], Math.max(coords[c + 3], coords[c + 6]));
+
+            min[i] = toCell((lo - minGridWorldCoord) / voxelSize - BOUNDARY_TOLERANCE);
+            max[i] = toCell((hi - minGridWorldCoord) / voxelSize + BOUNDARY_TOLERANCE);
+        }
+    }
+
+    /**
+     * Convert a position in voxel units to a clamped cell coord.
+     *
+     * @param pos The position in voxel units from the grid min
+     * @return The cell coord
+     */
+    private int toCell(double pos) {
+        int ret_val = (int) Math.floor(pos);
+
+        if (ret_val < 0)
+            return 0;
+
+        if (ret_val >= numVoxels)
+            return numVoxels - 1;
+
+        return ret_val;
+    }
+
+    /**
+     * The fine cells of one split coarse cell.  Cells are given in fine grid
+     * coords and stored by their offset from the coarse cell origin.
+     */
+    private static class SubGrid {
+
+        /** The number of cells per side */
+        private final int size;
+
+        /** The fine coords of the first cell */
+        final int originX;
+        final int originY;
+        final int originZ;
+
+        /** The triangles by local cell */
+        private final VoxelStore cells;
+
+        SubGrid(int size, int originX, int originY, int originZ) {
+            this.size = size;
+            this.originX = originX;
+            this.originY = originY;
+            this.originZ = originZ;
+
+            cells = new VoxelStore(size * size);
+        }
+
+        /**
+         * Add an id to a fine cell.
+         */
+        void add(int x, int y, int z, int id) {
+            cells.add(localKey(x, y, z), id);
+        }
+
+        /**
+         * Add the ids of a box of fine cells to a set.  The box must be
+         * inside this sub-grid.
+         */
+        void collect(int[] min, int[] max, IntHashSet<Integer> set) {
+            for(int x = min[0]; x <= max[0]; x++) {
+                for(int y = min[1]; y <= max[1]; y++) {
+                    for(int z = min[2]; z <= max[2]; z++) {
+                        int slot = cells.findSlot(localKey(x, y, z));
+
+                        if (slot < 0)
+                            continue;
+
+                        int[] ids = cells.getIds(slot);
+                        int cnt = cells.getCount(slot);
+
+                        for(int n=0; n < cnt; n++) {
+                            set.add(ids[n]);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the key of a fine cell within this sub-grid.
+         */
+        private long localKey(int x, int y, int z) {
+            return ((x - originX) * size + (y - originY)) * size + (z - originZ);
+        }
+    }
+}
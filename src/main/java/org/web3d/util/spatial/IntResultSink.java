@@ -0,0 +1,34 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Receives the object ids found by a spatial query.  Lets callers consume
+ * results without the query allocating a result array.
+ *
+ * @version $Id: $
+ */
+public interface IntResultSink {
+    /**
+     * An object id was found.  Each id is reported once per query.
+     *
+     * @param id The object id
+     */
+    void add(int id);
+}
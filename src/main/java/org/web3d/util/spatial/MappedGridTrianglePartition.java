@@ -0,0 +1,393 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Internal Imports
+import org.web3d.util.IntHashSet;
+
+/**
+ * A read only GridTrianglePartition served directly from a memory mapped
+ * file.
+ * <p>
+ *
+ * Files are written by {@link GridTrianglePartition#write}.  All values are
+ * big endian.  The layout is:
+ * <pre>
+ *   int    magic ('GTP1')
+ *   int    version
+ *   double voxelSize
+ *   int    numVoxels
+ *   int    flags, FLAG_MORTON if the keys are Morton ordered
+ *   int    numCells
+ *   int    numTris
+ *   long   numIds
+ *   long[numCells]     cell keys, sorted increasing
+ *   int[numCells + 1]  start of each cells ids
+ *   int[numIds]        triangle ids
+ *   float[numTris * 9] triangle coordinates
+ * </pre>
+ *
+ * Nothing is copied onto the heap when opening, queries read the mapped
+ * buffer directly.  Mapped files are limited to 2GB.  Instances are
+ * immutable so any number of threads may query them.
+ *
+ * @version $Id: $
+ */
+public class MappedGridTrianglePartition implements SpatialPartition {
+
+    /** The file magic number */
+    static final int MAGIC = 0x47545031;
+
+    /** The current file version */
+    static final int VERSION = 1;
+
+    /** The size of the header in bytes */
+    static final int HEADER_SIZE = 40;
+
+    /** Header flag set when the cell keys are Morton ordered */
+    static final int FLAG_MORTON = 1;
+
+    /** The voxel size */
+    private final double voxelSize;
+
+    /** The number of voxels each axis */
+    private final int numVoxels;
+
+    /** The layout of the cell keys */
+    private final CellKey.Order order;
+
+    /** The number of occupied cells */
+    private final int numCells;
+
+    /** The number of triangles */
+    private final int numTris;
+
+    /** The sorted cell keys */
+    private final LongBuffer cellKeys;
+
+    /** Where each cells ids start */
+    private final IntBuffer offsets;
+
+    /** The ids of all cells */
+    private final IntBuffer ids;
+
+    /** The triangle coordinates, 9 per triangle */
+    private final FloatBuffer triMapping;
+
+    /**
+     * Map a partition file.
+     *
+     * @param file The file to map
+     * @throws IOException The file could not be read or is not a partition
+     */
+    public MappedGridTrianglePartition(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Partition file too large to map: " + file);
+
+            if (size < HEADER_SIZE)
+                throw new IOException("Not a grid partition file: " + file);
+
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a grid partition file: " + file);
+
+        int version = buffer.getInt(4);
+
+        if (version != VERSION)
+            throw new IOException("Unsupported partition file version: " + version);
+
+        voxelSize = buffer.getDouble(8);
+        numVoxels = buffer.getInt(16);
+        order = (buffer.getInt(20) & FLAG_MORTON) != 0 ?
+            CellKey.Order.MORTON : CellKey.Order.LINEAR;
+        numCells = buffer.getInt(24);
+        numTris = buffer.getInt(28);
+        long num_ids = buffer.getLong(32);
+
+        long keys_pos = HEADER_SIZE;
+        long offsets_pos = keys_pos + 8L * numCells;
+        long ids_pos = offsets_pos + 4L * (numCells + 1);
+        long tris_pos = ids_pos + 4L * num_ids;
+        long end = tris_pos + 36L * numTris;
+
+        if (end > buffer.capacity())
+            throw new IOException("Truncated grid partition file: " + file);
+
+        cellKeys = slice(buffer, keys_pos, offsets_pos).asLongBuffer();
+        offsets = slice(buffer, offsets_pos, ids_pos).asIntBuffer();
+        ids = slice(buffer, ids_pos, tris_pos).asIntBuffer();
+        triMapping = slice(buffer, tris_pos, end).asFloatBuffer();
+    }
+
+    //-------------------------------------------------------------
+    // Methods defined by SpatialPartition
+    //-------------------------------------------------------------
+
+    /**
+     * Not supported, the structure is read only.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void clear() {
+        throw new UnsupportedOperationException("Mapped partitions are read only");
+    }
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles or null if none
+     */
+    public int[] getObjects(Region region) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        return getObjects(min, max);
+    }
+
+    /**
+     * Gets the objects in the specified region.  When exact is set and the
+     * region is a WorldRegion, the candidates from the covering cells are
+     * refined with the exact triangle test so only overlapping objects are
+     * returned.  Other regions are cell aligned and exact is ignored.
+     *
+     * @param region The region of interest
+     * @param exact Should world region candidates be refined
+     * @return The objects or null if none
+     */
+    public int[] getObjects(Region region, boolean exact) {
+        int[] ret_val = getObjects(region);
+
+        if (exact && region instanceof WorldRegion)
+            ret_val = refine((WorldRegion) region, ret_val);
+
+        return ret_val;
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @return The objects or null if none
+     */
+    public int[] getObjects(int[] min, int[] max) {
+        IntHashSet<Integer> set = new IntHashSet<Integer>(53);
+
+        final long last = order.pack(max[0], max[1], max[2]);
+
+        int idx = lowerBound(0, order.pack(min[0], min[1], min[2]));
+
+        while(idx < numCells) {
+            long key = cellKeys.get(idx);
+
+            if (key > last)
+                break;
+
+            if (order.contains(key, min, max)) {
+                int end = offsets.get(idx + 1);
+
+                for(int n=offsets.get(idx); n < end; n++) {
+                    set.add(ids.get(n));
+                }
+
+                idx++;
+            } else {
+                long next_key = order.nextInBox(key, min, max);
+
+                if (next_key < 0)
+                    break;
+
+                idx = lowerBound(idx + 1, next_key);
+            }
+        }
+
+        if (set.isEmpty()) {
+            return null;
+        }
+
+        return set.toArray();
+    }
+
+    /**
+     * Get the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @param coords The array to copy the 9 coordinates into
+     */
+    public void getTriangle(int id, float[] coords) {
+        int base = id * 9;
+
+        for(int i=0; i < 9; i++) {
+            coords[i] = triMapping.get(base + i);
+        }
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        float[] ret_val = new float[9];
+
+        getTriangle(id, ret_val);
+
+        return ret_val;
+    }
+
+    /**
+     * Get the voxel size.
+     *
+     * @return The size of each voxel in meters
+     */
+    public double getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * Get the number of voxels per side.
+     *
+     * @return The voxel count
+     */
+    public int getNumVoxels() {
+        return numVoxels;
+    }
+
+    /**
+     * Get the layout of the cell keys.
+     *
+     * @return The key order
+     */
+    public CellKey.Order getCellOrder() {
+        return order;
+    }
+
+    /**
+     * Get the number of occupied cells.
+     *
+     * @return The cell count
+     */
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Get the number of triangles stored.
+     *
+     * @return The triangle count
+     */
+    public int getNumTriangles() {
+        return numTris;
+    }
+
+    /**
+     * Remove the candidates which do not overlap a world region.
+     *
+     * @param region The region of interest
+     * @param ids The candidate ids, may be null
+     * @return The ids which overlap or null if none
+     */
+    private int[] refine(WorldRegion region, int[] ids) {
+        if (ids == null)
+            return null;
+
+        float[] coords = new float[9];
+        int cnt = 0;
+
+        for(int i=0; i < ids.length; i++) {
+            getTriangle(ids[i], coords);
+
+            if (region.overlaps(coords, 0))
+                ids[cnt++] = ids[i];
+        }
+
+        if (cnt == 0)
+            return null;
+
+        return (cnt == ids.length) ? ids : Arrays.copyOf(ids, cnt);
+    }
+
+    /**
+     * Find the first cell whose key is greater or equal to a key.
+     *
+     * @param from The first index to search
+     * @param key The key to find
+     * @return The index, numCells if all keys are smaller
+     */
+    private int lowerBound(int from, long key) {
+        int lo = from;
+        int hi = numCells;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (cellKeys.get(mid) < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Create a view of part of a buffer.
+     *
+     * @param buffer The source buffer
+     * @param start The first byte of the view
+     * @param end The end of the view, exclusive
+     * @return The view
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long start, long end) {
+        ByteBuffer dup = buffer.duplicate();
+
+        dup.limit((int) end);
+        dup.position((int) start);
+
+        return dup.slice();
+    }
+}
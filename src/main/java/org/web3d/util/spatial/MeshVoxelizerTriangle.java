@@ -13,6 +13,8 @@
 package org.web3d.util.spatial;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import toxi.geom.AABB;
 import toxi.geom.Triangle3D;
@@ -24,6 +26,18 @@ import toxi.math.ScaleMap;
 
 public class MeshVoxelizerTriangle {
 
+    /**
+     * How solid voxelization decides a voxel center is inside.  PARITY
+     * counts an odd number of surface crossings before the center, WINDING
+     * a non zero sum of crossings signed by facing.  They agree for closed
+     * meshes without self intersections.  WINDING also fills overlapping
+     * closed parts, PARITY is not affected by inconsistent facing.
+     */
+    public enum FillRule {PARITY, WINDING};
+
+    /** The number of rows each solid fill task works on */
+    private static final int ROWS_PER_TASK = 64;
+
     protected VolumetricSpaceTriangle volume;
     protected int wallThickness = 0;
 
@@ -105,8 +119,12 @@ public class MeshVoxelizerTriangle {
         //volume.setScale(box.getExtent().scale(2f));
         volume.setScale(new Vec3D((float)scale,(float)scale,(float)scale));
         Triangle3D tri = new Triangle3D();
-System.out.println("extent: " + volume.voxelSize.scale(0.5f));
-        AABB voxel = new AABB(new Vec3D(), volume.voxelSize.scale(0.5f));
+        Vec3D extent = volume.voxelSize.scale(0.5f);
+System.out.println("extent: " + extent);
+
+        // Voxels are tested in runs along x
+        float[] run_x = new float[volume.resX];
+        boolean[] hits = new boolean[volume.resX];
 
         int marked = 0;
         int skipped = 0;
@@ -171,29 +189,36 @@ if (min.z <= volume.resZ)
             // TODO: is id what we really want?
             Triangle t = new Triangle(coords, id);
 
+            // The voxels past the last index are never tested
+            int start_x = (int) min.x;
+            int end_x = Math.min((int) max.x, volume.resX1 - 1);
+            int len = end_x - start_x + 1;
+
+            for (int x = start_x; x <= end_x; x++) {
+                run_x[x - start_x] = (float) gx.getClippedValueFor(x);
+            }
+
             for (int z = (int) min.z; z <= max.z; z++) {
                 for (int y = (int) min.y; y <= max.y; y++) {
-                    for (int x = (int) min.x; x <= max.x; x++) {
-                        if (x < volume.resX1 && y < volume.resY1
-                                && z < volume.resZ1) {
-
-                            voxel.set((float) gx.getClippedValueFor(x),
-                                    (float) gy.getClippedValueFor(y),
-                                    (float) gz.getClippedValueFor(z));
+                    if (len <= 0 || y >= volume.resY1 || z >= volume.resZ1)
+                        continue;
 
+                    BoxRunOverlap.overlapsX(coords, run_x,
+                            (float) gy.getClippedValueFor(y),
+                            (float) gz.getClippedValueFor(z),
+                            extent.x, extent.y, extent.z, 0, len, hits);
 
-                            // Damn, this test uses the ABB of triangle
-                            if (voxel.intersectsTriangle(tri)) {
-                                // Convert to offset applied grid
+                    for (int x = start_x; x <= end_x; x++) {
+                        if (hits[x - start_x]) {
+                            // Convert to offset applied grid
 
 //System.out.println("mark voxel(orig): " + (x) + " " + (y) + " " + (z));
 System.out.println("mark voxel: " + (x*xoff) + " " + (y*yoff) + " " + (z*zoff));
-                                marked++;
-                                insertTriangleAt(x * xoff, y * yoff, z * zoff, t);
-                            } else {
-                                skipped++;
+                            marked++;
+                            insertTriangleAt(x * xoff, y * yoff, z * zoff, t);
+                        } else {
+                            skipped++;
 //System.out.println("skip voxel: " + x + " " + y + " " + z);
-                            }
                         }
                     }
                 }
@@ -205,4 +230,377 @@ System.out.println("mark voxel: " + (x*xoff) + " " + (y*yoff) + " " + (z*zoff));
         System.out.println("Marked: " + marked + " Skipped: " + skipped + " %saved: " + ((float) skipped / (marked + skipped)));
         return volume;
     }
+
+    /**
+     * Voxelize the surface of a closed mesh into the volume and fill its
+     * interior using the common pool.
+     *
+     * @param mesh The mesh
+     * @param voxelSize The voxel size
+     * @param rule How to decide a voxel is inside
+     * @return The surface and interior voxels
+     */
+    public BitVolume voxelizeSolid(Mesh3D mesh, double voxelSize, FillRule rule) {
+        return voxelizeSolid(mesh, voxelSize, rule, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Voxelize the surface of a closed mesh into the volume and fill its
+     * interior.
+     *
+     * @param mesh The mesh
+     * @param voxelSize The voxel size
+     * @param rule How to decide a voxel is inside
+     * @param pool The pool to run the fill tasks in
+     * @return The surface and interior voxels
+     */
+    public BitVolume voxelizeSolid(Mesh3D mesh, double voxelSize, FillRule rule, ForkJoinPool pool) {
+        voxelizeMesh(mesh, voxelSize);
+
+        return fillSolid(mesh, rule, pool);
+    }
+
+    /**
+     * Fill the interior of a closed mesh already voxelized into the volume.
+     * <p>
+     *
+     * A ray is cast along x through the voxel centers of each row, using
+     * the same voxel to mesh mapping as voxelizeMesh.  Each triangle is
+     * binned into the rows its y and z bounds cover, and the crossings of a
+     * row are its triangles hit by the ray.  A shared edge or vertex the ray
+     * passes through is counted once, by a fixed tie rule, so closed meshes
+     * give consistent parity.  A voxel is set if its center is inside by
+     * the rule or it is occupied in the volume.  The border voxels the mesh
+     * is mapped inside of are only set if occupied.
+     * <p>
+     *
+     * Rows are independent, so they are split over the pool.  The cost is
+     * the triangle row bins plus one pass over each row.
+     *
+     * @param mesh The mesh, the same one given to voxelizeMesh
+     * @param rule How to decide a voxel is inside
+     * @param pool The pool to run the fill tasks in
+     * @return The surface and interior voxels
+     */
+    public BitVolume fillSolid(Mesh3D mesh, FillRule rule, ForkJoinPool pool) {
+        AABB box = mesh.getBoundingBox();
+        Vec3D bmin = box.getMin();
+        Vec3D bmax = box.getMax();
+
+        final int res_y = volume.resY;
+        final int res_z = volume.resZ;
+
+        ScaleMap wy = new ScaleMap(bmin.y, bmax.y, 1, res_y - 2);
+        ScaleMap wz = new ScaleMap(bmin.z, bmax.z, 1, res_z - 2);
+        ScaleMap gx = new ScaleMap(1, volume.resX - 2, bmin.x, bmax.x);
+        ScaleMap gy = new ScaleMap(1, res_y - 2, bmin.y, bmax.y);
+        ScaleMap gz = new ScaleMap(1, res_z - 2, bmin.z, bmax.z);
+
+        float[] cx = new float[volume.resX];
+        float[] cy = new float[res_y];
+        float[] cz = new float[res_z];
+
+        for(int i=0; i < cx.length; i++) {
+            cx[i] = (float) gx.getClippedValueFor(i);
+        }
+
+        for(int i=0; i < cy.length; i++) {
+            cy[i] = (float) gy.getClippedValueFor(i);
+        }
+
+        for(int i=0; i < cz.length; i++) {
+            cz[i] = (float) gz.getClippedValueFor(i);
+        }
+
+        Collection<Face> faces = mesh.getFaces();
+        int num_tris = faces.size();
+        float[] coords = new float[num_tris * 9];
+        int[] tri_rows = new int[num_tris * 4];
+        int num_rows = res_y * res_z;
+        int[] row_start = new int[num_rows + 1];
+        int n = 0;
+
+        // Bin each triangle into the rows it may cross, widened a row as
+        // the ray test decides exactly
+        for (Face f : faces) {
+            int c = n * 9;
+
+            coords[c] = f.a.x;
+            coords[c + 1] = f.a.y;
+            coords[c + 2] = f.a.z;
+            coords[c + 3] = f.b.x;
+            coords[c + 4] = f.b.y;
+            coords[c + 5] = f.b.z;
+            coords[c + 6] = f.c.x;
+            coords[c + 7] = f.c.y;
+            coords[c + 8] = f.c.z;
+
+            float min_y = Math.min(f.a.y, Math.min(f.b.y, f.c.y));
+            float max_y = Math.max(f.a.y, Math.max(f.b.y, f.c.y));
+            float min_z = Math.min(f.a.z, Math.min(f.b.z, f.c.z));
+            float max_z = Math.max(f.a.z, Math.max(f.b.z, f.c.z));
+
+            int r = n * 4;
+
+            tri_rows[r] = Math.max(1, (int) Math.floor(wy.getClippedValueFor(min_y)) - 1);
+            tri_rows[r + 1] = Math.min(res_y - 2, (int) Math.ceil(wy.getClippedValueFor(max_y)) + 1);
+            tri_rows[r + 2] = Math.max(1, (int) Math.floor(wz.getClippedValueFor(min_z)) - 1);
+            tri_rows[r + 3] = Math.min(res_z - 2, (int) Math.ceil(wz.getClippedValueFor(max_z)) + 1);
+
+            for (int z = tri_rows[r + 2]; z <= tri_rows[r + 3]; z++) {
+                for (int y = tri_rows[r]; y <= tri_rows[r + 1]; y++) {
+                    row_start[y + z * res_y + 1]++;
+                }
+            }
+
+            n++;
+        }
+
+        for (int i = 0; i < num_rows; i++) {
+            row_start[i + 1] += row_start[i];
+        }
+
+        int[] row_tris = new int[row_start[num_rows]];
+        int[] fill = new int[num_rows];
+
+        for (int t = 0; t < num_tris; t++) {
+            int r = t * 4;
+
+            for (int z = tri_rows[r + 2]; z <= tri_rows[r + 3]; z++) {
+                for (int y = tri_rows[r]; y <= tri_rows[r + 1]; y++) {
+                    int row = y + z * res_y;
+
+                    row_tris[row_start[row] + fill[row]++] = t;
+                }
+            }
+        }
+
+        BitVolume ret_val = new BitVolume(volume.resX, res_y, res_z);
+        SolidFillTask task = new SolidFillTask(coords, row_start, row_tris,
+            cx, cy, cz, rule, ret_val, 0, num_rows);
+
+        // compute would fork its halves to the common pool, so run serially
+        if (num_rows <= ROWS_PER_TASK || pool.getParallelism() < 2)
+            task.fillRange();
+        else
+            pool.invoke(task);
+
+        return ret_val;
+    }
+
+    /**
+     * Find where a ray along x crosses a triangle.  The edge functions of
+     * an edge are worked out from its lower endpoint so the two triangles
+     * sharing it get exactly opposite values.  A ray exactly on an edge
+     * hits only the triangle for which the edge, taken counter clockwise in
+     * y and z, points up in z or along -y when flat.
+     *
+     * @param coords The triangle coordinates
+     * @param off The offset of the triangle
+     * @param py The y of the ray
+     * @param pz The z of the ray
+     * @param hit The x of the crossing and its sign, set if hit
+     * @return true if the ray crosses the triangle
+     */
+    private static boolean rayCrossing(float[] coords, int off, double py, double pz, double[] hit) {
+        double y0 = coords[off + 1];
+        double z0 = coords[off + 2];
+        double y1 = coords[off + 4];
+        double z1 = coords[off + 5];
+        double y2 = coords[off + 7];
+        double z2 = coords[off + 8];
+
+        double area = (y1 - y0) * (z2 - z0) - (z1 - z0) * (y2 - y0);
+
+        // Edge on to the ray
+        if (area == 0)
+            return false;
+
+        double sign = (area > 0) ? 1 : -1;
+
+        double w0 = sign * edgeFunction(y1, z1, y2, z2, py, pz);
+
+        if (!insideEdge(w0, sign * (y2 - y1), sign * (z2 - z1)))
+            return false;
+
+        double w1 = sign * edgeFunction(y2, z2, y0, z0, py, pz);
+
+        if (!insideEdge(w1, sign * (y0 - y2), sign * (z0 - z2)))
+            return false;
+
+        double w2 = sign * edgeFunction(y0, z0, y1, z1, py, pz);
+
+        if (!insideEdge(w2, sign * (y1 - y0), sign * (z1 - z0)))
+            return false;
+
+        double sum = w0 + w1 + w2;
+
+        hit[0] = (w0 * coords[off] + w1 * coords[off + 3] + w2 * coords[off + 6]) / sum;
+        hit[1] = sign;
+
+        return true;
+    }
+
+    /**
+     * Signed area of a point against an edge, positive to the left.  Always
+     * computed from the lower endpoint so reversing the edge exactly negates
+     * the result.
+     *
+     * @return The edge function
+     */
+    private static double edgeFunction(double ay, double az, double by, double bz,
+        double py, double pz) {
+
+        if (ay < by || (ay == by && az < bz))
+            return (by - ay) * (pz - az) - (bz - az) * (py - ay);
+        else
+            return -((ay - by) * (pz - bz) - (az - bz) * (py - by));
+    }
+
+    /**
+     * Is a point inside a counter clockwise edge, with the tie rule for
+     * points exactly on it.
+     *
+     * @param w The edge function of the point
+     * @param dy The edge direction in y
+     * @param dz The edge direction in z
+     * @return true if inside
+     */
+    private static boolean insideEdge(double w, double dy, double dz) {
+        if (w != 0)
+            return w > 0;
+
+        return dz > 0 || (dz == 0 && dy < 0);
+    }
+
+    /**
+     * Fills a range of rows of a solid volume.  Rows own their words of the
+     * volume so tasks never write the same word.
+     */
+    private class SolidFillTask extends RecursiveAction {
+        /** The version for serialization */
+        private static final long serialVersionUID = 1L;
+
+        private final float[] coords;
+        private final int[] rowStart;
+        private final int[] rowTris;
+        private final float[] cx;
+        private final float[] cy;
+        private final float[] cz;
+        private final FillRule rule;
+        private final BitVolume solid;
+        private final int start;
+        private final int end;
+
+        SolidFillTask(float[] coords, int[] rowStart, int[] rowTris,
+            float[] cx, float[] cy, float[] cz, FillRule rule, BitVolume solid,
+            int start, int end) {
+
+            this.coords = coords;
+            this.rowStart = rowStart;
+            this.rowTris = rowTris;
+            this.cx = cx;
+            this.cy = cy;
+            this.cz = cz;
+            this.rule = rule;
+            this.solid = solid;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start > ROWS_PER_TASK) {
+                int mid = (start + end) >>> 1;
+
+                invokeAll(new SolidFillTask(coords, rowStart, rowTris, cx, cy, cz, rule, solid, start, mid),
+                          new SolidFillTask(coords, rowStart, rowTris, cx, cy, cz, rule, solid, mid, end));
+
+                return;
+            }
+
+            fillRange();
+        }
+
+        /**
+         * Fill the whole range of rows on the calling thread.
+         */
+        void fillRange() {
+            final int res_x = volume.resX;
+            final int res_y = volume.resY;
+            final int res_z = volume.resZ;
+            final long[] words = solid.getWords();
+
+            // A bit volume surface is copied a row of words at a time
+            BitVolume surface = null;
+
+            if (volume instanceof VolumetricSpaceBitTriangle)
+                surface = ((VolumetricSpaceBitTriangle) volume).getOccupancy();
+
+            double[] hit = new double[2];
+            double[] xs = new double[16];
+            int[] signs = new int[16];
+
+            for (int row = start; row < end; row++) {
+                int y = row % res_y;
+                int z = row / res_y;
+                int off = solid.getRowOffset(y, z);
+
+                if (surface != null) {
+                    System.arraycopy(surface.getWords(), off, words, off, solid.getWordsPerRow());
+                } else {
+                    for (int x = 0; x < res_x; x++) {
+                        if (volume.isOccupied(x, y, z))
+                            words[off + (x >>> 6)] |= 1L << x;
+                    }
+                }
+
+                if (y == 0 || y == res_y - 1 || z == 0 || z == res_z - 1)
+                    continue;
+
+                double py = cy[y];
+                double pz = cz[z];
+                int num = 0;
+
+                for (int i = rowStart[row]; i < rowStart[row + 1]; i++) {
+                    if (!rayCrossing(coords, rowTris[i] * 9, py, pz, hit))
+                        continue;
+
+                    if (num == xs.length) {
+                        xs = Arrays.copyOf(xs, num * 2);
+                        signs = Arrays.copyOf(signs, num * 2);
+                    }
+
+                    // Insertion sort, rows cross few triangles
+                    int j = num++;
+
+                    while (j > 0 && xs[j - 1] > hit[0]) {
+                        xs[j] = xs[j - 1];
+                        signs[j] = signs[j - 1];
+                        j--;
+                    }
+
+                    xs[j] = hit[0];
+                    signs[j] = (int) hit[1];
+                }
+
+                if (num == 0)
+                    continue;
+
+                int k = 0;
+                int winding = 0;
+
+                for (int x = 1; x < res_x - 1; x++) {
+                    while (k < num && xs[k] < cx[x]) {
+                        winding += signs[k];
+                        k++;
+                    }
+
+                    boolean inside = (rule == FillRule.PARITY) ? (k & 1) != 0 : winding != 0;
+
+                    if (inside)
+                        words[off + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,232 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * A structure which describes an oriented box of space in world
+ * coordinates.
+ * <p>
+ *
+ * The box is given by its center, its half size along each of its own
+ * axes and the three axes themselves.  The axes must be orthonormal.
+ *
+ * @version $Id: $
+ */
+public class OrientedBoxRegion implements WorldRegion {
+
+    /** How far the axes may be from orthonormal */
+    private static final double AXIS_TOLERANCE = 1e-4;
+
+    /** The center */
+    private float[] center;
+
+    /** The half size along each box axis */
+    private float[] halfSize;
+
+    /** The box axes, three values per axis */
+    private float[] axes;
+
+    /**
+     * Constructor.  The arrays are copied.
+     *
+     * @param center The center in world coordinates
+     * @param halfSize The half size along each box axis
+     * @param axes The three box axes, x y z of each in turn
+     */
+    public OrientedBoxRegion(float[] center, float[] halfSize, float[] axes) {
+        for(int i=0; i < 3; i++) {
+            if (!(halfSize[i] >= 0))
+                throw new IllegalArgumentException("Invalid half size on axis: " + i);
+
+            for(int j=i; j < 3; j++) {
+                double dot = axes[i * 3] * (double) axes[j * 3] +
+                             axes[i * 3 + 1] * (double) axes[j * 3 + 1] +
+                             axes[i * 3 + 2] * (double) axes[j * 3 + 2];
+                double expected = (i == j) ? 1 : 0;
+
+                if (Math.abs(dot - expected) > AXIS_TOLERANCE)
+                    throw new IllegalArgumentException("Axes not orthonormal");
+            }
+        }
+
+        this.center = new float[] {center[0], center[1], center[2]};
+        this.halfSize = new float[] {halfSize[0], halfSize[1], halfSize[2]};
+        this.axes = new float[9];
+
+        System.arraycopy(axes, 0, this.axes, 0, 9);
+    }
+
+    //----------------------------------------------------------
+    // Methods defined by WorldRegion
+    //----------------------------------------------------------
+
+    /**
+     * Get the axis aligned bounds of the region in world coordinates.
+     *
+     * @param min The min corner, preallocate to 3
+     * @param max The max corner, preallocate to 3
+     */
+    public void getBounds(float[] min, float[] max) {
+        for(int i=0; i < 3; i++) {
+            double extent = Math.abs(axes[i]) * halfSize[0] +
+                            Math.abs(axes[3 + i]) * halfSize[1] +
+                            Math.abs(axes[6 + i]) * halfSize[2];
+
+            min[i] = (float) (center[i] - extent);
+            max[i] = (float) (center[i] + extent);
+        }
+    }
+
+    /**
+     * Does a triangle overlap the region.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @return true if they overlap
+     */
+    public boolean overlaps(float[] coords, int off) {
+
+        // Move the triangle into the frame of the box
+        double r0x = coords[off] - (double) center[0];
+        double r0y = coords[off + 1] - (double) center[1];
+        double r0z = coords[off + 2] - (double) center[2];
+        double r1x = coords[off + 3] - (double) center[0];
+        double r1y = coords[off + 4] - (double) center[1];
+        double r1z = coords[off + 5] - (double) center[2];
+        double r2x = coords[off + 6] - (double) center[0];
+        double r2y = coords[off + 7] - (double) center[1];
+        double r2z = coords[off + 8] - (double) center[2];
+
+        return TriangleBoxOverlap.overlaps(
+            project(0, r0x, r0y, r0z), project(1, r0x, r0y, r0z), project(2, r0x, r0y, r0z),
+            project(0, r1x, r1y, r1z), project(1, r1x, r1y, r1z), project(2, r1x, r1y, r1z),
+            project(0, r2x, r2y, r2z), project(1, r2x, r2y, r2z), project(2, r2x, r2y, r2z),
+            halfSize[0], halfSize[1], halfSize[2]);
+    }
+
+    //----------------------------------------------------------
+    // Local Methods
+    //----------------------------------------------------------
+
+    /**
+     * Get the center.
+     *
+     * @param val The center, preallocate to 3
+     */
+    public void getCenter(float[] val) {
+        val[0] = center[0];
+        val[1] = center[1];
+        val[2] = center[2];
+    }
+
+    /**
+     * Get the half size along each box axis.
+     *
+     * @param val The half size, preallocate to 3
+     */
+    public void getHalfSize(float[] val) {
+        val[0] = halfSize[0];
+        val[1] = halfSize[1];
+        val[2] = halfSize[2];
+    }
+
+    /**
+     * Get the box axes.
+     *
+     * @param val The axes, x y z of each in turn, preallocate to 9
+     */
+    public void getAxes(float[] val) {
+        System.arraycopy(axes, 0, val, 0, 9);
+    }
+
+    /**
+     * Compare this object for equality to the given object.
+     *
+     * @param o The object to be compared
+     * @return True if these represent the same values
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OrientedBoxRegion))
+            return false;
+        else
+            return equals((OrientedBoxRegion) o);
+    }
+
+    /**
+     * Compares this object with the specified object to check for equivalence.
+     *
+     * @param box The region to be compared
+     * @return true if the objects represent identical values
+     */
+    public boolean equals(OrientedBoxRegion box) {
+        for(int i=0; i < 3; i++) {
+            if (Float.floatToIntBits(center[i]) != Float.floatToIntBits(box.center[i]))
+                return false;
+
+            if (Float.floatToIntBits(halfSize[i]) != Float.floatToIntBits(box.halfSize[i]))
+                return false;
+        }
+
+        for(int i=0; i < 9; i++) {
+            if (Float.floatToIntBits(axes[i]) != Float.floatToIntBits(box.axes[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret_val = 17;
+
+        for(int i=0; i < 3; i++) {
+            ret_val = 31 * ret_val + Float.floatToIntBits(center[i]);
+            ret_val = 31 * ret_val + Float.floatToIntBits(halfSize[i]);
+        }
+
+        for(int i=0; i < 9; i++) {
+            ret_val = 31 * ret_val + Float.floatToIntBits(axes[i]);
+        }
+
+        return ret_val;
+    }
+
+    @Override
+    public String toString() {
+        return "OrientedBoxRegion@" + this.hashCode() + " center: " + center[0] + " " +
+            center[1] + " " + center[2] + " half: " + halfSize[0] + " " +
+            halfSize[1] + " " + halfSize[2];
+    }
+
+    /**
+     * Project a vector onto one of the box axes.
+     *
+     * @param axis The box axis
+     * @param x The vector x
+     * @param y The vector y
+     * @param z The vector z
+     * @return The length along the axis
+     */
+    private double project(int axis, double x, double y, double z) {
+        int idx = axis * 3;
+
+        return axes[idx] * x + axes[idx + 1] * y + axes[idx + 2] * z;
+    }
+}
@@ -0,0 +1,408 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.concurrent.atomic.LongAdder;
+
+// Internal Imports
+// None
+
+/**
+ * Operation metrics for a spatial partition.
+ * <p>
+ *
+ * Values are kept in power of two histograms built from LongAdders, so
+ * recording is a couple of uncontended adds and is safe from many threads.
+ * Timing is optional as reading the clock costs more than the rest of the
+ * recording.  Without timing the metrics are cheap enough to leave on.
+ * <p>
+ *
+ * A partition records into the metrics given to it, for example
+ * {@link GridTrianglePartition#setMetrics}.  One metrics object may be
+ * shared between several partitions.
+ *
+ * @version $Id: $
+ */
+public class PartitionMetrics {
+
+    /** The kinds of region queries, recorded separately */
+    public enum QueryType {CELL, SLICE, TUNNEL, ALL, WORLD, OTHER};
+
+    /** Should operations be timed */
+    private final boolean timing;
+
+    /** Time taken by single triangle inserts in nanoseconds */
+    private final Histogram insertNanos;
+
+    /** Time taken by array inserts in nanoseconds */
+    private final Histogram batchInsertNanos;
+
+    /** The number of cells each inserted triangle was added to */
+    private final Histogram cellsPerTriangle;
+
+    /** Time taken by region queries in nanoseconds, by query type */
+    private final Histogram[] queryNanos;
+
+    /** The number of ids found by region queries, by query type */
+    private final Histogram[] resultSizes;
+
+    /** The number of removes */
+    private final LongAdder numRemoves;
+
+    /**
+     * Constructor.
+     *
+     * @param timing Should operations be timed
+     */
+    public PartitionMetrics(boolean timing) {
+        this.timing = timing;
+
+        insertNanos = new Histogram();
+        batchInsertNanos = new Histogram();
+        cellsPerTriangle = new Histogram();
+        numRemoves = new LongAdder();
+
+        int num_types = QueryType.values().length;
+
+        queryNanos = new Histogram[num_types];
+        resultSizes = new Histogram[num_types];
+
+        for(int i=0; i < num_types; i++) {
+            queryNanos[i] = new Histogram();
+            resultSizes[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Are operations timed.
+     *
+     * @return true if timed
+     */
+    public boolean isTiming() {
+        return timing;
+    }
+
+    /**
+     * Start timing an operation.
+     *
+     * @return The start time to pass to the record method, 0 if not timing
+     */
+    public long startTimer() {
+        return timing ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a single triangle insert.
+     *
+     * @param start The value from startTimer
+     * @param cells The number of cells the triangle was added to
+     */
+    public void recordInsert(long start, long cells) {
+        if (timing)
+            insertNanos.record(System.nanoTime() - start);
+
+        cellsPerTriangle.record(cells);
+    }
+
+    /**
+     * Record an array insert.  The cells of each triangle are recorded
+     * separately with recordCells.
+     *
+     * @param start The value from startTimer
+     */
+    public void recordBatchInsert(long start) {
+        if (timing)
+            batchInsertNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record the number of cells a triangle was added to.
+     *
+     * @param cells The number of cells
+     */
+    public void recordCells(long cells) {
+        cellsPerTriangle.record(cells);
+    }
+
+    /**
+     * Record a region query.
+     *
+     * @param region The region queried
+     * @param start The value from startTimer
+     * @param resultSize The number of ids found
+     */
+    public void recordQuery(Region region, long start, int resultSize) {
+        int type = getQueryType(region).ordinal();
+
+        if (timing)
+            queryNanos[type].record(System.nanoTime() - start);
+
+        resultSizes[type].record(resultSize);
+    }
+
+    /**
+     * Record a remove.
+     */
+    public void recordRemove() {
+        numRemoves.increment();
+    }
+
+    /**
+     * Get the single triangle insert times in nanoseconds.  Empty unless
+     * timing.
+     *
+     * @return The histogram
+     */
+    public Histogram getInsertNanos() {
+        return insertNanos;
+    }
+
+    /**
+     * Get the array insert times in nanoseconds.  Empty unless timing.
+     *
+     * @return The histogram
+     */
+    public Histogram getBatchInsertNanos() {
+        return batchInsertNanos;
+    }
+
+    /**
+     * Get the number of cells each inserted triangle was added to.
+     *
+     * @return The histogram
+     */
+    public Histogram getCellsPerTriangle() {
+        return cellsPerTriangle;
+    }
+
+    /**
+     * Get the query times in nanoseconds for a type of query.  Empty unless
+     * timing.
+     *
+     * @param type The query type
+     * @return The histogram
+     */
+    public Histogram getQueryNanos(QueryType type) {
+        return queryNanos[type.ordinal()];
+    }
+
+    /**
+     * Get the result sizes for a type of query.
+     *
+     * @param type The query type
+     * @return The histogram
+     */
+    public Histogram getResultSizes(QueryType type) {
+        return resultSizes[type.ordinal()];
+    }
+
+    /**
+     * Get the number of removes.
+     *
+     * @return The count
+     */
+    public long getNumRemoves() {
+        return numRemoves.sum();
+    }
+
+    /**
+     * Clear all metrics.  Not atomic with respect to concurrent recording.
+     */
+    public void reset() {
+        insertNanos.reset();
+        batchInsertNanos.reset();
+        cellsPerTriangle.reset();
+        numRemoves.reset();
+
+        for(int i=0; i < queryNanos.length; i++) {
+            queryNanos[i].reset();
+            resultSizes[i].reset();
+        }
+    }
+
+    /**
+     * Get the type of a region query.
+     *
+     * @param region The region
+     * @return The type
+     */
+    public static QueryType getQueryType(Region region) {
+        if (region instanceof CellRegion)
+            return QueryType.CELL;
+        else if (region instanceof SliceRegion)
+            return QueryType.SLICE;
+        else if (region instanceof TunnelRegion)
+            return QueryType.TUNNEL;
+        else if (region instanceof AllRegion)
+            return QueryType.ALL;
+        else if (region instanceof WorldRegion)
+            return QueryType.WORLD;
+        else
+            return QueryType.OTHER;
+    }
+
+    public String toString() {
+        StringBuilder buff = new StringBuilder();
+
+        buff.append("PartitionMetrics:\n");
+        buff.append("   Cells per triangle: ").append(cellsPerTriangle).append('\n');
+
+        if (timing) {
+            buff.append("   Insert ns: ").append(insertNanos).append('\n');
+            buff.append("   Batch insert ns: ").append(batchInsertNanos).append('\n');
+        }
+
+        buff.append("   Removes: ").append(getNumRemoves()).append('\n');
+
+        QueryType[] types = QueryType.values();
+
+        for(int i=0; i < types.length; i++) {
+            if (resultSizes[i].getCount() == 0)
+                continue;
+
+            buff.append("   ").append(types[i]).append(" results: ").append(resultSizes[i]).append('\n');
+
+            if (timing)
+                buff.append("   ").append(types[i]).append(" ns: ").append(queryNanos[i]).append('\n');
+        }
+
+        return buff.toString();
+    }
+
+    /**
+     * A histogram of non negative values in power of two buckets.  Bucket 0
+     * holds 0 and bucket n holds values from 2^(n-1) to 2^n - 1.
+     */
+    public static class Histogram {
+
+        /** The number of buckets, enough for any non negative long */
+        public static final int NUM_BUCKETS = 64;
+
+        /** The counts by bucket */
+        private final LongAdder[] buckets;
+
+        /** The sum of all values */
+        private final LongAdder sum;
+
+        Histogram() {
+            buckets = new LongAdder[NUM_BUCKETS];
+
+            for(int i=0; i < NUM_BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+
+            sum = new LongAdder();
+        }
+
+        /**
+         * Record a value.  Negative values are recorded as 0.
+         *
+         * @param value The value
+         */
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Get the number of values recorded.
+         *
+         * @return The count
+         */
+        public long getCount() {
+            long ret_val = 0;
+
+            for(int i=0; i < NUM_BUCKETS; i++) {
+                ret_val += buckets[i].sum();
+            }
+
+            return ret_val;
+        }
+
+        /**
+         * Get the number of values recorded in a bucket.
+         *
+         * @param bucket The bucket
+         * @return The count
+         */
+        public long getBucketCount(int bucket) {
+            return buckets[bucket].sum();
+        }
+
+        /**
+         * Get the sum of the values recorded.
+         *
+         * @return The sum
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * Get the mean of the values recorded.
+         *
+         * @return The mean, 0 if none
+         */
+        public double getMean() {
+            long cnt = getCount();
+
+            return (cnt == 0) ? 0 : (double) getSum() / cnt;
+        }
+
+        /**
+         * Get an upper bound on a percentile of the values recorded.  The
+         * answer is the top of the bucket holding the percentile.
+         *
+         * @param percentile The percentile, 0 to 100
+         * @return The upper bound, 0 if none recorded
+         */
+        public long getPercentile(double percentile) {
+            long cnt = getCount();
+
+            if (cnt == 0)
+                return 0;
+
+            long target = (long) Math.ceil(cnt * percentile / 100.0);
+            long seen = 0;
+
+            for(int i=0; i < NUM_BUCKETS; i++) {
+                seen += buckets[i].sum();
+
+                if (seen >= target && seen > 0)
+                    return (i == 0) ? 0 : (1L << i) - 1;
+            }
+
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Clear the histogram.
+         */
+        public void reset() {
+            for(int i=0; i < NUM_BUCKETS; i++) {
+                buckets[i].reset();
+            }
+
+            sum.reset();
+        }
+
+        public String toString() {
+            return "count: " + getCount() + " mean: " + (float) getMean() +
+                " p50 <= " + getPercentile(50) + " p99 <= " + getPercentile(99);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * The nearest triangle hit by a ray.  Instances are filled in by ray casts
+ * and may be reused between casts.
+ *
+ * @version $Id: $
+ */
+public class RayHit {
+
+    /** The triangle id hit, -1 if none */
+    public int id;
+
+    /** The distance along the ray, in units of the ray direction length */
+    public double distance;
+
+    /** The barycentric coordinate of the hit for the second vertex */
+    public double u;
+
+    /** The barycentric coordinate of the hit for the third vertex */
+    public double v;
+
+    /**
+     * Constructor.  Starts with no hit.
+     */
+    public RayHit() {
+        reset();
+    }
+
+    /**
+     * Clear to no hit.
+     */
+    public void reset() {
+        id = -1;
+        distance = Double.POSITIVE_INFINITY;
+        u = 0;
+        v = 0;
+    }
+
+    /**
+     * Was anything hit.
+     *
+     * @return true if a triangle was hit
+     */
+    public boolean isHit() {
+        return id >= 0;
+    }
+
+    /**
+     * Get the hit position.
+     *
+     * @param origin The ray origin
+     * @param dir The ray direction
+     * @param pos The position to fill in, preallocate to 3
+     */
+    public void getPosition(float[] origin, float[] dir, float[] pos) {
+        pos[0] = (float) (origin[0] + dir[0] * distance);
+        pos[1] = (float) (origin[1] + dir[1] * distance);
+        pos[2] = (float) (origin[2] + dir[2] * distance);
+    }
+
+    public String toString() {
+        return "RayHit: id: " + id + " dist: " + distance;
+    }
+}
@@ -0,0 +1,110 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Ray and triangle intersection using the Moller-Trumbore algorithm.
+ * <p>
+ *
+ * Triangles are read straight from a flat coordinate array.  Both faces of
+ * a triangle are hit.
+ *
+ * @version $Id: $
+ */
+public abstract class RayTriangleIntersect {
+
+    /** Determinants smaller than this are treated as parallel */
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Intersect a ray with a triangle.  If the triangle is hit closer than
+     * the current hit distance the hit is updated.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @param id The triangle id to record
+     * @param ox The ray origin x
+     * @param oy The ray origin y
+     * @param oz The ray origin z
+     * @param dx The ray direction x
+     * @param dy The ray direction y
+     * @param dz The ray direction z
+     * @param minDist Hits closer than this are ignored
+     * @param hit The closest hit so far, updated on a closer hit
+     * @return true if the hit was updated
+     */
+    public static boolean intersect(float[] coords, int off, int id,
+        double ox, double oy, double oz, double dx, double dy, double dz,
+        double minDist, RayHit hit) {
+
+        double v0x = coords[off];
+        double v0y = coords[off + 1];
+        double v0z = coords[off + 2];
+
+        double e1x = coords[off + 3] - v0x;
+        double e1y = coords[off + 4] - v0y;
+        double e1z = coords[off + 5] - v0z;
+        double e2x = coords[off + 6] - v0x;
+        double e2y = coords[off + 7] - v0y;
+        double e2z = coords[off + 8] - v0z;
+
+        // p = d x e2
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+
+        double det = e1x * px + e1y * py + e1z * pz;
+
+        if (det > -EPSILON && det < EPSILON)
+            return false;
+
+        double inv_det = 1.0 / det;
+
+        double tx = ox - v0x;
+        double ty = oy - v0y;
+        double tz = oz - v0z;
+
+        double u = (tx * px + ty * py + tz * pz) * inv_det;
+
+        if (u < 0 || u > 1)
+            return false;
+
+        // q = t x e1
+        double qx = ty * e1z - tz * e1y;
+        double qy = tz * e1x - tx * e1z;
+        double qz = tx * e1y - ty * e1x;
+
+        double v = (dx * qx + dy * qy + dz * qz) * inv_det;
+
+        if (v < 0 || u + v > 1)
+            return false;
+
+        double t = (e2x * qx + e2y * qy + e2z * qz) * inv_det;
+
+        if (t < minDist || t >= hit.distance)
+            return false;
+
+        hit.id = id;
+        hit.distance = t;
+        hit.u = u;
+        hit.v = v;
+
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+
+// Internal Imports
+// None
+
+/**
+ * Converts regions into the box of grid cells they cover.
+ *
+ * @version $Id: $
+ */
+abstract class RegionBounds {
+
+    /** World regions are grown by this fraction of a voxel */
+    private static final double BOUNDARY_TOLERANCE = 0.01;
+
+    /**
+     * Calculate the grid cell bounds of a region.  Bounds are inclusive.
+     *
+     * World regions are clamped to the grid, so a region outside the grid
+     * maps to the cells along its edge.
+     *
+     * @param region The region of interest
+     * @param numVoxels The number of voxels per side of the grid
+     * @param voxelSize The size of each voxel in meters
+     * @param min The min cell coords, preallocate to 3
+     * @param max The max cell coords, preallocate to 3
+     * @throws IllegalArgumentException The region type is not supported
+     */
+    static void toCellBounds(Region region, int numVoxels, double voxelSize,
+        int[] min, int[] max) {
+
+        if (region instanceof CellRegion) {
+            CellRegion cell = (CellRegion) region;
+
+            min[0] = cell.getX();
+            min[1] = cell.getY();
+            min[2] = cell.getZ();
+            max[0] = min[0];
+            max[1] = min[1];
+            max[2] = min[2];
+        } else if (region instanceof SliceRegion) {
+            SliceRegion slice = (SliceRegion) region;
+
+            int axis = slice.getDir().ordinal();
+
+            for(int i=0; i < 3; i++) {
+                min[i] = 0;
+                max[i] = numVoxels - 1;
+            }
+
+            min[axis] = slice.getLoc();
+            max[axis] = slice.getLoc() + slice.getHeight() - 1;
+
+            if (max[axis] >= numVoxels)
+                max[axis] = numVoxels - 1;
+        } else if (region instanceof TunnelRegion) {
+            TunnelRegion tunnel = (TunnelRegion) region;
+
+            final int height = tunnel.getHeight();
+            final int axis = tunnel.getDir().ordinal();
+
+            // The two free axes in increasing order
+            final int a1 = (axis == 0) ? 1 : 0;
+            final int a2 = (axis == 2) ? 1 : 2;
+
+            min[axis] = 0;
+            max[axis] = numVoxels - 1;
+            min[a1] = tunnel.getLoc1() - height;
+            max[a1] = tunnel.getLoc1() + height;
+            min[a2] = tunnel.getLoc2() - height;
+            max[a2] = tunnel.getLoc2() + height;
+
+            if (height > 0) {
+                if (min[a1] < 0)
+                    min[a1] = 0;
+
+                if (min[a2] < 0)
+                    min[a2] = 0;
+
+                if (max[a1] >= numVoxels)
+                    max[a1] = numVoxels - 1;
+
+                if (max[a2] >= numVoxels)
+                    max[a2] = numVoxels - 1;
+            }
+        } else if (region instanceof AllRegion) {
+            for(int i=0; i < 3; i++) {
+                min[i] = 0;
+                max[i] = numVoxels - 1;
+            }
+        } else if (region instanceof WorldRegion) {
+            float[] wmin = new float[3];
+            float[] wmax = new float[3];
+
+            ((WorldRegion) region).getBounds(wmin, wmax);
+
+            final int half = numVoxels / 2;
+            final double tol = voxelSize * BOUNDARY_TOLERANCE;
+
+            for(int i=0; i < 3; i++) {
+                min[i] = clamp(half + Math.floor((wmin[i] - tol) / voxelSize), numVoxels);
+                max[i] = clamp(half + Math.floor((wmax[i] + tol) / voxelSize), numVoxels);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported region: " + region);
+        }
+    }
+
+    /**
+     * Remove the candidates which do not overlap a world region.  The
+     * candidates are not changed, so they may be a shared array.
+     *
+     * @param region The region of interest
+     * @param ids The candidate ids, may be null
+     * @param coords The triangle coordinates, 9 values per id
+     * @return The ids which overlap or null if none
+     */
+    static int[] refine(WorldRegion region, int[] ids, float[] coords) {
+        if (ids == null)
+            return null;
+
+        int[] ret_val = new int[ids.length];
+        int cnt = 0;
+
+        for(int i=0; i < ids.length; i++) {
+            if (region.overlaps(coords, ids[i] * TriangleStore.STRIDE))
+                ret_val[cnt++] = ids[i];
+        }
+
+        if (cnt == 0)
+            return null;
+
+        return (cnt == ids.length) ? ret_val : Arrays.copyOf(ret_val, cnt);
+    }
+
+    /**
+     * Clamp a cell coordinate to the grid.
+     *
+     * @param coord The cell coordinate
+     * @param numVoxels The number of voxels per side of the grid
+     * @return The coordinate within the grid
+     */
+    private static int clamp(double coord, int numVoxels) {
+        if (coord < 0)
+            return 0;
+
+        if (coord > numVoxels - 1)
+            return numVoxels - 1;
+
+        return (int) coord;
+    }
+}
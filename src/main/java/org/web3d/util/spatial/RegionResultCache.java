@@ -0,0 +1,194 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Internal Imports
+// None
+
+/**
+ * A bounded cache of region query results.
+ * <p>
+ *
+ * Entries are keyed by region equality and belong to an edit epoch.  An
+ * entry from an older epoch than the lookup is treated as missing and is
+ * replaced by the next put, so the owner only needs to count its edits.
+ * <p>
+ *
+ * The cache is a table of slots holding one immutable entry each.  A
+ * region may live in either of two slots picked from its hash.  A put
+ * uses whichever slot is empty, stale or already holds the region, and
+ * otherwise replaces one of the two rather than the least recently used
+ * entry.  Lookups and puts only read or write single slots, so queries
+ * from many threads share the cache without locking.
+ * Cached arrays are shared, so callers must copy them before handing them
+ * out to code which may change them.
+ *
+ * @version $Id: $
+ */
+class RegionResultCache {
+
+    /** Stored for a query which found nothing, as null means not cached */
+    private static final int[] NO_RESULT = new int[0];
+
+    /** The entries by slot */
+    private final AtomicReferenceArray<Entry> slots;
+
+    /** The slot count less one, for masking a hash */
+    private final int mask;
+
+    /** The number of lookups answered from the cache */
+    private final LongAdder hits;
+
+    /** The number of lookups not answered from the cache */
+    private final LongAdder misses;
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries The number of results to keep, rounded up to a
+     *    power of 2
+     */
+    RegionResultCache(int maxEntries) {
+        if (maxEntries < 1 || maxEntries > (1 << 30))
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+
+        int size = (maxEntries == 1) ? 1 : Integer.highestOneBit(maxEntries - 1) << 1;
+
+        slots = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+        hits = new LongAdder();
+        misses = new LongAdder();
+    }
+
+    /**
+     * Check whether a result is cached.  Use getResult to turn a cached
+     * value into the query result.
+     *
+     * @param region The region of interest
+     * @param editEpoch The current edit epoch of the owner
+     * @return The cached value or null if not cached
+     */
+    int[] get(Region region, int editEpoch) {
+        int h = hash(region);
+        Entry e = slots.get(h & mask);
+
+        if (e == null || e.epoch != editEpoch || !e.region.equals(region))
+            e = slots.get((h >>> 16) & mask);
+
+        if (e != null && e.epoch == editEpoch && e.region.equals(region)) {
+            hits.increment();
+
+            return e.result;
+        }
+
+        misses.increment();
+
+        return null;
+    }
+
+    /**
+     * Cache a query result.  The array is kept, not copied.
+     *
+     * @param region The region of interest
+     * @param editEpoch The edit epoch the result was found in
+     * @param result The result, may be null
+     */
+    void put(Region region, int editEpoch, int[] result) {
+        int h = hash(region);
+        int slot = h & mask;
+        Entry e = slots.get(slot);
+
+        if (e != null && e.epoch == editEpoch && !e.region.equals(region)) {
+            int other = (h >>> 16) & mask;
+            Entry oe = slots.get(other);
+
+            // Take the second slot when it is free, otherwise alternate
+            if (oe == null || oe.epoch != editEpoch || oe.region.equals(region) ||
+                (editEpoch & 1) == 0)
+                slot = other;
+        }
+
+        slots.set(slot,
+            new Entry(region, editEpoch, (result == null) ? NO_RESULT : result));
+    }
+
+    /**
+     * Turn a cached value into a query result.
+     *
+     * @param val The value from get
+     * @return The shared result, null if the query found nothing
+     */
+    static int[] getResult(int[] val) {
+        return (val == NO_RESULT) ? null : val;
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return The hit count
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache.
+     *
+     * @return The miss count
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Mix the hash of a region so both halves depend on every bit.  The low
+     * half picks the first slot and the high half the second.
+     *
+     * @param region The region
+     * @return The mixed hash
+     */
+    private static int hash(Region region) {
+        int h = region.hashCode();
+
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * One cached result.  Never changed once stored.
+     */
+    private static class Entry {
+        /** The region queried */
+        final Region region;
+
+        /** The edit epoch the result was found in */
+        final int epoch;
+
+        /** The ids found, NO_RESULT if none */
+        final int[] result;
+
+        Entry(Region region, int epoch, int[] result) {
+            this.region = region;
+            this.epoch = epoch;
+            this.result = result;
+        }
+    }
+}
@@ -75,4 +75,53 @@ public class SliceRegion implements Region {
     public int getHeight() {
         return height;
     }
+
+    /**
+     * Compare this object for equality to the given object.
+     *
+     * @param o The object to be compared
+     * @return True if these represent the same values
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof SliceRegion))
+            return false;
+        else
+            return equals((SliceRegion)o);
+    }
+
+    /**
+     * Compares this object with the specified object to check for equivalence.
+     *
+     * @param ta The geometry instance to be compared
+     * @return true if the objects represent identical values
+     */
+    public boolean equals(SliceRegion ta) {
+        if (dir != ta.dir)
+            return false;
+
+        if (loc != ta.loc)
+            return false;
+
+        if (height != ta.height)
+            return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret_val = dir.ordinal();
+
+        ret_val = 31 * ret_val + loc;
+        ret_val = 31 * ret_val + height;
+
+        return ret_val;
+    }
+
+    @Override
+    public String toString() {
+        return "SliceRegion@" + this.hashCode() + " loc: " + loc + " height: " + height + " axis: " + dir;
+    }
 }
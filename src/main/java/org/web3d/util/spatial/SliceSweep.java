@@ -0,0 +1,290 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Walks the slices of a grid along an axis in order, reporting which
+ * triangles enter, leave and are active in each layer.
+ * <p>
+ *
+ * Each triangle is treated as covering every layer between the first and
+ * last layer it has a cell in.  For convex cell sets, which is what bounds
+ * and exact insertion produce, the active set of a layer is the same as
+ * querying a SliceRegion of height 1 at that layer.  The sweep is set up
+ * with one pass over the occupied cells, after that each layer costs only
+ * the number of triangles entering and leaving it.
+ * <p>
+ *
+ * Typical use:
+ * <pre>
+ *   SliceSweep sweep = grid.sweep(SliceRegion.Axis.Z);
+ *   while(sweep.next()) {
+ *       int layer = sweep.getLayer();
+ *       int[] active = sweep.getActive();
+ *       int cnt = sweep.getActiveCount();
+ *       ...
+ *   }
+ * </pre>
+ *
+ * The arrays returned are reused between layers and must not be changed.
+ * This class is not thread-safe.
+ *
+ * @version $Id: $
+ */
+public class SliceSweep {
+
+    /** The number of layers */
+    private final int numLayers;
+
+    /** Where each layers entering ids start, numLayers + 1 entries */
+    private final int[] enterStart;
+
+    /** The ids sorted by the layer they enter */
+    private final int[] enterIds;
+
+    /** Where each layers leaving ids start, numLayers + 1 entries */
+    private final int[] leaveStart;
+
+    /** The ids sorted by the layer they leave */
+    private final int[] leaveIds;
+
+    /** The current layer, -1 before the first call to next */
+    private int layer;
+
+    /** The ids active in the current layer */
+    private int[] active;
+
+    /** The number of active ids */
+    private int activeCount;
+
+    /** The position of each id in the active array */
+    private final int[] activePos;
+
+    /** The ids entering the current layer */
+    private int[] entering;
+
+    /** The number of entering ids */
+    private int enteringCount;
+
+    /** The ids leaving at the current layer */
+    private int[] leaving;
+
+    /** The number of leaving ids */
+    private int leavingCount;
+
+    /**
+     * Constructor.  Ids with a first layer past the last layer are ignored.
+     *
+     * @param numLayers The number of layers to walk
+     * @param firstLayer The first layer of each id
+     * @param lastLayer The last layer of each id
+     */
+    SliceSweep(int numLayers, int[] firstLayer, int[] lastLayer) {
+        this.numLayers = numLayers;
+
+        final int num_ids = firstLayer.length;
+
+        enterStart = new int[numLayers + 1];
+        leaveStart = new int[numLayers + 1];
+
+        int total = 0;
+
+        for(int id=0; id < num_ids; id++) {
+            if (firstLayer[id] >= numLayers)
+                continue;
+
+            enterStart[firstLayer[id]]++;
+
+            // Leaves at the layer after its last one
+            if (lastLayer[id] + 1 < numLayers)
+                leaveStart[lastLayer[id] + 1]++;
+
+            total++;
+        }
+
+        // Turn the counts into start offsets
+        int enter_pos = 0;
+        int leave_pos = 0;
+
+        for(int i=0; i <= numLayers; i++) {
+            int enter_cnt = enterStart[i];
+            int leave_cnt = leaveStart[i];
+
+            enterStart[i] = enter_pos;
+            leaveStart[i] = leave_pos;
+            enter_pos += enter_cnt;
+            leave_pos += leave_cnt;
+        }
+
+        enterIds = new int[enter_pos];
+        leaveIds = new int[leave_pos];
+
+        int[] enter_fill = new int[numLayers];
+        int[] leave_fill = new int[numLayers];
+
+        System.arraycopy(enterStart, 0, enter_fill, 0, numLayers);
+        System.arraycopy(leaveStart, 0, leave_fill, 0, numLayers);
+
+        for(int id=0; id < num_ids; id++) {
+            if (firstLayer[id] >= numLayers)
+                continue;
+
+            enterIds[enter_fill[firstLayer[id]]++] = id;
+
+            if (lastLayer[id] + 1 < numLayers)
+                leaveIds[leave_fill[lastLayer[id] + 1]++] = id;
+        }
+
+        active = new int[Math.max(16, total / 8)];
+        activePos = new int[num_ids];
+        entering = new int[16];
+        leaving = new int[16];
+        layer = -1;
+    }
+
+    /**
+     * Move to the next layer.
+     *
+     * @return false if there are no more layers
+     */
+    public boolean next() {
+        if (layer + 1 >= numLayers)
+            return false;
+
+        layer++;
+
+        // Remove those leaving first
+        int start = leaveStart[layer];
+        int end = leaveStart[layer + 1];
+
+        leavingCount = end - start;
+
+        if (leavingCount > leaving.length)
+            leaving = new int[Math.max(leavingCount, leaving.length << 1)];
+
+        for(int i=start; i < end; i++) {
+            int id = leaveIds[i];
+            int pos = activePos[id];
+            int last = active[--activeCount];
+
+            active[pos] = last;
+            activePos[last] = pos;
+            leaving[i - start] = id;
+        }
+
+        start = enterStart[layer];
+        end = enterStart[layer + 1];
+
+        enteringCount = end - start;
+
+        if (enteringCount > entering.length)
+            entering = new int[Math.max(enteringCount, entering.length << 1)];
+
+        if (activeCount + enteringCount > active.length) {
+            int[] new_active = new int[Math.max(activeCount + enteringCount, active.length << 1)];
+            System.arraycopy(active, 0, new_active, 0, activeCount);
+            active = new_active;
+        }
+
+        for(int i=start; i < end; i++) {
+            int id = enterIds[i];
+
+            activePos[id] = activeCount;
+            active[activeCount++] = id;
+            entering[i - start] = id;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the current layer.
+     *
+     * @return The layer, -1 before the first call to next
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    /**
+     * Get the number of layers the sweep walks.
+     *
+     * @return The layer count
+     */
+    public int getNumLayers() {
+        return numLayers;
+    }
+
+    /**
+     * Get the ids active in the current layer.  Only the first
+     * getActiveCount() values are valid.
+     *
+     * @return The active ids, in no particular order
+     */
+    public int[] getActive() {
+        return active;
+    }
+
+    /**
+     * Get the number of ids active in the current layer.
+     *
+     * @return The count
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Get the ids whose first layer is the current layer.  Only the first
+     * getEnteringCount() values are valid.
+     *
+     * @return The entering ids
+     */
+    public int[] getEntering() {
+        return entering;
+    }
+
+    /**
+     * Get the number of ids entering at the current layer.
+     *
+     * @return The count
+     */
+    public int getEnteringCount() {
+        return enteringCount;
+    }
+
+    /**
+     * Get the ids whose last layer was the previous layer.  Only the first
+     * getLeavingCount() values are valid.
+     *
+     * @return The leaving ids
+     */
+    public int[] getLeaving() {
+        return leaving;
+    }
+
+    /**
+     * Get the number of ids leaving at the current layer.
+     *
+     * @return The count
+     */
+    public int getLeavingCount() {
+        return leavingCount;
+    }
+}
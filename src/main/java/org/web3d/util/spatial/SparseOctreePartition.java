@@ -0,0 +1,549 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.BitSet;
+
+// Internal Imports
+import org.web3d.util.IntArray;
+import org.web3d.util.IntHashSet;
+import org.web3d.util.LongArray;
+
+/**
+ * A sparse octree over triangles stored as a linear, pointerless octree.
+ * <p>
+ *
+ * Only non-empty leaves are stored.  Each leaf is named by its locational
+ * code: a 1 marker bit followed by three bits per level giving the child
+ * taken at each level, x in the highest bit of each triple.  Leaves are
+ * kept in Morton order, so leaf n covers a contiguous range of finest level
+ * Morton cell keys, and its triangles are ids[start[n]] to
+ * ids[start[n + 1] - 1].  No child pointers are stored, memory scales with
+ * the number of occupied leaves rather than the grid volume.
+ * <p>
+ *
+ * Regions use the cell coordinates of a GridTrianglePartition with the same
+ * voxel size and count, and world positions map to cells the same way.  A
+ * node is split while it holds more than maxLeafTris triangles and is
+ * larger than a single cell.  A query box which only partly covers a leaf
+ * tests the leaf triangles against the box.
+ * <p>
+ *
+ * The octree is built on the first query after an insert, or by calling
+ * build.  Each build publishes a new immutable tree through a volatile
+ * field, so a query always sees a complete tree.  Inserting is not
+ * thread-safe, and queries running at the same time as inserts need
+ * outside synchronization.  Once inserts are finished, any number of
+ * threads can query the partition without locking.
+ *
+ * @version $Id: $
+ */
+public class SparseOctreePartition implements SpatialPartition {
+
+    /** The deepest octree supported, keeps locational codes in a long */
+    private static final int MAX_DEPTH = 20;
+
+    /** Fraction of a voxel a triangle may be outside a cell and still count */
+    private static final double BOUNDARY_TOLERANCE = 0.01;
+
+    /** The voxel size */
+    private final double voxelSize;
+
+    /** The number of voxels each axis */
+    private final int numVoxels;
+
+    /** Half number of voxels for quick math */
+    private final int half;
+
+    /** The number of levels below the root */
+    private final int depth;
+
+    /** Split nodes with more triangles than this */
+    private final int maxLeafTris;
+
+    /** Extra half size added to boxes for exact tests */
+    private final double boxMargin;
+
+    /** The triangle coordinates by id */
+    private TriangleStore triMapping;
+
+    /** The ids inserted using bounds rather than exact tests */
+    private BitSet boundsInserted;
+
+    /** Have triangles changed since the octree was built */
+    private volatile boolean dirty;
+
+    /** The current octree, replaced as a whole by each build */
+    private volatile Tree tree;
+
+    /**
+     * Constructor.
+     *
+     * @param voxelSize The size of each voxel in meters.
+     * @param numVoxelsPerSide The number of voxels in each axis.  Must be a
+     *    power of 2.
+     * @param maxLeafTris Split nodes holding more triangles than this
+     * @param numTris The expected number of triangles
+     */
+    public SparseOctreePartition(double voxelSize, int numVoxelsPerSide,
+        int maxLeafTris, int numTris) {
+
+        if (numVoxelsPerSide < 2 || Integer.bitCount(numVoxelsPerSide) != 1)
+            throw new IllegalArgumentException("Number of voxels per side must be a power of 2");
+
+        if (numVoxelsPerSide > (1 << MAX_DEPTH))
+            throw new IllegalArgumentException("Number of voxels per side must be <= " + (1 << MAX_DEPTH));
+
+        if (maxLeafTris < 1)
+            throw new IllegalArgumentException("Max leaf triangles must be positive");
+
+        this.voxelSize = voxelSize;
+        this.numVoxels = numVoxelsPerSide;
+        this.maxLeafTris = maxLeafTris;
+
+        half = numVoxels / 2;
+        depth = Integer.numberOfTrailingZeros(numVoxels);
+        boxMargin = voxelSize / 2.0 * 0.02;
+
+        triMapping = new TriangleStore(numTris);
+        boundsInserted = new BitSet();
+
+        clearTree();
+    }
+
+    //-------------------------------------------------------------
+    // Methods defined by SpatialPartition
+    //-------------------------------------------------------------
+
+    /**
+     * Clear the structure of all data.
+     */
+    public void clear() {
+        triMapping.clear();
+        boundsInserted.clear();
+        clearTree();
+    }
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.  Objects exactly on a voxel
+     * boundary shall be returned in all touching regions.
+     *
+     * @param region The region of interest.
+     * @return objs The list of triangles or null if none
+     */
+    public int[] getObjects(Region region) {
+        int[] min = new int[3];
+        int[] max = new int[3];
+
+        RegionBounds.toCellBounds(region, numVoxels, voxelSize, min, max);
+
+        return getObjects(min, max);
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Gets the objects in the specified region. Any object which is contained
+     * or overlaps the region will be returned.
+     *
+     * @param min The min grid cell location
+     * @param max The max grid cell location
+     * @return The objects or null if none
+     */
+    public int[] getObjects(int[] min, int[] max) {
+        final Tree t = getTree();
+        final long[] leaf_codes = t.leafCodes;
+        final int[] leaf_start = t.leafStart;
+        final int[] leaf_ids = t.leafIds;
+        final int num_leaves = leaf_codes.length;
+
+        if (num_leaves == 0)
+            return null;
+
+        IntHashSet<Integer> set = new IntHashSet<Integer>(53);
+
+        int[] bmin = new int[3];
+        int[] bmax = new int[3];
+
+        for(int i=0; i < 3; i++) {
+            bmin[i] = Math.max(0, min[i]);
+            bmax[i] = Math.min(numVoxels - 1, max[i]);
+
+            if (bmin[i] > bmax[i])
+                return null;
+        }
+
+        final long zmin = CellKey.morton(bmin[0], bmin[1], bmin[2]);
+        final long zmax = CellKey.morton(bmax[0], bmax[1], bmax[2]);
+
+        long code = zmin;
+
+        while(true) {
+            int leaf = findLeaf(leaf_codes, code);
+
+            if (leaf >= num_leaves)
+                break;
+
+            int level = getLevel(leaf_codes[leaf]);
+            int shift = 3 * (depth - level);
+            long first = (leaf_codes[leaf] ^ (1L << (3 * level))) << shift;
+            long last = first + (1L << shift) - 1;
+
+            if (first > zmax)
+                break;
+
+            int size = 1 << (depth - level);
+            int lx = CellKey.mortonX(first);
+            int ly = CellKey.mortonY(first);
+            int lz = CellKey.mortonZ(first);
+
+            if (lx <= bmax[0] && lx + size - 1 >= bmin[0] &&
+                ly <= bmax[1] && ly + size - 1 >= bmin[1] &&
+                lz <= bmax[2] && lz + size - 1 >= bmin[2]) {
+
+                boolean covered =
+                    lx >= bmin[0] && lx + size - 1 <= bmax[0] &&
+                    ly >= bmin[1] && ly + size - 1 <= bmax[1] &&
+                    lz >= bmin[2] && lz + size - 1 <= bmax[2];
+
+                int end = leaf_start[leaf + 1];
+
+                for(int n=leaf_start[leaf]; n < end; n++) {
+                    int id = leaf_ids[n];
+
+                    if (covered || (!set.contains(id) && overlapsCells(t.triCells, id, bmin, bmax)))
+                        set.add(id);
+                }
+            }
+
+            if (last >= zmax)
+                break;
+
+            code = CellKey.nextMortonInBox(last, zmin, zmax);
+
+            if (code < 0)
+                break;
+        }
+
+        if (set.isEmpty()) {
+            return null;
+        }
+
+        return set.toArray();
+    }
+
+    /**
+     * Insert an object into the structure.  The octree is rebuilt on the
+     * next query.
+     *
+     * @param tri The triangle
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle tri, boolean useBounds) {
+        triMapping.set(tri.id, tri.coords, 0);
+        boundsInserted.set(tri.id, useBounds);
+        dirty = true;
+    }
+
+    /**
+     * Insert an array of Triangles.  The octree is rebuilt on the next query.
+     *
+     * @param tris The triangles
+     * @param useBounds Should the bounds be used instead of the exact object.
+     */
+    public void insert(Triangle[] tris, boolean useBounds) {
+        for(int i=0; i < tris.length; i++) {
+            insert(tris[i], useBounds);
+        }
+    }
+
+    /**
+     * Get a copy of the triangle coordinates for an id.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] getTriangle(int id) {
+        return triMapping.get(id);
+    }
+
+    /**
+     * Get the number of stored leaves, building the octree if needed.
+     *
+     * @return The leaf count
+     */
+    public int getNumLeaves() {
+        return getTree().leafCodes.length;
+    }
+
+    /**
+     * Find voxel grid coordinates for a given world coordinate.  Uses the
+     * same mapping as GridTrianglePartition.
+     *
+     * @param coords The world coordinates
+     * @param pos The position in the grid, preallocate to 3.
+     */
+    public void findGridCoordsFromWorldCoords(float[] coords, int[] pos) {
+        pos[0] = findGridCoordsFromWorldCoords(coords[0]);
+        pos[1] = findGridCoordsFromWorldCoords(coords[1]);
+        pos[2] = findGridCoordsFromWorldCoords(coords[2]);
+    }
+
+    /**
+     * Find the voxel grid coordinate for a world coordinate on one axis.
+     *
+     * @param coord The world coordinate
+     * @return The grid coord
+     */
+    public int findGridCoordsFromWorldCoords(float coord) {
+        return clampCell(half + (int) Math.floor(coord / voxelSize));
+    }
+
+    /**
+     * Build the octree now rather than on the next query.
+     */
+    public synchronized void build() {
+        if (!dirty)
+            return;
+
+        final int num_ids = triMapping.getIdLimit();
+        final float[] coords = triMapping.getCoords();
+
+        int[] tri_cells = new int[num_ids * 6];
+
+        int[] ids = new int[num_ids];
+        int cnt = 0;
+        double tol = voxelSize * BOUNDARY_TOLERANCE;
+
+        for(int id=0; id < num_ids; id++) {
+            if (!triMapping.contains(id))
+                continue;
+
+            ids[cnt++] = id;
+
+            int c = id * TriangleStore.STRIDE;
+
+            for(int i=0; i < 3; i++) {
+                float lo = Math.min(coords[c + i], Math.min(coords[c + i + 3], coords[c + i + 6]));
+                float hi = Math.max(coords[c + i], Math.max(coords[c + i + 3], coords[c + i + 6]));
+
+                tri_cells[id * 6 + i] = clampCell(half + (int) Math.floor((lo - tol) / voxelSize));
+                tri_cells[id * 6 + 3 + i] = clampCell(half + (int) Math.floor((hi + tol) / voxelSize));
+            }
+        }
+
+        LongArray codes = new LongArray();
+        IntArray starts = new IntArray();
+        IntArray all_ids = new IntArray(cnt * 2);
+
+        subdivide(1L, 0, 0, 0, 0, ids, cnt, tri_cells, codes, starts, all_ids);
+
+        starts.add(all_ids.size());
+
+        // Publish the tree before clearing dirty so queries see it
+        tree = new Tree(codes.toArray(), starts.toArray(), all_ids.toArray(), tri_cells);
+        dirty = false;
+    }
+
+    /**
+     * Split a node until its children are small enough, adding leaves in
+     * Morton order.
+     *
+     * @param code The locational code of the node
+     * @param level The level of the node, 0 is the root
+     * @param x The min cell x of the node
+     * @param y The min cell y of the node
+     * @param z The min cell z of the node
+     * @param ids The triangles overlapping the node
+     * @param cnt The number of valid ids
+     * @param triCells The cell bounds of each triangle
+     * @param codes The leaf codes found so far
+     * @param starts The leaf starts found so far
+     * @param allIds The leaf ids found so far
+     */
+    private void subdivide(long code, int level, int x, int y, int z,
+        int[] ids, int cnt, int[] triCells, LongArray codes, IntArray starts,
+        IntArray allIds) {
+
+        if (cnt == 0)
+            return;
+
+        if (cnt <= maxLeafTris || level == depth) {
+            codes.add(code);
+            starts.add(allIds.size());
+
+            for(int i=0; i < cnt; i++) {
+                allIds.add(ids[i]);
+            }
+
+            return;
+        }
+
+        int size = numVoxels >> (level + 1);
+        int[] child_ids = new int[cnt];
+        int[] cmin = new int[3];
+        int[] cmax = new int[3];
+
+        for(int child=0; child < 8; child++) {
+            cmin[0] = x + ((child >> 2) & 1) * size;
+            cmin[1] = y + ((child >> 1) & 1) * size;
+            cmin[2] = z + (child & 1) * size;
+            cmax[0] = cmin[0] + size - 1;
+            cmax[1] = cmin[1] + size - 1;
+            cmax[2] = cmin[2] + size - 1;
+
+            int child_cnt = 0;
+
+            for(int i=0; i < cnt; i++) {
+                if (overlapsCells(triCells, ids[i], cmin, cmax))
+                    child_ids[child_cnt++] = ids[i];
+            }
+
+            subdivide((code << 3) | child, level + 1, cmin[0], cmin[1], cmin[2],
+                child_ids, child_cnt, triCells, codes, starts, allIds);
+        }
+    }
+
+    /**
+     * Does a triangle touch a box of cells.
+     *
+     * @param triCells The cell bounds of each triangle, 6 per id
+     * @param id The triangle id
+     * @param min The min cell location
+     * @param max The max cell location
+     * @return true if it touches
+     */
+    private boolean overlapsCells(int[] triCells, int id, int[] min, int[] max) {
+        int b = id * 6;
+
+        for(int i=0; i < 3; i++) {
+            if (triCells[b + i] > max[i] || triCells[b + 3 + i] < min[i])
+                return false;
+        }
+
+        if (boundsInserted.get(id))
+            return true;
+
+        double hx = (max[0] - min[0] + 1) * voxelSize / 2.0;
+        double hy = (max[1] - min[1] + 1) * voxelSize / 2.0;
+        double hz = (max[2] - min[2] + 1) * voxelSize / 2.0;
+
+        return TriangleBoxOverlap.overlaps(triMapping.getCoords(), id * TriangleStore.STRIDE,
+            (min[0] - half) * voxelSize + hx,
+            (min[1] - half) * voxelSize + hy,
+            (min[2] - half) * voxelSize + hz,
+            hx + boxMargin, hy + boxMargin, hz + boxMargin);
+    }
+
+    /**
+     * Find the first leaf whose last cell key is at or after a cell key.
+     *
+     * @param leafCodes The locational codes of the leaves
+     * @param key The finest level Morton cell key
+     * @return The leaf, or the leaf count if none
+     */
+    private int findLeaf(long[] leafCodes, long key) {
+        int lo = 0;
+        int hi = leafCodes.length;
+
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long code = leafCodes[mid];
+            int level = getLevel(code);
+            int shift = 3 * (depth - level);
+            long last = (((code ^ (1L << (3 * level))) + 1) << shift) - 1;
+
+            if (last < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Get the level of a locational code from the position of its marker.
+     *
+     * @param code The locational code
+     * @return The level, 0 is the root
+     */
+    private static int getLevel(long code) {
+        return (63 - Long.numberOfLeadingZeros(code)) / 3;
+    }
+
+    /**
+     * Clamp a cell coordinate to the grid.
+     *
+     * @param pos The coordinate
+     * @return The clamped coordinate
+     */
+    private int clampCell(int pos) {
+        if (pos < 0)
+            return 0;
+
+        if (pos > numVoxels - 1)
+            return numVoxels - 1;
+
+        return pos;
+    }
+
+    /**
+     * Get the octree, building it first if it does not reflect all inserts.
+     *
+     * @return The current tree
+     */
+    private Tree getTree() {
+        if (dirty)
+            build();
+
+        return tree;
+    }
+
+    /**
+     * Remove the octree.
+     */
+    private void clearTree() {
+        tree = new Tree(new long[0], new int[1], new int[0], new int[0]);
+        dirty = false;
+    }
+
+    /**
+     * The arrays of one build of the octree.  They are never changed once
+     * the tree is published.
+     */
+    private static class Tree {
+        /** The locational codes of the leaves in Morton order */
+        final long[] leafCodes;
+
+        /** Where each leafs ids start, one more than the leaves */
+        final int[] leafStart;
+
+        /** The ids of all leaves */
+        final int[] leafIds;
+
+        /** The cell bounds of each triangle, 6 per id, min then max */
+        final int[] triCells;
+
+        Tree(long[] leafCodes, int[] leafStart, int[] leafIds, int[] triCells) {
+            this.leafCodes = leafCodes;
+            this.leafStart = leafStart;
+            this.leafIds = leafIds;
+            this.triCells = triCells;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * A structure which describes a sphere of space in world coordinates.
+ *
+ * @version $Id: $
+ */
+public class SphereRegion implements WorldRegion {
+
+    /** The center */
+    private float[] center;
+
+    /** The radius */
+    private float radius;
+
+    /**
+     * Constructor.  The center is copied.
+     *
+     * @param center The center in world coordinates
+     * @param radius The radius, must not be negative
+     */
+    public SphereRegion(float[] center, float radius) {
+        if (!(radius >= 0))
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+
+        this.center = new float[] {center[0], center[1], center[2]};
+        this.radius = radius;
+    }
+
+    //----------------------------------------------------------
+    // Methods defined by WorldRegion
+    //----------------------------------------------------------
+
+    /**
+     * Get the axis aligned bounds of the region in world coordinates.
+     *
+     * @param min The min corner, preallocate to 3
+     * @param max The max corner, preallocate to 3
+     */
+    public void getBounds(float[] min, float[] max) {
+        for(int i=0; i < 3; i++) {
+            min[i] = center[i] - radius;
+            max[i] = center[i] + radius;
+        }
+    }
+
+    /**
+     * Does a triangle overlap the region.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @return true if they overlap
+     */
+    public boolean overlaps(float[] coords, int off) {
+        double dist = TrianglePointDistance.closestPoint(coords, off,
+            center[0], center[1], center[2], null);
+
+        return dist <= (double) radius * radius;
+    }
+
+    //----------------------------------------------------------
+    // Local Methods
+    //----------------------------------------------------------
+
+    /**
+     * Get the center.
+     *
+     * @param val The center, preallocate to 3
+     */
+    public void getCenter(float[] val) {
+        val[0] = center[0];
+        val[1] = center[1];
+        val[2] = center[2];
+    }
+
+    /**
+     * Get the radius.
+     *
+     * @return the value
+     */
+    public float getRadius() {
+        return radius;
+    }
+
+    /**
+     * Compare this object for equality to the given object.
+     *
+     * @param o The object to be compared
+     * @return True if these represent the same values
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SphereRegion))
+            return false;
+        else
+            return equals((SphereRegion) o);
+    }
+
+    /**
+     * Compares this object with the specified object to check for equivalence.
+     *
+     * @param sphere The region to be compared
+     * @return true if the objects represent identical values
+     */
+    public boolean equals(SphereRegion sphere) {
+        if (Float.floatToIntBits(radius) != Float.floatToIntBits(sphere.radius))
+            return false;
+
+        for(int i=0; i < 3; i++) {
+            if (Float.floatToIntBits(center[i]) != Float.floatToIntBits(sphere.center[i]))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int ret_val = Float.floatToIntBits(radius);
+
+        for(int i=0; i < 3; i++) {
+            ret_val = 31 * ret_val + Float.floatToIntBits(center[i]);
+        }
+
+        return ret_val;
+    }
+
+    @Override
+    public String toString() {
+        return "SphereRegion@" + this.hashCode() + " center: " + center[0] + " " +
+            center[1] + " " + center[2] + " radius: " + radius;
+    }
+}
@@ -0,0 +1,562 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Triangle and axis aligned box overlap testing.
+ * <p>
+ *
+ * Uses the separating axis test of Akenine-Moller: the three box axes, the
+ * triangle normal and the nine cross products of box axes and triangle
+ * edges.  Triangles are read straight from a flat coordinate array so no
+ * objects are created per test.
+ * <p>
+ *
+ * triBoxOverlap and Setup follow the arithmetic of the tribox3 reference
+ * code, projecting two vertices per edge axis, which is what the grid
+ * partitions have always used for their cells.  The float triBoxOverlap is
+ * the same test in single precision, as used by the mesh voxelizer.  Setup does the triangle
+ * only work once so testing many boxes against one triangle only pays
+ * for the projections.
+ *
+ * @version $Id: $
+ */
+public abstract class TriangleBoxOverlap {
+
+    /**
+     * Does a triangle overlap a box.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @param cx The box center x
+     * @param cy The box center y
+     * @param cz The box center z
+     * @param hx The box half size in x
+     * @param hy The box half size in y
+     * @param hz The box half size in z
+     * @return true if they overlap
+     */
+    public static boolean overlaps(float[] coords, int off,
+        double cx, double cy, double cz, double hx, double hy, double hz) {
+
+        // Move the box to the origin
+        double v0x = coords[off] - cx;
+        double v0y = coords[off + 1] - cy;
+        double v0z = coords[off + 2] - cz;
+        double v1x = coords[off + 3] - cx;
+        double v1y = coords[off + 4] - cy;
+        double v1z = coords[off + 5] - cz;
+        double v2x = coords[off + 6] - cx;
+        double v2y = coords[off + 7] - cy;
+        double v2z = coords[off + 8] - cz;
+
+        return overlaps(v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz);
+    }
+
+    /**
+     * Does a triangle overlap a box centered on the origin.  Touching counts
+     * as overlapping.
+     *
+     * @param v0x The first vertex x, relative to the box center
+     * @param v0y The first vertex y, relative to the box center
+     * @param v0z The first vertex z, relative to the box center
+     * @param v1x The second vertex x, relative to the box center
+     * @param v1y The second vertex y, relative to the box center
+     * @param v1z The second vertex z, relative to the box center
+     * @param v2x The third vertex x, relative to the box center
+     * @param v2y The third vertex y, relative to the box center
+     * @param v2z The third vertex z, relative to the box center
+     * @param hx The box half size in x
+     * @param hy The box half size in y
+     * @param hz The box half size in z
+     * @return true if they overlap
+     */
+    public static boolean overlaps(double v0x, double v0y, double v0z,
+        double v1x, double v1y, double v1z,
+        double v2x, double v2y, double v2z,
+        double hx, double hy, double hz) {
+
+        // Box axes, compare the triangle bounds against the box
+        if (Math.min(v0x, Math.min(v1x, v2x)) > hx || Math.max(v0x, Math.max(v1x, v2x)) < -hx)
+            return false;
+
+        if (Math.min(v0y, Math.min(v1y, v2y)) > hy || Math.max(v0y, Math.max(v1y, v2y)) < -hy)
+            return false;
+
+        if (Math.min(v0z, Math.min(v1z, v2z)) > hz || Math.max(v0z, Math.max(v1z, v2z)) < -hz)
+            return false;
+
+        double e0x = v1x - v0x;
+        double e0y = v1y - v0y;
+        double e0z = v1z - v0z;
+        double e1x = v2x - v1x;
+        double e1y = v2y - v1y;
+        double e1z = v2z - v1z;
+        double e2x = v0x - v2x;
+        double e2y = v0y - v2y;
+        double e2z = v0z - v2z;
+
+        // Cross products of the box axes and the edges
+        if (separated(0, -e0z, e0y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(e0z, 0, -e0x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(-e0y, e0x, 0, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(0, -e1z, e1y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(e1z, 0, -e1x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(-e1y, e1x, 0, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(0, -e2z, e2y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(e2z, 0, -e2x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz) ||
+            separated(-e2y, e2x, 0, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz))
+            return false;
+
+        // The triangle plane
+        double nx = e0y * e1z - e0z * e1y;
+        double ny = e0z * e1x - e0x * e1z;
+        double nz = e0x * e1y - e0y * e1x;
+        double d = nx * v0x + ny * v0y + nz * v0z;
+        double r = hx * Math.abs(nx) + hy * Math.abs(ny) + hz * Math.abs(nz);
+
+        return Math.abs(d) <= r;
+    }
+
+    /**
+     * Is an axis separating the triangle and box.
+     *
+     * @return true if the projections do not overlap
+     */
+    private static boolean separated(double ax, double ay, double az,
+        double v0x, double v0y, double v0z,
+        double v1x, double v1y, double v1z,
+        double v2x, double v2y, double v2z,
+        double hx, double hy, double hz) {
+
+        double p0 = ax * v0x + ay * v0y + az * v0z;
+        double p1 = ax * v1x + ay * v1y + az * v1z;
+        double p2 = ax * v2x + ay * v2y + az * v2z;
+        double r = hx * Math.abs(ax) + hy * Math.abs(ay) + hz * Math.abs(az);
+
+        return Math.min(p0, Math.min(p1, p2)) > r || Math.max(p0, Math.max(p1, p2)) < -r;
+    }
+
+    /**
+     * Does a triangle overlap a box, using the tribox3 arithmetic.  Touching
+     * counts as overlapping.
+     *
+     * @param v0x The first vertex x
+     * @param v0y The first vertex y
+     * @param v0z The first vertex z
+     * @param v1x The second vertex x
+     * @param v1y The second vertex y
+     * @param v1z The second vertex z
+     * @param v2x The third vertex x
+     * @param v2y The third vertex y
+     * @param v2z The third vertex z
+     * @param cx The box center x
+     * @param cy The box center y
+     * @param cz The box center z
+     * @param hx The box half size in x
+     * @param hy The box half size in y
+     * @param hz The box half size in z
+     * @return true if they overlap
+     */
+    public static boolean triBoxOverlap(double v0x, double v0y, double v0z,
+        double v1x, double v1y, double v1z,
+        double v2x, double v2y, double v2z,
+        double cx, double cy, double cz,
+        double hx, double hy, double hz) {
+
+        // Move the box to the origin
+        double ax = v0x - cx;
+        double ay = v0y - cy;
+        double az = v0z - cz;
+        double bx = v1x - cx;
+        double by = v1y - cy;
+        double bz = v1z - cz;
+        double dx = v2x - cx;
+        double dy = v2y - cy;
+        double dz = v2z - cz;
+
+        double e0x = bx - ax;
+        double e0y = by - ay;
+        double e0z = bz - az;
+        double fx = Math.abs(e0x);
+        double fy = Math.abs(e0y);
+        double fz = Math.abs(e0z);
+
+        if (testAxis(e0z, -e0y, ay, az, dy, dz, fz * hy + fy * hz) ||
+            testAxis(-e0z, e0x, ax, az, dx, dz, fz * hx + fx * hz) ||
+            testAxis(e0y, -e0x, bx, by, dx, dy, fy * hx + fx * hy))
+            return false;
+
+        double e1x = dx - bx;
+        double e1y = dy - by;
+        double e1z = dz - bz;
+        fx = Math.abs(e1x);
+        fy = Math.abs(e1y);
+        fz = Math.abs(e1z);
+
+        if (testAxis(e1z, -e1y, ay, az, dy, dz, fz * hy + fy * hz) ||
+            testAxis(-e1z, e1x, ax, az, dx, dz, fz * hx + fx * hz) ||
+            testAxis(e1y, -e1x, ax, ay, bx, by, fy * hx + fx * hy))
+            return false;
+
+        double e2x = ax - dx;
+        double e2y = ay - dy;
+        double e2z = az - dz;
+        fx = Math.abs(e2x);
+        fy = Math.abs(e2y);
+        fz = Math.abs(e2z);
+
+        if (testAxis(e2z, -e2y, ay, az, by, bz, fz * hy + fy * hz) ||
+            testAxis(-e2z, e2x, ax, az, bx, bz, fz * hx + fx * hz) ||
+            testAxis(e2y, -e2x, bx, by, dx, dy, fy * hx + fx * hy))
+            return false;
+
+        if (Math.min(ax, Math.min(bx, dx)) > hx || Math.max(ax, Math.max(bx, dx)) < -hx)
+            return false;
+
+        if (Math.min(ay, Math.min(by, dy)) > hy || Math.max(ay, Math.max(by, dy)) < -hy)
+            return false;
+
+        if (Math.min(az, Math.min(bz, dz)) > hz || Math.max(az, Math.max(bz, dz)) < -hz)
+            return false;
+
+        // The triangle plane, normal = e0 x e1
+        double nx = e0y * e1z - e1y * e0z;
+        double ny = e0z * e1x - e1z * e0x;
+        double nz = e0x * e1y - e1x * e0y;
+        double d = -(nx * ax + ny * ay + nz * az);
+
+        double min_x = (nx > 0) ? -hx : hx;
+        double min_y = (ny > 0) ? -hy : hy;
+        double min_z = (nz > 0) ? -hz : hz;
+
+        if (nx * min_x + ny * min_y + nz * min_z + d > 0)
+            return false;
+
+        return nx * -min_x + ny * -min_y + nz * -min_z + d >= 0;
+    }
+
+    /**
+     * Is an edge axis separating, from the projections of two vertices.
+     *
+     * @return true if the projections do not overlap
+     */
+    private static boolean testAxis(double a, double b, double va, double vb,
+        double wa, double wb, double rad) {
+
+        double p0 = a * va + b * vb;
+        double p2 = a * wa + b * wb;
+
+        if (p0 < p2)
+            return p0 > rad || p2 < -rad;
+
+        return p2 > rad || p0 < -rad;
+    }
+
+    /**
+     * Does a triangle overlap a box, using the single precision arithmetic
+     * of toxi's AABB.intersectsTriangle.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @param cx The box center x
+     * @param cy The box center y
+     * @param cz The box center z
+     * @param ex The box half size in x
+     * @param ey The box half size in y
+     * @param ez The box half size in z
+     * @return true if they overlap
+     */
+    public static boolean triBoxOverlap(float[] coords, int off,
+        float cx, float cy, float cz, float ex, float ey, float ez) {
+
+        // Move the box to the origin
+        float ax = coords[off] - cx;
+        float ay = coords[off + 1] - cy;
+        float az = coords[off + 2] - cz;
+        float bx = coords[off + 3] - cx;
+        float by = coords[off + 4] - cy;
+        float bz = coords[off + 5] - cz;
+        float dx = coords[off + 6] - cx;
+        float dy = coords[off + 7] - cy;
+        float dz = coords[off + 8] - cz;
+
+        float e0x = bx - ax;
+        float e0y = by - ay;
+        float e0z = bz - az;
+        float e1x = dx - bx;
+        float e1y = dy - by;
+        float e1z = dz - bz;
+        float e2x = ax - dx;
+        float e2y = ay - dy;
+        float e2z = az - dz;
+
+        float fx = Math.abs(e0x);
+        float fy = Math.abs(e0y);
+        float fz = Math.abs(e0z);
+
+        if (testAxis(e0z, -e0y, ay, az, dy, dz, fz * ey + fy * ez) ||
+            testAxis(-e0z, e0x, ax, az, dx, dz, fz * ex + fx * ez) ||
+            testAxis(e0y, -e0x, bx, by, dx, dy, fy * ex + fx * ey))
+            return false;
+
+        fx = Math.abs(e1x);
+        fy = Math.abs(e1y);
+        fz = Math.abs(e1z);
+
+        if (testAxis(e1z, -e1y, ay, az, dy, dz, fz * ey + fy * ez) ||
+            testAxis(-e1z, e1x, ax, az, dx, dz, fz * ex + fx * ez) ||
+            testAxis(e1y, -e1x, ax, ay, bx, by, fy * ex + fx * ey))
+            return false;
+
+        fx = Math.abs(e2x);
+        fy = Math.abs(e2y);
+        fz = Math.abs(e2z);
+
+        if (testAxis(e2z, -e2y, ay, az, by, bz, fz * ey + fy * ez) ||
+            testAxis(-e2z, e2x, ax, az, bx, bz, fz * ex + fx * ez) ||
+            testAxis(e2y, -e2x, bx, by, dx, dy, fy * ex + fx * ey))
+            return false;
+
+        if (Math.min(ax, Math.min(bx, dx)) > ex || Math.max(ax, Math.max(bx, dx)) < -ex)
+            return false;
+
+        if (Math.min(ay, Math.min(by, dy)) > ey || Math.max(ay, Math.max(by, dy)) < -ey)
+            return false;
+
+        if (Math.min(az, Math.min(bz, dz)) > ez || Math.max(az, Math.max(bz, dz)) < -ez)
+            return false;
+
+        // The triangle plane, normal = e0 x e1
+        float nx = e0y * e1z - e1y * e0z;
+        float ny = e0z * e1x - e1z * e0x;
+        float nz = e0x * e1y - e1x * e0y;
+        float d = -(nx * ax + ny * ay + nz * az);
+
+        float min_x = (nx > 0) ? -ex : ex;
+        float min_y = (ny > 0) ? -ey : ey;
+        float min_z = (nz > 0) ? -ez : ez;
+
+        if (nx * min_x + ny * min_y + nz * min_z + d > 0)
+            return false;
+
+        return nx * -min_x + ny * -min_y + nz * -min_z + d >= 0;
+    }
+
+    /**
+     * Is an edge axis separating, from the projections of two vertices.
+     *
+     * @return true if the projections do not overlap
+     */
+    private static boolean testAxis(float a, float b, float va, float vb,
+        float wa, float wb, float rad) {
+
+        float p0 = a * va + b * vb;
+        float p2 = a * wa + b * wb;
+
+        if (p0 < p2)
+            return p0 > rad || p2 < -rad;
+
+        return p2 > rad || p0 < -rad;
+    }
+
+    /**
+     * One triangle made ready for testing against many boxes of the same
+     * size.  The edges, edge axis radii and triangle plane are worked out
+     * by set, leaving only the projections of the moved vertices for each
+     * box.  The answers are the same as triBoxOverlap for the same
+     * triangle and box.  Not thread safe, use one per thread.
+     */
+    public static final class Setup {
+        /** The vertices */
+        private double v0x, v0y, v0z;
+        private double v1x, v1y, v1z;
+        private double v2x, v2y, v2z;
+
+        /** The edges */
+        private double e0x, e0y, e0z;
+        private double e1x, e1y, e1z;
+        private double e2x, e2y, e2z;
+
+        /** The box half sizes */
+        private double hx, hy, hz;
+
+        /** The projected box radius of each edge axis */
+        private double rad0, rad1, rad2;
+        private double rad3, rad4, rad5;
+        private double rad6, rad7, rad8;
+
+        /** The triangle normal */
+        private double nx, ny, nz;
+
+        /** The normal dotted with the nearest and farthest box corners */
+        private double planeMin;
+        private double planeMax;
+
+        /**
+         * Set the triangle and box size to test.
+         *
+         * @param coords The triangle coordinates, 9 values from off
+         * @param off The offset of the first vertex
+         * @param hx The box half size in x
+         * @param hy The box half size in y
+         * @param hz The box half size in z
+         */
+        public void set(float[] coords, int off, double hx, double hy, double hz) {
+            set(coords[off], coords[off + 1], coords[off + 2],
+                coords[off + 3], coords[off + 4], coords[off + 5],
+                coords[off + 6], coords[off + 7], coords[off + 8],
+                hx, hy, hz);
+        }
+
+        /**
+         * Set the triangle and box size to test.
+         * <p>
+         *
+         * The edges are taken from the vertices directly rather than from
+         * the vertices moved to each box.  For float input vertices and
+         * box centers these are the same exact doubles, so the answers
+         * match triBoxOverlap.
+         *
+         * @param v0x The first vertex x
+         * @param v0y The first vertex y
+         * @param v0z The first vertex z
+         * @param v1x The second vertex x
+         * @param v1y The second vertex y
+         * @param v1z The second vertex z
+         * @param v2x The third vertex x
+         * @param v2y The third vertex y
+         * @param v2z The third vertex z
+         * @param hx The box half size in x
+         * @param hy The box half size in y
+         * @param hz The box half size in z
+         */
+        public void set(double v0x, double v0y, double v0z,
+            double v1x, double v1y, double v1z,
+            double v2x, double v2y, double v2z,
+            double hx, double hy, double hz) {
+
+            this.v0x = v0x;
+            this.v0y = v0y;
+            this.v0z = v0z;
+            this.v1x = v1x;
+            this.v1y = v1y;
+            this.v1z = v1z;
+            this.v2x = v2x;
+            this.v2y = v2y;
+            this.v2z = v2z;
+            this.hx = hx;
+            this.hy = hy;
+            this.hz = hz;
+
+            e0x = v1x - v0x;
+            e0y = v1y - v0y;
+            e0z = v1z - v0z;
+            e1x = v2x - v1x;
+            e1y = v2y - v1y;
+            e1z = v2z - v1z;
+            e2x = v0x - v2x;
+            e2y = v0y - v2y;
+            e2z = v0z - v2z;
+
+            double fx = Math.abs(e0x);
+            double fy = Math.abs(e0y);
+            double fz = Math.abs(e0z);
+
+            rad0 = fz * hy + fy * hz;
+            rad1 = fz * hx + fx * hz;
+            rad2 = fy * hx + fx * hy;
+
+            fx = Math.abs(e1x);
+            fy = Math.abs(e1y);
+            fz = Math.abs(e1z);
+
+            rad3 = fz * hy + fy * hz;
+            rad4 = fz * hx + fx * hz;
+            rad5 = fy * hx + fx * hy;
+
+            fx = Math.abs(e2x);
+            fy = Math.abs(e2y);
+            fz = Math.abs(e2z);
+
+            rad6 = fz * hy + fy * hz;
+            rad7 = fz * hx + fx * hz;
+            rad8 = fy * hx + fx * hy;
+
+            nx = e0y * e1z - e1y * e0z;
+            ny = e0z * e1x - e1z * e0x;
+            nz = e0x * e1y - e1x * e0y;
+
+            double min_x = (nx > 0) ? -hx : hx;
+            double min_y = (ny > 0) ? -hy : hy;
+            double min_z = (nz > 0) ? -hz : hz;
+
+            planeMin = nx * min_x + ny * min_y + nz * min_z;
+            planeMax = nx * -min_x + ny * -min_y + nz * -min_z;
+        }
+
+        /**
+         * Does the triangle overlap the box at a center.  Touching counts as
+         * overlapping.
+         *
+         * @param cx The box center x
+         * @param cy The box center y
+         * @param cz The box center z
+         * @return true if they overlap
+         */
+        public boolean overlaps(double cx, double cy, double cz) {
+            // Move the box to the origin
+            double ax = v0x - cx;
+            double ay = v0y - cy;
+            double az = v0z - cz;
+
+            // Inside the triangle bounds the plane rejects the most boxes
+            double d = -(nx * ax + ny * ay + nz * az);
+
+            if (planeMin + d > 0 || !(planeMax + d >= 0))
+                return false;
+
+            double bx = v1x - cx;
+            double by = v1y - cy;
+            double bz = v1z - cz;
+            double dx = v2x - cx;
+            double dy = v2y - cy;
+            double dz = v2z - cz;
+
+            if (testAxis(e0z, -e0y, ay, az, dy, dz, rad0) ||
+                testAxis(-e0z, e0x, ax, az, dx, dz, rad1) ||
+                testAxis(e0y, -e0x, bx, by, dx, dy, rad2) ||
+                testAxis(e1z, -e1y, ay, az, dy, dz, rad3) ||
+                testAxis(-e1z, e1x, ax, az, dx, dz, rad4) ||
+                testAxis(e1y, -e1x, ax, ay, bx, by, rad5) ||
+                testAxis(e2z, -e2y, ay, az, by, bz, rad6) ||
+                testAxis(-e2z, e2x, ax, az, bx, bz, rad7) ||
+                testAxis(e2y, -e2x, bx, by, dx, dy, rad8))
+                return false;
+
+            if (Math.min(ax, Math.min(bx, dx)) > hx || Math.max(ax, Math.max(bx, dx)) < -hx)
+                return false;
+
+            if (Math.min(ay, Math.min(by, dy)) > hy || Math.max(ay, Math.max(by, dy)) < -hy)
+                return false;
+
+            return !(Math.min(az, Math.min(bz, dz)) > hz || Math.max(az, Math.max(bz, dz)) < -hz);
+        }
+    }
+}
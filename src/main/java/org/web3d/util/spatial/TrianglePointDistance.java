@@ -0,0 +1,168 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * Closest point on a triangle to a point.
+ * <p>
+ *
+ * Uses the Voronoi region walk from Ericson, Real-Time Collision Detection.
+ * Triangles are read straight from a flat coordinate array so no objects
+ * are created per test.
+ *
+ * @version $Id: $
+ */
+public abstract class TrianglePointDistance {
+
+    /**
+     * Find the closest point on a triangle to a point.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @param px The point x
+     * @param py The point y
+     * @param pz The point z
+     * @param closest The closest point, preallocate to 3 or null if not needed
+     * @return The squared distance from the point to the triangle
+     */
+    public static double closestPoint(float[] coords, int off,
+        double px, double py, double pz, double[] closest) {
+
+        double ax = coords[off];
+        double ay = coords[off + 1];
+        double az = coords[off + 2];
+
+        double abx = coords[off + 3] - ax;
+        double aby = coords[off + 4] - ay;
+        double abz = coords[off + 5] - az;
+        double acx = coords[off + 6] - ax;
+        double acy = coords[off + 7] - ay;
+        double acz = coords[off + 8] - az;
+
+        double apx = px - ax;
+        double apy = py - ay;
+        double apz = pz - az;
+
+        double d1 = abx * apx + aby * apy + abz * apz;
+        double d2 = acx * apx + acy * apy + acz * apz;
+
+        if (d1 <= 0 && d2 <= 0) {
+            // Vertex a
+            return finish(ax, ay, az, px, py, pz, closest);
+        }
+
+        double bpx = apx - abx;
+        double bpy = apy - aby;
+        double bpz = apz - abz;
+        double d3 = abx * bpx + aby * bpy + abz * bpz;
+        double d4 = acx * bpx + acy * bpy + acz * bpz;
+
+        if (d3 >= 0 && d4 <= d3) {
+            // Vertex b
+            return finish(ax + abx, ay + aby, az + abz, px, py, pz, closest);
+        }
+
+        double vc = d1 * d4 - d3 * d2;
+
+        if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+            // Edge ab
+            double v = d1 / (d1 - d3);
+
+            return finish(ax + v * abx, ay + v * aby, az + v * abz,
+                          px, py, pz, closest);
+        }
+
+        double cpx = apx - acx;
+        double cpy = apy - acy;
+        double cpz = apz - acz;
+        double d5 = abx * cpx + aby * cpy + abz * cpz;
+        double d6 = acx * cpx + acy * cpy + acz * cpz;
+
+        if (d6 >= 0 && d5 <= d6) {
+            // Vertex c
+            return finish(ax + acx, ay + acy, az + acz, px, py, pz, closest);
+        }
+
+        double vb = d5 * d2 - d1 * d6;
+
+        if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+            // Edge ac
+            double w = d2 / (d2 - d6);
+
+            return finish(ax + w * acx, ay + w * acy, az + w * acz,
+                          px, py, pz, closest);
+        }
+
+        double va = d3 * d6 - d5 * d4;
+
+        if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+            // Edge bc
+            double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+            double bx = ax + abx;
+            double by = ay + aby;
+            double bz = az + abz;
+
+            return finish(bx + w * (acx - abx), by + w * (acy - aby),
+                          bz + w * (acz - abz), px, py, pz, closest);
+        }
+
+        // Inside the face
+        double sum = va + vb + vc;
+
+        if (sum == 0) {
+            // Degenerate triangle that fell through every region test
+            return finish(ax, ay, az, px, py, pz, closest);
+        }
+
+        double denom = 1.0 / sum;
+        double v = vb * denom;
+        double w = vc * denom;
+
+        return finish(ax + abx * v + acx * w, ay + aby * v + acy * w,
+                      az + abz * v + acz * w, px, py, pz, closest);
+    }
+
+    /**
+     * Store the closest point and return the squared distance to it.
+     *
+     * @param cx The closest point x
+     * @param cy The closest point y
+     * @param cz The closest point z
+     * @param px The point x
+     * @param py The point y
+     * @param pz The point z
+     * @param closest The closest point to fill in, or null
+     * @return The squared distance
+     */
+    private static double finish(double cx, double cy, double cz,
+        double px, double py, double pz, double[] closest) {
+
+        if (closest != null) {
+            closest[0] = cx;
+            closest[1] = cy;
+            closest[2] = cz;
+        }
+
+        double dx = px - cx;
+        double dy = py - cy;
+        double dz = pz - cz;
+
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -0,0 +1,190 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Internal Imports
+// None
+
+/**
+ * Flat storage of triangle coordinates by id.
+ * <p>
+ *
+ * All triangles live in one float array, nine values per id starting at
+ * id * 9, so there is no object per triangle.  Tests which take a
+ * coordinate array and offset, such as {@link TriangleBoxOverlap}, can
+ * read straight from {@link #getCoords()}.  The array grows by doubling.
+ * <p>
+ *
+ * This implementation is not thread-safe for writes.  Any number of
+ * threads may read concurrently once all writes are finished.
+ *
+ * @version $Id: $
+ */
+public class TriangleStore {
+
+    /** The number of values per triangle */
+    public static final int STRIDE = 9;
+
+    /** The minimum number of triangles to allocate for */
+    private static final int MIN_CAPACITY = 16;
+
+    /** The coordinates, STRIDE values per id */
+    private float[] coords;
+
+    /** The ids which have been set */
+    private BitSet present;
+
+    /** One past the largest id set */
+    private int idLimit;
+
+    /**
+     * Constructor.
+     *
+     * @param numTris The number of triangles expected
+     */
+    public TriangleStore(int numTris) {
+        if (numTris < 0)
+            throw new IllegalArgumentException("Illegal Capacity: " + numTris);
+
+        coords = new float[Math.max(MIN_CAPACITY, numTris) * STRIDE];
+        present = new BitSet(numTris);
+    }
+
+    /**
+     * Set the coordinates of a triangle, growing the store if needed.  The
+     * coordinates are copied.
+     *
+     * @param id The triangle id
+     * @param src The coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     */
+    public void set(int id, float[] src, int off) {
+        if (id < 0)
+            throw new IllegalArgumentException("Invalid id: " + id);
+
+        ensureCapacity(id + 1);
+
+        System.arraycopy(src, off, coords, id * STRIDE, STRIDE);
+        present.set(id);
+
+        if (id >= idLimit)
+            idLimit = id + 1;
+    }
+
+    /**
+     * Copy the coordinates of a triangle.
+     *
+     * @param id The triangle id
+     * @param dest The array to copy into, 9 values from off
+     * @param off The offset to copy to
+     */
+    public void get(int id, float[] dest, int off) {
+        System.arraycopy(coords, id * STRIDE, dest, off, STRIDE);
+    }
+
+    /**
+     * Get a copy of the coordinates of a triangle.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     */
+    public float[] get(int id) {
+        float[] ret_val = new float[STRIDE];
+
+        get(id, ret_val, 0);
+
+        return ret_val;
+    }
+
+    /**
+     * Get the backing coordinate array.  Triangle id starts at id * 9.  The
+     * array is replaced when the store grows, so do not keep it across
+     * changes.  The array must not be changed by the caller.
+     *
+     * @return The coordinates
+     */
+    public float[] getCoords() {
+        return coords;
+    }
+
+    /**
+     * Has a triangle been set for an id.
+     *
+     * @param id The triangle id
+     * @return true if set and not removed since
+     */
+    public boolean contains(int id) {
+        return id >= 0 && present.get(id);
+    }
+
+    /**
+     * Forget a triangle.  The coordinates are left in place.
+     *
+     * @param id The triangle id
+     */
+    public void remove(int id) {
+        if (id >= 0)
+            present.clear(id);
+    }
+
+    /**
+     * Forget all triangles.  The storage keeps its size.
+     */
+    public void clear() {
+        present.clear();
+        idLimit = 0;
+    }
+
+    /**
+     * Get one past the largest id set since the last clear.  Ids below this
+     * may still be unset, check with contains.
+     *
+     * @return The id limit
+     */
+    public int getIdLimit() {
+        return idLimit;
+    }
+
+    /**
+     * Get the number of triangles which fit without growing.
+     *
+     * @return The capacity in triangles
+     */
+    public int capacity() {
+        return coords.length / STRIDE;
+    }
+
+    /**
+     * Make sure a number of triangles fit without growing.  Grows by at
+     * least doubling so repeated growth is amortized.
+     *
+     * @param numTris The number of triangles needed
+     */
+    public void ensureCapacity(int numTris) {
+        int cap = capacity();
+
+        if (numTris <= cap)
+            return;
+
+        int new_cap = (int) Math.min(Integer.MAX_VALUE / STRIDE, Math.max((long) numTris, (long) cap << 1));
+
+        if (new_cap < numTris)
+            throw new IllegalArgumentException("Too many triangles: " + numTris);
+
+        coords = Arrays.copyOf(coords, new_cap * STRIDE);
+    }
+}
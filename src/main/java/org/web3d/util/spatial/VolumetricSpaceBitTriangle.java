@@ -0,0 +1,236 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import toxi.geom.Vec3D;
+
+// Internal Imports
+// None
+
+/**
+ * A Volumetric Space which stores occupancy as one bit per voxel.
+ * <p>
+ *
+ * Occupancy is kept in a {@link BitVolume}, so an empty volume costs an
+ * eighth of a byte per voxel rather than a reference per voxel.  The
+ * triangle ids of occupied voxels can optionally be kept in a
+ * {@link VoxelStore} keyed by voxel index, with the coordinates of each
+ * triangle stored once in a {@link TriangleStore}.  Only occupied voxels
+ * have an entry.  Without ids only occupancy is recorded.
+ * <p>
+ *
+ * getVoxelAt builds a new set of new Triangle objects from the stored ids
+ * and coordinates on each call, so the sets are not the objects inserted.
+ * Use getIds and getTriangle to avoid the garbage.
+ * <p>
+ *
+ * This implementation is not thread-safe for writes.  Any number of
+ * threads may read concurrently once all writes are finished.
+ *
+ * @version $Id: $
+ */
+public class VolumetricSpaceBitTriangle extends VolumetricSpaceTriangle {
+
+    /** The expected number of occupied voxels to start the id table with */
+    private static final int INITIAL_VOXELS = 1024;
+
+    /** The occupied voxels */
+    protected BitVolume occupied;
+
+    /** The triangle ids by voxel index, null if ids are not kept */
+    protected VoxelStore voxelIds;
+
+    /** The triangle coordinates by id, null if ids are not kept */
+    protected TriangleStore triangles;
+
+    /**
+     * Constructor.  Keeps the triangle ids of each voxel.
+     *
+     * @param scale The size of the volume
+     * @param resX The number of voxels in x
+     * @param resY The number of voxels in y
+     * @param resZ The number of voxels in z
+     */
+    public VolumetricSpaceBitTriangle(Vec3D scale, int resX, int resY, int resZ) {
+        this(scale, resX, resY, resZ, true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param scale The size of the volume
+     * @param resX The number of voxels in x
+     * @param resY The number of voxels in y
+     * @param resZ The number of voxels in z
+     * @param keepIds Should the triangle ids of each voxel be kept
+     */
+    public VolumetricSpaceBitTriangle(Vec3D scale, int resX, int resY, int resZ,
+        boolean keepIds) {
+
+        super(scale, resX, resY, resZ);
+
+        occupied = new BitVolume(resX, resY, resZ);
+
+        if (keepIds) {
+            voxelIds = new VoxelStore(INITIAL_VOXELS);
+            triangles = new TriangleStore(0);
+        }
+    }
+
+    @Override
+    public void clear() {
+        occupied.clear();
+
+        if (voxelIds != null) {
+            voxelIds.clear();
+            triangles.clear();
+        }
+    }
+
+    @Override
+    public void insertAt(int x, int y, int z, Triangle tri) {
+        occupied.set(x, y, z);
+
+        if (voxelIds == null)
+            return;
+
+        long key = x + y * resX + (long) z * sliceRes;
+        int slot = voxelIds.findSlot(key);
+
+        if (slot >= 0) {
+            int[] ids = voxelIds.getIds(slot);
+            int cnt = voxelIds.getCount(slot);
+
+            for(int i=0; i < cnt; i++) {
+                if (ids[i] == tri.id)
+                    return;
+            }
+        }
+
+        voxelIds.add(key, tri.id);
+
+        if (!triangles.contains(tri.id))
+            triangles.set(tri.id, tri.coords, 0);
+    }
+
+    @Override
+    public boolean isOccupied(int x, int y, int z) {
+        return occupied.get(x, y, z);
+    }
+
+    /**
+     * Get the triangles in a voxel.  Without ids an occupied voxel gives an
+     * empty set.
+     *
+     * @param index The voxel index
+     * @return A new set of triangles or null if the voxel is empty
+     */
+    public Set<Triangle> getVoxelAt(int index) {
+        int z = index / sliceRes;
+        int y = (index - z * sliceRes) / resX;
+        int x = index - z * sliceRes - y * resX;
+
+        return getVoxelAt(x, y, z);
+    }
+
+    /**
+     * Get the triangles in a voxel.  Without ids an occupied voxel gives an
+     * empty set.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return A new set of triangles or null if the voxel is empty
+     */
+    public Set<Triangle> getVoxelAt(int x, int y, int z) {
+        if (!occupied.get(x, y, z))
+            return null;
+
+        if (voxelIds == null)
+            return Collections.emptySet();
+
+        int slot = voxelIds.findSlot(x + y * resX + (long) z * sliceRes);
+        int[] ids = voxelIds.getIds(slot);
+        int cnt = voxelIds.getCount(slot);
+
+        Set<Triangle> ret_val = new HashSet<Triangle>(cnt * 2);
+
+        for(int i=0; i < cnt; i++) {
+            ret_val.add(new Triangle(getTriangle(ids[i]), ids[i]));
+        }
+
+        return ret_val;
+    }
+
+    /**
+     * Get the triangle ids in a voxel.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return A copy of the ids or null if the voxel is empty or ids are not
+     *    kept
+     */
+    public int[] getIds(int x, int y, int z) {
+        if (voxelIds == null)
+            return null;
+
+        return voxelIds.toArray(x + y * resX + (long) z * sliceRes);
+    }
+
+    /**
+     * Get a copy of the coordinates of a triangle inserted into the volume.
+     *
+     * @param id The triangle id
+     * @return The 9 coordinates
+     * @throws IllegalStateException Ids are not kept
+     */
+    public float[] getTriangle(int id) {
+        if (triangles == null)
+            throw new IllegalStateException("Triangle ids are not kept");
+
+        return triangles.get(id);
+    }
+
+    /**
+     * Are the triangle ids of each voxel kept.
+     *
+     * @return true if kept
+     */
+    public boolean isKeepingIds() {
+        return voxelIds != null;
+    }
+
+    /**
+     * Get the occupied voxels.  This is the live volume, not a copy.
+     *
+     * @return The occupancy
+     */
+    public BitVolume getOccupancy() {
+        return occupied;
+    }
+
+    /**
+     * Get the number of occupied voxels.
+     *
+     * @return The count
+     */
+    public long getNumOccupied() {
+        return occupied.cardinality();
+    }
+}
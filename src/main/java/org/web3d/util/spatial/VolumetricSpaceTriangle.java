@@ -91,6 +91,20 @@ public abstract class VolumetricSpaceTriangle {
                 "This VolumetricSpace implementation does not support insert()");
     }
 
+    /**
+     * Does a voxel hold any triangles.
+     *
+     * @param x The x voxel
+     * @param y The y voxel
+     * @param z The z voxel
+     * @return true if the voxel is occupied
+     */
+    public boolean isOccupied(int x, int y, int z) {
+        Set<Triangle> tris = getVoxelAt(x, y, z);
+
+        return tris != null && !tris.isEmpty();
+    }
+
     public abstract Set<Triangle> getVoxelAt(int index);
 
     public abstract Set<Triangle> getVoxelAt(int x, int y, int z);
@@ -0,0 +1,655 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+import java.util.Arrays;
+
+// Internal Imports
+import org.web3d.util.IntArray;
+
+/**
+ * Storage of object id lists by voxel.
+ * <p>
+ *
+ * Cells are keyed by a primitive long, typically built with {@link CellKey}.
+ * The table uses open addressing with linear probing, so looking up a cell
+ * does not create any garbage.  Each cell keeps its own id list which grows
+ * by doubling, so appending an id is allocation free in the common case.
+ * <p>
+ *
+ * Cells are accessed by slot number.  A slot is valid until the next call
+ * which adds or removes a cell or clears the store.
+ * <p>
+ *
+ * A cell's home slot is taken from the high bits of its hash, so the top
+ * bits of the hash pick the same contiguous range of slots whatever the
+ * table size.  {@link #shardOf} names that range, which lets several
+ * threads merge cells into separate ranges of one table at once, see
+ * mergeShard.
+ * <p>
+ *
+ * This implementation is not thread-safe for writes.  Any number of
+ * threads may read concurrently once all writes are finished.
+ *
+ * @version $Id: $
+ */
+public class VoxelStore {
+
+    /** The key value used to mark an unused slot.  Valid keys are never negative */
+    public static final long EMPTY_KEY = -1L;
+
+    /** The minimum table size */
+    private static final int MIN_CAPACITY = 16;
+
+    /** The load factor for the table */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    /** The starting size of a cells id list */
+    private static final int INITIAL_LIST_SIZE = 2;
+
+    /** The cell keys by slot */
+    private long[] keys;
+
+    /** The id lists by slot.  Only the first counts[slot] are valid */
+    private int[][] lists;
+
+    /** The number of ids in each slot */
+    private int[] counts;
+
+    /** Mask to wrap a slot around the table */
+    private int mask;
+
+    /** Shift to turn a hash into a home slot */
+    private int shift;
+
+    /** Bits the hash is rotated by before taking the home slot */
+    private final int rotation;
+
+    /** The number of cells in use */
+    private int size;
+
+    /** The number of cells at which to grow the table */
+    private int threshold;
+
+    /** The total number of ids over all cells */
+    private long numIds;
+
+    /** Count of changes which add or remove cells, so slots can be checked */
+    private int modCount;
+
+    /** The most ids any cell has held since the last clear */
+    private int maxCount;
+
+    /**
+     * Constructor.
+     *
+     * @param expectedCells The number of cells expected to be filled
+     */
+    public VoxelStore(int expectedCells) {
+        this(expectedCells, 0);
+    }
+
+    /**
+     * Constructor for a store holding the cells of one shard.  All its keys
+     * share the top shardBits of their hash, so the hash is rotated to
+     * spread them over the whole table.  Such a store can be the source of
+     * mergeShard but not the target.
+     *
+     * @param expectedCells The number of cells expected to be filled
+     * @param shardBits The log2 of the number of shards
+     */
+    VoxelStore(int expectedCells, int shardBits) {
+        rotation = shardBits;
+
+        if (expectedCells < 0)
+            throw new IllegalArgumentException("Illegal Capacity: " + expectedCells);
+
+        int cap = MIN_CAPACITY;
+        int needed = (int) Math.min(1 << 30, (long) (expectedCells / LOAD_FACTOR) + 1);
+
+        while(cap < needed) {
+            cap <<= 1;
+        }
+
+        allocate(cap);
+    }
+
+    /**
+     * Get the number of cells which contain ids.
+     *
+     * @return The cell count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the total number of ids stored over all cells.
+     *
+     * @return The id count
+     */
+    public long getNumIds() {
+        return numIds;
+    }
+
+    /**
+     * Get the number of slots in the table.  Valid slots are 0 to
+     * capacity - 1, unused slots have a key of EMPTY_KEY.
+     *
+     * @return The table size
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Get the most ids any cell has held since the last clear.  Removing
+     * ids does not lower it.
+     *
+     * @return The peak cell count
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Get the count of changes which added or removed cells.  Slots found
+     * before a change may not be valid after it.  Adding ids to an existing
+     * cell does not change the count.
+     *
+     * @return The modification count
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Grow the table so a number of cells fit without growing again.
+     *
+     * @param numCells The number of cells to make room for
+     */
+    public void ensureCapacity(int numCells) {
+        if (numCells <= threshold)
+            return;
+
+        int cap = keys.length;
+        int needed = (int) Math.min(1 << 30, (long) (numCells / LOAD_FACTOR) + 1);
+
+        while(cap < needed) {
+            cap <<= 1;
+        }
+
+        rehash(cap);
+    }
+
+    /**
+     * Add an id to a cell, creating the cell if needed.
+     *
+     * @param key The cell key, must not be negative
+     * @param id The id to add
+     */
+    public void add(long key, int id) {
+        int slot = findSlot(key);
+
+        if (slot < 0) {
+            if (size >= threshold)
+                rehash(keys.length << 1);
+
+            slot = insertSlot(key);
+            lists[slot] = new int[INITIAL_LIST_SIZE];
+            size++;
+            modCount++;
+        }
+
+        int cnt = counts[slot];
+        int[] list = lists[slot];
+
+        if (cnt == list.length) {
+            int[] new_list = new int[cnt << 1];
+            System.arraycopy(list, 0, new_list, 0, cnt);
+            list = new_list;
+            lists[slot] = list;
+        }
+
+        list[cnt] = id;
+        counts[slot] = cnt + 1;
+        numIds++;
+
+        if (cnt >= maxCount)
+            maxCount = cnt + 1;
+    }
+
+    /**
+     * Add a list of ids to a cell, creating the cell if needed.
+     *
+     * @param key The cell key, must not be negative
+     * @param ids The ids to add
+     * @param len The number of ids to add from the start of the list
+     */
+    public void addAll(long key, int[] ids, int len) {
+        int slot = findSlot(key);
+
+        if (slot < 0) {
+            if (size >= threshold)
+                rehash(keys.length << 1);
+
+            slot = insertSlot(key);
+            lists[slot] = new int[Math.max(INITIAL_LIST_SIZE, len)];
+            size++;
+            modCount++;
+        }
+
+        int cnt = counts[slot];
+        int[] list = lists[slot];
+
+        if (cnt + len > list.length) {
+            int new_size = list.length << 1;
+
+            while(new_size < cnt + len) {
+                new_size <<= 1;
+            }
+
+            int[] new_list = new int[new_size];
+            System.arraycopy(list, 0, new_list, 0, cnt);
+            list = new_list;
+            lists[slot] = list;
+        }
+
+        System.arraycopy(ids, 0, list, cnt, len);
+        counts[slot] = cnt + len;
+        numIds += len;
+
+        if (cnt + len > maxCount)
+            maxCount = cnt + len;
+    }
+
+    /**
+     * Remove an id from a cell.  Every copy of the id in the cell is
+     * removed and the order of the remaining ids may change.  A cell left
+     * empty is removed from the table.
+     *
+     * @param key The cell key
+     * @param id The id to remove
+     * @return true if the id was in the cell
+     */
+    public boolean remove(long key, int id) {
+        int slot = findSlot(key);
+
+        if (slot < 0)
+            return false;
+
+        int cnt = counts[slot];
+        int[] list = lists[slot];
+        int n = 0;
+
+        while(n < cnt) {
+            if (list[n] == id)
+                list[n] = list[--cnt];
+            else
+                n++;
+        }
+
+        int removed = counts[slot] - cnt;
+
+        if (removed == 0)
+            return false;
+
+        counts[slot] = cnt;
+        numIds -= removed;
+
+        if (cnt == 0)
+            removeSlot(slot);
+
+        return true;
+    }
+
+    /**
+     * Find the slot for a cell.
+     *
+     * @param key The cell key
+     * @return The slot or -1 if the cell is empty
+     */
+    public int findSlot(long key) {
+        final long[] k = keys;
+        int slot = home(key);
+
+        while(true) {
+            long val = k[slot];
+
+            if (val == key)
+                return slot;
+
+            if (val == EMPTY_KEY)
+                return -1;
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Get the key stored in a slot.
+     *
+     * @param slot The slot
+     * @return The key or EMPTY_KEY if the slot is unused
+     */
+    public long getKey(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Get the number of ids stored in a slot.
+     *
+     * @param slot The slot
+     * @return The id count
+     */
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * Get the backing id list for a slot.  Only the first getCount(slot)
+     * values are valid.  The array must not be changed by the caller.
+     *
+     * @param slot The slot
+     * @return The id list
+     */
+    public int[] getIds(int slot) {
+        return lists[slot];
+    }
+
+    /**
+     * Get a copy of the ids in a cell.
+     *
+     * @param key The cell key
+     * @return The ids or null if the cell is empty
+     */
+    public int[] toArray(long key) {
+        int slot = findSlot(key);
+
+        if (slot < 0)
+            return null;
+
+        int[] ret_val = new int[counts[slot]];
+        System.arraycopy(lists[slot], 0, ret_val, 0, ret_val.length);
+
+        return ret_val;
+    }
+
+    /**
+     * Remove all cells.  The table keeps its current size.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        Arrays.fill(lists, null);
+        Arrays.fill(counts, 0);
+        size = 0;
+        numIds = 0;
+        maxCount = 0;
+        modCount++;
+    }
+
+    /**
+     * Get the shard of a cell.  The shards split the table into 2^shardBits
+     * equal ranges of slots, a cell's home slot is in the range of its
+     * shard at any table size of at least 2^shardBits.
+     *
+     * @param key The cell key
+     * @param shardBits The log2 of the number of shards, 0 to 16
+     * @return The shard
+     */
+    static int shardOf(long key, int shardBits) {
+        if (shardBits == 0)
+            return 0;
+
+        return hash(key) >>> (32 - shardBits);
+    }
+
+    /**
+     * Add the cells of another store which all belong to one shard.  Only
+     * slots in the range of the shard are read or written, so the shards
+     * of one table can be merged from different threads at once, as long
+     * as nothing else uses the store meanwhile.  Cells which would probe
+     * past the end of the range are left for finishMerge.  The table must
+     * already have room for every new cell, see ensureCapacity, and at
+     * least 2^shardBits slots.
+     *
+     * @param src The cells to add, all in the shard
+     * @param shard The shard
+     * @param shardBits The log2 of the number of shards
+     * @param result Where the counts and skipped cells are kept
+     */
+    void mergeShard(VoxelStore src, int shard, int shardBits, MergeResult result) {
+        int range_bits = Integer.numberOfTrailingZeros(keys.length) - shardBits;
+
+        if (rotation != 0)
+            throw new IllegalStateException("Cannot merge into a shard store");
+
+        if (range_bits < 0)
+            throw new IllegalStateException("Table smaller than the shard count");
+
+        int range_end = (shard + 1) << range_bits;
+        int src_cap = src.keys.length;
+
+        for(int n=0; n < src_cap; n++) {
+            long key = src.keys[n];
+
+            if (key == EMPTY_KEY)
+                continue;
+
+            int slot = home(key);
+
+            while(slot < range_end && keys[slot] != key && keys[slot] != EMPTY_KEY) {
+                slot++;
+            }
+
+            if (slot == range_end) {
+                result.deferred.add(n);
+
+                continue;
+            }
+
+            int len = src.counts[n];
+            int cnt;
+
+            if (keys[slot] == EMPTY_KEY) {
+                keys[slot] = key;
+                lists[slot] = new int[Math.max(INITIAL_LIST_SIZE, len)];
+                cnt = 0;
+                result.numCells++;
+            } else {
+                cnt = counts[slot];
+
+                if (cnt + len > lists[slot].length) {
+                    int new_size = lists[slot].length << 1;
+
+                    while(new_size < cnt + len) {
+                        new_size <<= 1;
+                    }
+
+                    lists[slot] = Arrays.copyOf(lists[slot], new_size);
+                }
+            }
+
+            System.arraycopy(src.lists[n], 0, lists[slot], cnt, len);
+            counts[slot] = cnt + len;
+            result.numIds += len;
+
+            if (cnt + len > result.maxCount)
+                result.maxCount = cnt + len;
+        }
+    }
+
+    /**
+     * Finish merging a shard.  Adds the counts gathered by mergeShard and
+     * the cells it skipped.  Must be called from one thread once all
+     * shards are merged.
+     *
+     * @param src The cells given to mergeShard
+     * @param result The result given to mergeShard
+     */
+    void finishMerge(VoxelStore src, MergeResult result) {
+        size += result.numCells;
+        numIds += result.numIds;
+
+        if (result.maxCount > maxCount)
+            maxCount = result.maxCount;
+
+        if (result.numCells > 0)
+            modCount++;
+
+        int num_deferred = result.deferred.size();
+
+        for(int i=0; i < num_deferred; i++) {
+            int n = result.deferred.get(i);
+
+            addAll(src.keys[n], src.lists[n], src.counts[n]);
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Local Methods
+    //-------------------------------------------------------------
+
+    /**
+     * Mix the bits of a key into a well distributed hash.
+     *
+     * @param key The key
+     * @return The hash
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Get the home slot of a key.
+     *
+     * @param key The cell key
+     * @return The slot
+     */
+    private int home(long key) {
+        return Integer.rotateLeft(hash(key), rotation) >>> shift;
+    }
+
+    /**
+     * Find the empty slot a new key should go in.  Assumes the key is not
+     * already in the table and there is room.
+     *
+     * @param key The cell key
+     * @return The slot
+     */
+    private int insertSlot(long key) {
+        int slot = home(key);
+
+        while(keys[slot] != EMPTY_KEY) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+
+        return slot;
+    }
+
+    /**
+     * Remove a cell from the table.  Later cells in the same probe run are
+     * shifted back into the hole so lookups never need tombstones.
+     *
+     * @param slot The slot to empty
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int n = slot;
+
+        while(true) {
+            n = (n + 1) & mask;
+
+            long key = keys[n];
+
+            if (key == EMPTY_KEY)
+                break;
+
+            // A cell may only move back if its home is not between the hole and it
+            int home = home(key);
+
+            if (((n - home) & mask) >= ((n - hole) & mask)) {
+                keys[hole] = key;
+                lists[hole] = lists[n];
+                counts[hole] = counts[n];
+                hole = n;
+            }
+        }
+
+        keys[hole] = EMPTY_KEY;
+        lists[hole] = null;
+        counts[hole] = 0;
+        size--;
+        modCount++;
+    }
+
+    /**
+     * Allocate empty tables of the given size.
+     *
+     * @param cap The capacity, must be a power of 2
+     */
+    private void allocate(int cap) {
+        keys = new long[cap];
+        Arrays.fill(keys, EMPTY_KEY);
+        lists = new int[cap][];
+        counts = new int[cap];
+        mask = cap - 1;
+        shift = Integer.numberOfLeadingZeros(cap) + 1;
+        threshold = (int) (cap * LOAD_FACTOR);
+    }
+
+    /**
+     * Grow the table, moving all existing cells.  The id lists are moved
+     * not copied.
+     *
+     * @param cap The new capacity, must be a power of 2
+     */
+    private void rehash(int cap) {
+        long[] old_keys = keys;
+        int[][] old_lists = lists;
+        int[] old_counts = counts;
+
+        allocate(cap);
+
+        for(int i=0; i < old_keys.length; i++) {
+            if (old_keys[i] == EMPTY_KEY)
+                continue;
+
+            int slot = insertSlot(old_keys[i]);
+            lists[slot] = old_lists[i];
+            counts[slot] = old_counts[i];
+        }
+    }
+
+    /**
+     * The counts from merging one shard, applied by finishMerge.
+     */
+    static class MergeResult {
+        /** The number of new cells */
+        int numCells;
+
+        /** The number of ids added */
+        long numIds;
+
+        /** The most ids in a merged cell */
+        int maxCount;
+
+        /** The source slots left for finishMerge */
+        final IntArray deferred = new IntArray();
+    }
+}
@@ -0,0 +1,48 @@
+/*****************************************************************************
+ *                        Yumetech Copyright (c) 2011
+ *                               Java Source
+ *
+ * This source is licensed under the GNU LGPL v2.1
+ * Please read http://www.gnu.org/copyleft/lgpl.html for more information
+ *
+ * This software comes with the standard NO WARRANTY disclaimer for any
+ * purpose. Use it at your own risk. If there's a problem you get to fix it.
+ *
+ ****************************************************************************/
+
+package org.web3d.util.spatial;
+
+// External Imports
+// None
+
+// Internal Imports
+// None
+
+/**
+ * A region described in world coordinates rather than grid cells.
+ * <p>
+ *
+ * Partitions find candidates from the cells covering the bounds, then may
+ * refine them with the exact triangle test.
+ *
+ * @version $Id: $
+ */
+public interface WorldRegion extends Region {
+
+    /**
+     * Get the axis aligned bounds of the region in world coordinates.
+     *
+     * @param min The min corner, preallocate to 3
+     * @param max The max corner, preallocate to 3
+     */
+    void getBounds(float[] min, float[] max);
+
+    /**
+     * Does a triangle overlap the region.  Touching counts as overlapping.
+     *
+     * @param coords The triangle coordinates, 9 values from off
+     * @param off The offset of the first vertex
+     * @return true if they overlap
+     */
+    boolean overlaps(float[] coords, int off);
+}